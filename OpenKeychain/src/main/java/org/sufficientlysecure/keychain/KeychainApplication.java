@@ -19,6 +19,7 @@ package org.sufficientlysecure.keychain;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.app.ActivityManager;
 import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
@@ -28,22 +29,24 @@ import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Environment;
 import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
 import android.widget.Toast;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.KeyserverSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
+import org.sufficientlysecure.keychain.util.ContactHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.TlsHelper;
 
 import java.security.Security;
-import java.util.HashMap;
 
 
 public class KeychainApplication extends Application {
@@ -56,6 +59,8 @@ public class KeychainApplication extends Application {
     public void onCreate() {
         super.onCreate();
 
+        qrCodeCache = createQrCodeCache(this);
+
         /*
          * Sets our own Bouncy Castle library as preferred security provider
          *
@@ -114,6 +119,7 @@ public class KeychainApplication extends Application {
         TlsHelper.addPinnedCertificate("api.keybase.io", getAssets(), "api.keybase.io.CA.cer");
 
         TemporaryFileProvider.cleanUp(this);
+        OperationLog.deleteOrphanedSpillFiles(this);
 
         if (!checkConsolidateRecovery()) {
             // force DB upgrade, https://github.com/open-keychain/open-keychain/issues/1334
@@ -148,14 +154,33 @@ public class KeychainApplication extends Application {
         }
     }
 
-    public static HashMap<String,Bitmap> qrCodeCache = new HashMap<>();
+    // rendered qr codes by size and content, limited to a few screen sized bitmaps
+    private static final int MAX_QR_CODE_CACHE_SIZE = 8 * 1024 * 1024;
+    // set up in onCreate, sized by the memory class of the device
+    public static LruCache<String, Bitmap> qrCodeCache;
+
+    /** Returns a cache for rendered qr codes, of at most a sixteenth of the app's heap. */
+    private static LruCache<String, Bitmap> createQrCodeCache(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int maxSize = Math.min(MAX_QR_CODE_CACHE_SIZE,
+                activityManager.getMemoryClass() * 1024 * 1024 / 16);
+        return new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
 
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
 
+        ContactHelper.trimPhotoCache(level);
+
         if (level >= TRIM_MEMORY_UI_HIDDEN) {
-            qrCodeCache.clear();
+            qrCodeCache.evictAll();
         }
     }
 
@@ -23,20 +23,72 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import java.net.Proxy;
 import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
 
 
 /**
  * Search two or more types of server for online keys.
+ * <p/>
+ * Results of complete searches are cached for a few minutes, so repeating a search does not
+ * query the servers again.
  */
 public class CloudSearch {
 
     private final static long SECONDS = 1000;
 
+    private static final long CACHE_TTL_MILLIS = 5 * 60 * SECONDS;
+    private static final int CACHE_SIZE = 16;
+
+    public interface SearchListener {
+        /**
+         * Called on the searching thread each time a server answered while others are
+         * still searching, with all results so far.
+         */
+        void onPartialResults(ArrayList<ImportKeysListEntry> results);
+    }
+
+    private static class CachedResult {
+        final byte[] mSerializedEntries;
+        final long mTime;
+
+        CachedResult(byte[] serializedEntries, long time) {
+            mSerializedEntries = serializedEntries;
+            mTime = time;
+        }
+    }
+
+    private static final LruCache<String, CachedResult> sResultCache = new LruCache<>(CACHE_SIZE);
+    private static final ExecutorService sSearchExecutor = Executors.newCachedThreadPool();
+
     public static ArrayList<ImportKeysListEntry> search(
             @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull Proxy proxy)
             throws Keyserver.CloudSearchFailureException {
+        return search(query, cloudPrefs, proxy, null);
+    }
+
+    public static ArrayList<ImportKeysListEntry> search(
+            @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull Proxy proxy,
+            @Nullable SearchListener listener)
+            throws Keyserver.CloudSearchFailureException {
+
+        String cacheKey = getCacheKey(query, cloudPrefs, proxy);
+        ArrayList<ImportKeysListEntry> cachedResults = getCachedResults(cacheKey);
+        if (cachedResults != null) {
+            Log.d(Constants.TAG, "Cloud search results for '" + query + "' from cache");
+            return cachedResults;
+        }
+
         final ArrayList<Keyserver> servers = new ArrayList<>();
 
         // it's a Vector for sync, multiple threads might report problems
@@ -53,40 +105,48 @@ public class CloudSearch {
         }
         final ImportKeysList results = new ImportKeysList(servers.size());
 
-        ArrayList<Thread> searchThreads = new ArrayList<>();
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(sSearchExecutor);
+        ArrayList<Future<Void>> searches = new ArrayList<>();
         for (final Keyserver keyserver : servers) {
-            Runnable r = new Runnable() {
+            searches.add(completionService.submit(new Callable<Void>() {
                 @Override
-                public void run() {
+                public Void call() {
                     try {
                         results.addAll(keyserver.search(query));
                     } catch (Keyserver.CloudSearchFailureException e) {
                         problems.add(e);
+                    } finally {
+                        results.finishedAdding();
                     }
-                    results.finishedAdding(); // notifies if all searchers done
+                    return null;
                 }
-            };
-            Thread searchThread = new Thread(r);
-            searchThreads.add(searchThread);
-            searchThread.start();
+            }));
         }
 
         // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
-        synchronized (results) {
-            try {
-                if (proxy == Proxy.NO_PROXY) {
-                    results.wait(30 * SECONDS);
-                } else {
-                    results.wait(10 * SECONDS);
+        long timeout = proxy == Proxy.NO_PROXY ? 30 * SECONDS : 10 * SECONDS;
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        try {
+            for (int finished = 1; finished <= servers.size(); finished++) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0 || completionService.poll(remaining, TimeUnit.MILLISECONDS) == null) {
+                    break;
+                }
+                // publish what we have while slower servers are still searching
+                if (listener != null && finished < servers.size()) {
+                    listener.onPartialResults(results.snapshot());
                 }
-                for (Thread thread : searchThreads) {
-                    // kill threads that haven't returned yet
-                    thread.interrupt();
-		}
-            } catch (InterruptedException ignored) {
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            for (Future<Void> search : searches) {
+                // kill searches that haven't returned yet
+                search.cancel(true);
             }
         }
 
+        ArrayList<ImportKeysListEntry> finalResults = results.snapshot();
+
         if (results.outstandingSuppliers() > 0) {
             String message = "Launched " + servers.size() + " cloud searchers, but " +
                     results.outstandingSuppliers() + "failed to complete.";
@@ -99,11 +159,39 @@ public class CloudSearch {
             }
 
             // only throw exception if we didn’t get any results
-            if (results.isEmpty()) {
+            if (finalResults.isEmpty()) {
                 throw problems.get(0);
             }
+        } else {
+            // only cache complete results
+            putCachedResults(cacheKey, finalResults);
         }
 
-        return results;
+        return finalResults;
+    }
+
+    private static String getCacheKey(String query, Preferences.CloudSearchPrefs cloudPrefs, Proxy proxy) {
+        // results found without proxy must not be served to searches which require one
+        return (cloudPrefs.searchKeyserver ? cloudPrefs.keyserver : "") + "|"
+                + cloudPrefs.searchKeybase + "|" + cloudPrefs.searchFacebook + "|" + proxy + "|" + query;
+    }
+
+    private static ArrayList<ImportKeysListEntry> getCachedResults(String cacheKey) {
+        CachedResult cached = sResultCache.get(cacheKey);
+        if (cached == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - cached.mTime > CACHE_TTL_MILLIS) {
+            sResultCache.remove(cacheKey);
+            return null;
+        }
+
+        // entries are mutable (e.g. selection), so every search gets fresh copies
+        return ImportKeysList.deserialize(cached.mSerializedEntries);
+    }
+
+    private static void putCachedResults(String cacheKey, ArrayList<ImportKeysListEntry> entries) {
+        sResultCache.put(cacheKey, new CachedResult(
+                ImportKeysList.serialize(entries), SystemClock.elapsedRealtime()));
     }
 }
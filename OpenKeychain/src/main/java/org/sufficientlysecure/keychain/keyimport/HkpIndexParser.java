@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Incremental parser for machine readable HKP indexes, as described at
+ * {@link HkpKeyserver#PUB_KEY_LINE} and {@link HkpKeyserver#UID_LINE}.
+ * <p/>
+ * The response is read line by line, and {@link #next()} returns each key as soon as its
+ * block is complete, so the whole response never has to be held in memory. Keys whose pub line
+ * can't be parsed, and keys without any user id, are skipped.
+ */
+class HkpIndexParser {
+
+    private static final int PUB_FIELDS = 7;
+    private static final int UID_FIELDS = 5;
+
+    private final BufferedReader mReader;
+    private final String mQuery;
+    private final String mOrigin;
+
+    // reused for splitting lines, the index format has few fields
+    private final String[] mFields = new String[PUB_FIELDS];
+
+    // the key whose uid lines are currently read, null if the last pub line was invalid
+    private ImportKeysListEntry mCurrent;
+    private ArrayList<String> mCurrentUserIds;
+    private boolean mFinished = false;
+
+    HkpIndexParser(BufferedReader reader, String query, String origin) {
+        mReader = reader;
+        mQuery = query;
+        mOrigin = origin;
+    }
+
+    /** Returns the next key in the index, or null at its end. */
+    ImportKeysListEntry next() throws IOException {
+        while (!mFinished) {
+            String line = mReader.readLine();
+            if (line == null) {
+                mFinished = true;
+                return finishCurrent();
+            }
+            line = line.trim();
+
+            if (line.regionMatches(true, 0, "pub:", 0, 4)) {
+                ImportKeysListEntry finished = finishCurrent();
+                startEntry(line);
+                if (finished != null) {
+                    return finished;
+                }
+            } else if (line.regionMatches(true, 0, "uid:", 0, 4)) {
+                if (mCurrent != null) {
+                    addUserId(line);
+                }
+            }
+            // anything else, like the info line, is ignored
+        }
+        return null;
+    }
+
+    private ImportKeysListEntry finishCurrent() {
+        ImportKeysListEntry entry = mCurrent;
+        mCurrent = null;
+        if (entry == null || mCurrentUserIds.isEmpty()) {
+            return null;
+        }
+        entry.setUserIds(mCurrentUserIds);
+        entry.setPrimaryUserId(mCurrentUserIds.get(0));
+        return entry;
+    }
+
+    private void startEntry(String line) {
+        if (split(line, PUB_FIELDS) < PUB_FIELDS) {
+            Log.e(Constants.TAG, "Malformed pub line in index.");
+            return;
+        }
+
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setQuery(mQuery);
+        entry.addOrigin(mOrigin);
+
+        // the first field contains the full fingerprint (v4) or the long key id if available
+        // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
+        String fingerprintOrKeyId = mFields[1].toLowerCase(Locale.ENGLISH);
+        if (fingerprintOrKeyId.length() == 40) {
+            entry.setFingerprintHex(fingerprintOrKeyId);
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(24));
+        } else if (fingerprintOrKeyId.length() == 16) {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        } else {
+            Log.e(Constants.TAG, "Wrong length for fingerprint/long key id.");
+            // skip this key
+            return;
+        }
+
+        try {
+            int bitSize = Integer.parseInt(mFields[3]);
+            entry.setBitStrength(bitSize);
+            int algorithmId = Integer.decode(mFields[2]);
+            entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
+
+            final long creationDate = Long.parseLong(mFields[4]);
+            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            tmpGreg.setTimeInMillis(creationDate * 1000);
+            entry.setDate(tmpGreg.getTime());
+        } catch (NumberFormatException e) {
+            Log.e(Constants.TAG, "Conversation for bit size, algorithm, or creation date failed.", e);
+            // skip this key
+            return;
+        }
+
+        String flags = mFields[6].toLowerCase(Locale.ENGLISH);
+        entry.setRevoked(flags.indexOf('r') >= 0);
+        entry.setExpired(flags.indexOf('e') >= 0);
+
+        mCurrent = entry;
+        mCurrentUserIds = new ArrayList<>();
+    }
+
+    private void addUserId(String line) {
+        if (split(line, UID_FIELDS) < 2) {
+            return;
+        }
+        String userId = mFields[1].trim();
+        if (userId.indexOf('%') >= 0) {
+            if (userId.contains("%%")) {
+                // The server encodes a percent sign as %%, so it is swapped out with its
+                // urlencoded counterpart to prevent errors
+                userId = userId.replace("%%", "%25");
+            }
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                userId = URLDecoder.decode(userId, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                Log.e(Constants.TAG, "User ID encoding broken", e);
+                // skip this user id
+                return;
+            }
+        }
+        mCurrentUserIds.add(userId);
+    }
+
+    /** Splits line at colons into mFields, up to maxFields. Returns the number of fields. */
+    private int split(String line, int maxFields) {
+        int count = 0;
+        int start = 0;
+        while (count < maxFields) {
+            int end = line.indexOf(':', start);
+            if (end < 0) {
+                mFields[count++] = line.substring(start);
+                break;
+            }
+            mFields[count++] = line.substring(start, end);
+            start = end + 1;
+        }
+        return count;
+    }
+
+}
@@ -18,37 +18,46 @@
 
 package org.sufficientlysecure.keychain.keyimport;
 
+import com.squareup.okhttp.Call;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
-import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.DnsCache;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.TlsHelper;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.Proxy;
 import java.net.URL;
-import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import android.support.annotation.NonNull;
 
-import de.measite.minidns.Client;
 import de.measite.minidns.Question;
 import de.measite.minidns.Record;
 import de.measite.minidns.record.SRV;
@@ -75,9 +84,13 @@ public class HkpKeyserver extends Keyserver {
     }
 
     private String mHost;
-    private short mPort;
+    private int mPort;
     private Proxy mProxy;
     private boolean mSecure;
+    private ArrayList<HkpKeyserver> mPoolMembers;
+
+    // queries to pool members run here, so they can be hedged
+    private static final ExecutorService sHedgeExecutor = Executors.newCachedThreadPool();
 
     /**
      * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
@@ -144,8 +157,8 @@ public class HkpKeyserver extends Keyserver {
             .compile("uid:([^:]*):([0-9]+):([0-9]*):([rde]*)",
                     Pattern.CASE_INSENSITIVE);
 
-    private static final short PORT_DEFAULT = 11371;
-    private static final short PORT_DEFAULT_HKPS = 443;
+    private static final int PORT_DEFAULT = 11371;
+    private static final int PORT_DEFAULT_HKPS = 443;
 
     /**
      * @param hostAndPort may be just
@@ -155,7 +168,7 @@ public class HkpKeyserver extends Keyserver {
      */
     public HkpKeyserver(String hostAndPort, Proxy proxy) {
         String host = hostAndPort;
-        short port = PORT_DEFAULT;
+        int port = PORT_DEFAULT;
         boolean secure = false;
         String[] parts = hostAndPort.split(":");
         if (parts.length > 1) {
@@ -171,11 +184,11 @@ public class HkpKeyserver extends Keyserver {
                     host = host.substring(2);
                 }
                 if (parts.length > 2) {
-                    port = Short.decode(parts[2]);
+                    port = Integer.decode(parts[2]);
                 }
             } else {
                 host = parts[0];
-                port = Short.decode(parts[1]);
+                port = Integer.decode(parts[1]);
             }
         }
         mHost = host;
@@ -184,17 +197,26 @@ public class HkpKeyserver extends Keyserver {
         mSecure = secure;
     }
 
-    public HkpKeyserver(String host, short port, Proxy proxy) {
+    public HkpKeyserver(String host, int port, Proxy proxy) {
         this(host, port, proxy, false);
     }
 
-    public HkpKeyserver(String host, short port, Proxy proxy, boolean secure) {
+    public HkpKeyserver(String host, int port, Proxy proxy, boolean secure) {
         mHost = host;
         mPort = port;
         mProxy = proxy;
         mSecure = secure;
     }
 
+    /**
+     * A pool of equivalent keyservers, e.g. from SRV records. Queries go to the best ranked
+     * member, and are hedged to the next one if it is slow.
+     */
+    HkpKeyserver(List<HkpKeyserver> poolMembers, Proxy proxy) {
+        this(poolMembers.get(0).mHost, poolMembers.get(0).mPort, proxy, poolMembers.get(0).mSecure);
+        mPoolMembers = new ArrayList<>(poolMembers);
+    }
+
     private String getUrlPrefix() {
         return mSecure ? "https://" : "http://";
     }
@@ -231,35 +253,215 @@ public class HkpKeyserver extends Keyserver {
         return client;
     }
 
+    /** Processes the body of a successful response, which may be left unread partially. */
+    private interface ResponseParser<T> {
+        T parse(BufferedReader body) throws IOException;
+    }
+
+    private static final ResponseParser<String> STRING_PARSER = new ResponseParser<String>() {
+        @Override
+        public String parse(BufferedReader body) throws IOException {
+            StringBuilder builder = new StringBuilder();
+            char[] buf = new char[4096];
+            int len;
+            while ((len = body.read(buf)) > 0) {
+                builder.append(buf, 0, len);
+            }
+            return builder.toString();
+        }
+    };
+
     private String query(String request, @NonNull Proxy proxy) throws QueryFailedException, HttpError {
+        return query(request, proxy, STRING_PARSER);
+    }
+
+    private <T> T query(String request, @NonNull Proxy proxy, ResponseParser<T> parser)
+            throws QueryFailedException, HttpError {
+        if (mPoolMembers != null && mPoolMembers.size() > 1) {
+            return hedgedQuery(request, proxy, parser);
+        }
+        return queryHost(request, proxy, parser, null);
+    }
+
+    private <T> T queryHost(String request, @NonNull Proxy proxy, ResponseParser<T> parser,
+                            HostQuery<T> hostQuery)
+            throws QueryFailedException, HttpError {
+        KeyserverHostStats stats = KeyserverHostStats.get(toString());
+        long startTime = System.nanoTime();
         try {
             URL url = new URL(getUrlPrefix() + mHost + ":" + mPort + request);
             Log.d(Constants.TAG, "hkp keyserver query: " + url + " Proxy: " + proxy);
             OkHttpClient client = getClient(url, proxy);
-            Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+            Call call = client.newCall(new Request.Builder().url(url).build());
+            if (hostQuery != null) {
+                hostQuery.setCall(call);
+            }
+            Response response = call.execute();
 
-            String responseBody = response.body().string(); // contains body both in case of success or failure
+            // an http error is an answer as well, only connection problems count as errors
+            stats.recordSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
 
-            if (response.isSuccessful()) {
-                return responseBody;
-            } else {
-                throw new HttpError(response.code(), responseBody);
+            if (!response.isSuccessful()) {
+                // the body contains the error message in case of failure
+                throw new HttpError(response.code(), response.body().string());
+            }
+
+            ResponseBody body = response.body();
+            try {
+                return parser.parse(new BufferedReader(body.charStream()));
+            } finally {
+                // if the parser stopped early, this drops the rest of the response
+                body.close();
             }
         } catch (IOException e) {
+            if (hostQuery != null && hostQuery.isCancelled()) {
+                // another pool member answered first, this is not the host's fault
+                throw new QueryFailedException("Query to keyserver '" + mHost + "' cancelled");
+            }
+            stats.recordError();
             Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
             throw new QueryFailedException("Keyserver '" + mHost + "' is unavailable. Check your Internet connection!" +
                     (proxy == Proxy.NO_PROXY ? "" : " Using proxy " + proxy));
         }
     }
 
+    /**
+     * Sends a query to the best ranked pool member. If it takes longer than that host's usual
+     * latency, or fails, the same query is sent to the next best member as well, and whichever
+     * answers first is used.
+     */
+    private <T> T hedgedQuery(String request, @NonNull Proxy proxy, ResponseParser<T> parser)
+            throws QueryFailedException, HttpError {
+        ArrayList<HkpKeyserver> ranked = getRankedPoolMembers();
+        @SuppressWarnings("unchecked")
+        HostQuery<T>[] queries = new HostQuery[] {
+                new HostQuery<>(ranked.get(0), request, proxy, parser),
+                new HostQuery<>(ranked.get(1), request, proxy, parser)
+        };
+        long hedgeDelay = KeyserverHostStats.get(ranked.get(0).toString()).getHedgeDelay();
+
+        CompletionService<T> completionService = new ExecutorCompletionService<>(sHedgeExecutor);
+        completionService.submit(queries[0]);
+        int submitted = 1, finished = 0;
+        QueryFailedException lastFailure = null;
+
+        try {
+            while (finished < submitted) {
+                Future<T> done;
+                if (submitted < queries.length) {
+                    done = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        Log.d(Constants.TAG, "no answer after " + hedgeDelay + "ms, hedging to " + ranked.get(submitted));
+                        completionService.submit(queries[submitted++]);
+                        continue;
+                    }
+                } else {
+                    done = completionService.take();
+                }
+                finished += 1;
+
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof HttpError) {
+                        throw (HttpError) e.getCause();
+                    }
+                    if (e.getCause() instanceof QueryFailedException) {
+                        lastFailure = (QueryFailedException) e.getCause();
+                    } else {
+                        Log.e(Constants.TAG, "error in keyserver query", e);
+                        lastFailure = new QueryFailedException("Querying keyserver failed");
+                    }
+                    // no need to wait for the hedge delay if the query failed right away
+                    if (submitted < queries.length) {
+                        completionService.submit(queries[submitted++]);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new QueryFailedException("Query to keyserver '" + mHost + "' interrupted");
+        } finally {
+            for (HostQuery<T> query : queries) {
+                query.cancel();
+            }
+        }
+
+        throw lastFailure;
+    }
+
+    private ArrayList<HkpKeyserver> getRankedPoolMembers() {
+        final HashMap<HkpKeyserver, Double> scores = new HashMap<>();
+        for (HkpKeyserver member : mPoolMembers) {
+            scores.put(member, KeyserverHostStats.get(member.toString()).getScore());
+        }
+        ArrayList<HkpKeyserver> ranked = new ArrayList<>(mPoolMembers);
+        // the sort is stable, so without statistics the SRV order is kept
+        Collections.sort(ranked, new Comparator<HkpKeyserver>() {
+            @Override
+            public int compare(HkpKeyserver lhs, HkpKeyserver rhs) {
+                return Double.compare(scores.get(lhs), scores.get(rhs));
+            }
+        });
+        return ranked;
+    }
+
+    /** A query to a single pool member, which can be cancelled while it is running. */
+    private static class HostQuery<T> implements Callable<T> {
+        private final HkpKeyserver mServer;
+        private final String mRequest;
+        private final Proxy mProxy;
+        private final ResponseParser<T> mParser;
+        private Call mCall;
+        private boolean mCancelled;
+
+        HostQuery(HkpKeyserver server, String request, Proxy proxy, ResponseParser<T> parser) {
+            mServer = server;
+            mRequest = request;
+            mProxy = proxy;
+            mParser = parser;
+        }
+
+        @Override
+        public T call() throws QueryFailedException, HttpError {
+            return mServer.queryHost(mRequest, mProxy, mParser, this);
+        }
+
+        synchronized void setCall(Call call) {
+            mCall = call;
+            if (mCancelled) {
+                call.cancel();
+            }
+        }
+
+        synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mCall != null) {
+                mCall.cancel();
+            }
+        }
+    }
+
     /**
      * Results are sorted by creation date of key!
      */
     @Override
     public ArrayList<ImportKeysListEntry> search(String query) throws QueryFailedException,
             QueryNeedsRepairException {
-        ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        return search(query, 0);
+    }
 
+    /**
+     * Like {@link #search(String)}, but stops reading the response after limit keys.
+     *
+     * @param limit maximum number of results, 0 for no limit
+     */
+    @Override
+    public ArrayList<ImportKeysListEntry> search(final String query, final int limit)
+            throws QueryFailedException, QueryNeedsRepairException {
         if (query.length() < 3) {
             throw new QueryTooShortException();
         }
@@ -272,16 +474,28 @@ public class HkpKeyserver extends Keyserver {
         }
         String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data;
+        final String origin = getUrlPrefix() + mHost + ":" + mPort;
         try {
-            data = query(request, mProxy);
+            // the index is parsed while it is read, large responses are never held in memory
+            return query(request, mProxy, new ResponseParser<ArrayList<ImportKeysListEntry>>() {
+                @Override
+                public ArrayList<ImportKeysListEntry> parse(BufferedReader body) throws IOException {
+                    ArrayList<ImportKeysListEntry> entries = new ArrayList<>();
+                    HkpIndexParser parser = new HkpIndexParser(body, query, origin);
+                    ImportKeysListEntry entry;
+                    while ((limit == 0 || entries.size() < limit) && (entry = parser.next()) != null) {
+                        entries.add(entry);
+                    }
+                    return entries;
+                }
+            });
         } catch (HttpError e) {
             if (e.getData() != null) {
                 Log.d(Constants.TAG, "returned error data: " + e.getData().toLowerCase(Locale.ENGLISH));
 
                 if (e.getData().toLowerCase(Locale.ENGLISH).contains("no keys found")) {
                     // NOTE: This is also a 404 error for some keyservers!
-                    return results;
+                    return new ArrayList<>();
                 } else if (e.getData().toLowerCase(Locale.ENGLISH).contains("too many")) {
                     throw new TooManyResponsesException();
                 } else if (e.getData().toLowerCase(Locale.ENGLISH).contains("insufficient")) {
@@ -297,84 +511,6 @@ public class HkpKeyserver extends Keyserver {
 
             throw new QueryFailedException("Querying server(s) for '" + mHost + "' failed.");
         }
-
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-            entry.setQuery(query);
-            entry.addOrigin(getUrlPrefix() + mHost + ":" + mPort);
-
-            // group 1 contains the full fingerprint (v4) or the long key id if available
-            // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
-            String fingerprintOrKeyId = matcher.group(1).toLowerCase(Locale.ENGLISH);
-            if (fingerprintOrKeyId.length() == 40) {
-                entry.setFingerprintHex(fingerprintOrKeyId);
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else if (fingerprintOrKeyId.length() == 16) {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
-            } else {
-                Log.e(Constants.TAG, "Wrong length for fingerprint/long key id.");
-                // skip this key
-                continue;
-            }
-
-            try {
-                int bitSize = Integer.parseInt(matcher.group(3));
-                entry.setBitStrength(bitSize);
-                int algorithmId = Integer.decode(matcher.group(2));
-                entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
-
-                final long creationDate = Long.parseLong(matcher.group(4));
-                final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-                tmpGreg.setTimeInMillis(creationDate * 1000);
-                entry.setDate(tmpGreg.getTime());
-            } catch (NumberFormatException e) {
-                Log.e(Constants.TAG, "Conversation for bit size, algorithm, or creation date failed.", e);
-                // skip this key
-                continue;
-            }
-
-            try {
-                entry.setRevoked(matcher.group(6).contains("r"));
-                entry.setExpired(matcher.group(6).contains("e"));
-            } catch (NullPointerException e) {
-                Log.e(Constants.TAG, "Check for revocation or expiry failed.", e);
-                // skip this key
-                continue;
-            }
-
-            ArrayList<String> userIds = new ArrayList<>();
-            final String uidLines = matcher.group(7);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(1).trim();
-                if (tmp.contains("%")) {
-                    if (tmp.contains("%%")) {
-                        // The server encodes a percent sign as %%, so it is swapped out with its
-                        // urlencoded counterpart to prevent errors
-                        tmp = tmp.replace("%%", "%25");
-                    }
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = URLDecoder.decode(tmp, "UTF8");
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    } catch (IllegalArgumentException e) {
-                        Log.e(Constants.TAG, "User ID encoding broken", e);
-                        // skip this user id
-                        continue;
-                    }
-                }
-                userIds.add(tmp);
-            }
-            entry.setUserIds(userIds);
-            entry.setPrimaryUserId(userIds.get(0));
-
-            results.add(entry);
-        }
-        return results;
     }
 
     @Override
@@ -449,7 +585,8 @@ public class HkpKeyserver extends Keyserver {
      */
     public static HkpKeyserver resolve(String domain, Proxy proxy) {
         try {
-            Record[] records = new Client().query(new Question("_hkp._tcp." + domain, Record.TYPE.SRV)).getAnswers();
+            Record[] records = DnsCache.getInstance().query(
+                    new Question("_hkp._tcp." + domain, Record.TYPE.SRV));
             if (records.length > 0) {
                 Arrays.sort(records, new Comparator<Record>() {
                     @Override
@@ -459,10 +596,18 @@ public class HkpKeyserver extends Keyserver {
                         return ((SRV) lhs.getPayload()).getPriority() - ((SRV) rhs.getPayload()).getPriority();
                     }
                 });
-                Record record = records[0]; // This is our best choice
-                if (record.getPayload().getType() == Record.TYPE.SRV) {
-                    return new HkpKeyserver(((SRV) record.getPayload()).getName(),
-                            (short) ((SRV) record.getPayload()).getPort(), proxy);
+                // all hosts are kept, so queries can be hedged between them
+                ArrayList<HkpKeyserver> members = new ArrayList<>();
+                for (Record record : records) {
+                    if (record.getPayload().getType() == Record.TYPE.SRV) {
+                        members.add(new HkpKeyserver(((SRV) record.getPayload()).getName(),
+                                ((SRV) record.getPayload()).getPort(), proxy));
+                    }
+                }
+                if (members.size() == 1) {
+                    return members.get(0);
+                } else if (members.size() > 1) {
+                    return new HkpKeyserver(members, proxy);
                 }
             }
         } catch (Exception ignored) {
@@ -16,8 +16,14 @@
  */
 package org.sufficientlysecure.keychain.keyimport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 
 /**
  * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method
@@ -25,6 +31,8 @@ import java.util.Collection;
 public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
     private int mSupplierCount;
+    // entries by fingerprint, for merging dupes without scanning the list
+    private final HashMap<String, ImportKeysListEntry> mByFingerprint = new HashMap<>();
 
     public ImportKeysList(int supplierCount) {
         mSupplierCount = supplierCount;
@@ -48,14 +56,54 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
     // NOTE: side-effects
     // NOTE: synchronized
     private synchronized boolean addOrMerge(ImportKeysListEntry toAdd) {
-        for (ImportKeysListEntry existing : this) {
-            if (toAdd.hasSameKeyAs(existing)) {
+        String fingerprint = toAdd.getFingerprintHex();
+        if (fingerprint != null) {
+            ImportKeysListEntry existing = mByFingerprint.get(fingerprint);
+            if (existing != null) {
                 return mergeDupes(toAdd, existing);
             }
+            mByFingerprint.put(fingerprint, toAdd);
         }
         return super.add(toAdd);
     }
 
+    /**
+     * Returns copies of the entries added so far, safe to use while suppliers are adding.
+     * Suppliers keep merging into the entries of this list, so they are never handed out.
+     */
+    public ArrayList<ImportKeysListEntry> snapshot() {
+        byte[] serializedEntries;
+        synchronized (this) {
+            serializedEntries = serialize(new ArrayList<>(this));
+        }
+        return deserialize(serializedEntries);
+    }
+
+    static byte[] serialize(ArrayList<ImportKeysListEntry> entries) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(entries);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new AssertionError(e);
+        }
+    }
+
+    static ArrayList<ImportKeysListEntry> deserialize(byte[] serializedEntries) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedEntries));
+            @SuppressWarnings("unchecked")
+            ArrayList<ImportKeysListEntry> entries = (ArrayList<ImportKeysListEntry>) in.readObject();
+            return entries;
+        } catch (IOException | ClassNotFoundException e) {
+            // only reads what serialize wrote
+            throw new AssertionError(e);
+        }
+    }
+
     // being a little anal about the ArrayList#addAll contract here
     private boolean mergeDupes(ImportKeysListEntry incoming, ImportKeysListEntry existing) {
         boolean modified = false;
@@ -71,6 +71,15 @@ public abstract class Keyserver {
     public abstract List<ImportKeysListEntry> search(String query)
             throws QueryFailedException, QueryNeedsRepairException;
 
+    /**
+     * Like {@link #search(String)}, but allows to stop reading the response after limit keys,
+     * 0 for no limit. By default the limit is ignored.
+     */
+    public List<ImportKeysListEntry> search(String query, int limit)
+            throws QueryFailedException, QueryNeedsRepairException {
+        return search(query);
+    }
+
     public abstract String get(String keyIdHex) throws QueryFailedException;
 
     public abstract void add(String armoredKey) throws AddKeyException;
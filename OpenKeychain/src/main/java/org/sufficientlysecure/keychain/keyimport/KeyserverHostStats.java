@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ * Latency and error statistics of keyserver hosts, kept for the lifetime of the process.
+ * <p/>
+ * Latency and error rate are tracked as exponentially weighted moving averages, which rank the
+ * members of a keyserver pool. A window of recent latencies gives the percentile after which a
+ * hedged request is sent to another pool member.
+ */
+class KeyserverHostStats {
+
+    private static final double EWMA_WEIGHT = 0.2;
+    // how much errors count against a host when ranking, relative to its latency
+    private static final double ERROR_PENALTY = 10;
+    // assumed latency of hosts without any successful requests yet
+    private static final double UNKNOWN_LATENCY_MILLIS = 1000;
+
+    private static final int LATENCY_WINDOW = 32;
+    private static final int MIN_SAMPLES_FOR_PERCENTILE = 5;
+    private static final double HEDGE_PERCENTILE = 0.9;
+    static final long DEFAULT_HEDGE_DELAY_MILLIS = 1000;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50;
+
+    private static final HashMap<String, KeyserverHostStats> sHostStats = new HashMap<>();
+
+    private double mLatencyEwma = -1;
+    private double mErrorRateEwma = 0;
+    private final long[] mLatencyWindow = new long[LATENCY_WINDOW];
+    private int mSampleCount = 0;
+
+    static KeyserverHostStats get(String host) {
+        synchronized (sHostStats) {
+            KeyserverHostStats stats = sHostStats.get(host);
+            if (stats == null) {
+                stats = new KeyserverHostStats();
+                sHostStats.put(host, stats);
+            }
+            return stats;
+        }
+    }
+
+    static void clear() {
+        synchronized (sHostStats) {
+            sHostStats.clear();
+        }
+    }
+
+    /** Records a request which got an answer from the host, even if it was an http error. */
+    synchronized void recordSuccess(long latencyMillis) {
+        mLatencyEwma = mLatencyEwma < 0
+                ? latencyMillis
+                : EWMA_WEIGHT * latencyMillis + (1 - EWMA_WEIGHT) * mLatencyEwma;
+        mErrorRateEwma = (1 - EWMA_WEIGHT) * mErrorRateEwma;
+        mLatencyWindow[mSampleCount % LATENCY_WINDOW] = latencyMillis;
+        mSampleCount += 1;
+    }
+
+    /** Records a request which failed without an answer, e.g. because of a timeout. */
+    synchronized void recordError() {
+        mErrorRateEwma = EWMA_WEIGHT + (1 - EWMA_WEIGHT) * mErrorRateEwma;
+    }
+
+    /** Returns the expected cost of a request to this host, lower is better. */
+    synchronized double getScore() {
+        double latency = mLatencyEwma < 0 ? UNKNOWN_LATENCY_MILLIS : mLatencyEwma;
+        return latency * (1 + ERROR_PENALTY * mErrorRateEwma);
+    }
+
+    /** Returns the time after which a request to this host should be hedged. */
+    synchronized long getHedgeDelay() {
+        int samples = Math.min(mSampleCount, LATENCY_WINDOW);
+        if (samples < MIN_SAMPLES_FOR_PERCENTILE) {
+            return DEFAULT_HEDGE_DELAY_MILLIS;
+        }
+        long[] sorted = Arrays.copyOf(mLatencyWindow, samples);
+        Arrays.sort(sorted);
+        long percentile = sorted[(int) Math.ceil(HEDGE_PERCENTILE * samples) - 1];
+        return Math.max(percentile, MIN_HEDGE_DELAY_MILLIS);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "KeyserverHostStats{latency=" + Math.round(mLatencyEwma) + "ms, errorRate="
+                + mErrorRateEwma + ", samples=" + mSampleCount + "}";
+    }
+
+}
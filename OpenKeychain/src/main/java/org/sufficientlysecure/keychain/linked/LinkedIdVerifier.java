@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.linked;
+
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.sufficientlysecure.keychain.operations.results.LinkedVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Preferences;
+import org.sufficientlysecure.keychain.util.Preferences.ProxyPrefs;
+
+
+/**
+ * Verifies linked identities in the background, using the {@link LinkedVerifyCache}.
+ * <p/>
+ * All linked identities of a key are checked concurrently, and results are delivered on the
+ * main thread as they arrive. Identities which are already being verified are not fetched a
+ * second time, the listener is just notified once that verification finishes.
+ * <p/>
+ * Resources are not fetched in the background if a proxy or Tor is configured, since they
+ * can't be routed through it. Only cached results are delivered then, and verification is
+ * left to the user.
+ */
+public class LinkedIdVerifier {
+
+    private static final int THREAD_COUNT = 4;
+
+    public interface OnVerifiedListener {
+        void onVerified(URI resourceUri, boolean success);
+    }
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    // listeners of verifications in progress, by cache key. only accessed on the main thread
+    private static final HashMap<String, ArrayList<OnVerifiedListener>> sPending = new HashMap<>();
+
+    /**
+     * Verifies all given resources in the background. Cached results are delivered first, all
+     * others once they are verified. Nothing is delivered for resources without a cached result
+     * if they can't be fetched.
+     */
+    public static void verifyAll(Context context, byte[] fingerprint,
+            Collection<LinkedTokenResource> resources, OnVerifiedListener listener) {
+        for (LinkedTokenResource resource : resources) {
+            submit(context, fingerprint, resource, listener, true);
+        }
+    }
+
+    /**
+     * Delivers the cached result for the resource, if there is one. The cache is read in the
+     * background, the resource is never fetched.
+     */
+    public static void getCachedResult(Context context, byte[] fingerprint,
+            LinkedTokenResource resource, OnVerifiedListener listener) {
+        submit(context, fingerprint, resource, listener, false);
+    }
+
+    private static void submit(Context context, final byte[] fingerprint,
+            final LinkedTokenResource resource, OnVerifiedListener listener, final boolean fetch) {
+        final Context appContext = context.getApplicationContext();
+        final URI resourceUri = resource.toUri();
+
+        final String key = (fetch ? "" : "cached ")
+                + KeyFormattingUtils.convertFingerprintToHex(fingerprint) + " " + resourceUri;
+        ArrayList<OnVerifiedListener> listeners = sPending.get(key);
+        if (listeners != null) {
+            listeners.add(listener);
+            return;
+        }
+        listeners = new ArrayList<>();
+        listeners.add(listener);
+        sPending.put(key, listeners);
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Boolean cached = LinkedVerifyCache.getInstance(appContext).get(fingerprint, resourceUri);
+                final Boolean success;
+                if (cached != null || !fetch || !isDirectConnectionAllowed(appContext)) {
+                    success = cached;
+                } else {
+                    success = verify(appContext, fingerprint, resource).success();
+                }
+
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ArrayList<OnVerifiedListener> listeners = sPending.remove(key);
+                        if (listeners == null || success == null) {
+                            return;
+                        }
+                        for (OnVerifiedListener listener : listeners) {
+                            listener.onVerified(resourceUri, success);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /** Resources are fetched without proxy, so they must not be fetched if one is configured. */
+    private static boolean isDirectConnectionAllowed(Context context) {
+        ProxyPrefs proxyPrefs = Preferences.getPreferences(context).getProxyPrefs();
+        return !proxyPrefs.torEnabled && !proxyPrefs.normalPorxyEnabled;
+    }
+
+    /**
+     * Verifies the resource on the calling thread, ignoring any cached result, and caches the
+     * outcome.
+     */
+    public static LinkedVerifyResult verify(Context context, byte[] fingerprint,
+            LinkedTokenResource resource) {
+        LinkedVerifyResult result = resource.verify(context, fingerprint);
+
+        if (result.success()) {
+            LinkedVerifyCache.getInstance(context).put(fingerprint, resource.toUri(), true);
+        } else if (result.getLog().containsType(LogType.MSG_LV_MATCH_ERROR)
+                || result.getLog().containsType(LogType.MSG_LV_FP_ERROR)) {
+            // the resource was there, but didn't contain the token
+            LinkedVerifyCache.getInstance(context).put(fingerprint, resource.toUri(), false);
+        }
+
+        return result;
+    }
+
+}
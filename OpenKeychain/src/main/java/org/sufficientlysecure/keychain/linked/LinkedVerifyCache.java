@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.linked;
+
+
+import java.net.URI;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+
+
+/**
+ * Persistent cache of linked identity verification results, keyed by key fingerprint and
+ * resource uri.
+ * <p/>
+ * Successful verifications are kept for a day. Failures are kept for an hour, but only if the
+ * resource was fetched and did not contain the token; fetch errors are never cached, since
+ * they are usually temporary.
+ */
+public class LinkedVerifyCache {
+
+    private static final String PREF_FILE_NAME = "linked_verify_cache";
+
+    static final long TTL_SUCCESS_MILLIS = 24 * 60 * 60 * 1000L;
+    static final long TTL_FAILURE_MILLIS = 60 * 60 * 1000L;
+
+    // prune expired entries once the cache grows beyond this
+    private static final int PRUNE_THRESHOLD = 200;
+
+    private static LinkedVerifyCache sInstance;
+
+    private final SharedPreferences mPreferences;
+
+    public static synchronized LinkedVerifyCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LinkedVerifyCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LinkedVerifyCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** Returns the cached result for the resource, or null if there is none which is still valid. */
+    public Boolean get(byte[] fingerprint, URI resourceUri) {
+        return get(fingerprint, resourceUri, System.currentTimeMillis());
+    }
+
+    Boolean get(byte[] fingerprint, URI resourceUri, long now) {
+        String value = mPreferences.getString(getKey(fingerprint, resourceUri), null);
+        if (value == null || isExpired(value, now)) {
+            return null;
+        }
+        return value.charAt(0) == '1';
+    }
+
+    public void put(byte[] fingerprint, URI resourceUri, boolean success) {
+        put(fingerprint, resourceUri, success, System.currentTimeMillis());
+    }
+
+    synchronized void put(byte[] fingerprint, URI resourceUri, boolean success, long now) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+
+        Map<String, ?> entries = mPreferences.getAll();
+        if (entries.size() >= PRUNE_THRESHOLD) {
+            for (Map.Entry<String, ?> entry : entries.entrySet()) {
+                if (!(entry.getValue() instanceof String) || isExpired((String) entry.getValue(), now)) {
+                    editor.remove(entry.getKey());
+                }
+            }
+        }
+
+        editor.putString(getKey(fingerprint, resourceUri), (success ? "1:" : "0:") + now);
+        editor.apply();
+    }
+
+    private static String getKey(byte[] fingerprint, URI resourceUri) {
+        return KeyFormattingUtils.convertFingerprintToHex(fingerprint) + " " + resourceUri;
+    }
+
+    private static boolean isExpired(String value, long now) {
+        try {
+            boolean success = value.charAt(0) == '1';
+            long time = Long.parseLong(value.substring(2));
+            long age = now - time;
+            return age < 0 || age > (success ? TTL_SUCCESS_MILLIS : TTL_FAILURE_MILLIS);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            // unreadable entries are treated as expired
+            return true;
+        }
+    }
+
+}
@@ -5,10 +5,13 @@ import android.support.annotation.DrawableRes;
 import android.support.annotation.StringRes;
 
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.linked.LinkedTokenResource;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.DnsCache;
 
+import java.io.IOException;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -16,8 +19,6 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import de.measite.minidns.Client;
-import de.measite.minidns.DNSMessage;
 import de.measite.minidns.Question;
 import de.measite.minidns.Record;
 import de.measite.minidns.Record.CLASS;
@@ -92,11 +93,14 @@ public class DnsResource extends LinkedTokenResource {
     }
 
     @Override
-    protected String fetchResource (Context context, OperationLog log, int indent) {
+    protected String fetchResource (Context context, OperationLog log, int indent) throws IOException {
 
-        Client c = new Client();
-        DNSMessage msg = c.query(new Question(mFqdn, mType, mClass));
-        Record aw = msg.getAnswers()[0];
+        Record[] answers = DnsCache.getInstance().query(new Question(mFqdn, mType, mClass));
+        if (answers.length == 0) {
+            log.add(LogType.MSG_LV_FETCH_ERROR_NOTHING, indent);
+            return null;
+        }
+        Record aw = answers[0];
         TXT txt = (TXT) aw.getPayload();
         return txt.getText().toLowerCase();
 
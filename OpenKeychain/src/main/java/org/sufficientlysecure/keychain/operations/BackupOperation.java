@@ -20,12 +20,14 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
@@ -34,6 +36,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -54,12 +57,12 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
-import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 
 /**
@@ -77,13 +80,23 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
     private static final String[] PROJECTION = new String[] {
             KeyRings.MASTER_KEY_ID,
             KeyRings.PUBKEY_DATA,
-            KeyRings.PRIVKEY_DATA,
-            KeyRings.HAS_ANY_SECRET
+            KeyRings.HAS_ANY_SECRET,
+            KeyRings.PRIVKEY_DATA
     };
+    // the same without secret key data, which is only fetched when needed
+    private static final String[] PROJECTION_PUBLIC = Arrays.copyOf(PROJECTION, 3);
     private static final int INDEX_MASTER_KEY_ID = 0;
     private static final int INDEX_PUBKEY_DATA = 1;
-    private static final int INDEX_SECKEY_DATA = 2;
-    private static final int INDEX_HAS_ANY_SECRET = 3;
+    private static final int INDEX_HAS_ANY_SECRET = 2;
+    private static final int INDEX_SECKEY_DATA = 3;
+
+    // keys fetched from the database per query, also bounded by sqlite's limit of 999 arguments
+    private static final int EXPORT_CHUNK_SIZE = 100;
+
+    // plaintext held between export and encryption at most
+    private static final int PIPE_BUFFER_SIZE = 1 << 16;
+
+    private Long mLastExportedMasterKeyId;
 
     public BackupOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
@@ -107,206 +120,419 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
 
         try {
 
-            boolean nonEncryptedOutput = backupInput.mSymmetricPassphrase == null;
-
-            Uri backupOutputUri = nonEncryptedOutput
-                    ? backupInput.mOutputUri
-                    : TemporaryFileProvider.createFile(mContext);
+            if (backupInput.mSymmetricPassphrase != null) {
+                return exportEncrypted(log, backupInput);
+            }
 
-            int exportedDataSize;
+            OutputStream outStream = new BufferedOutputStream(
+                    mContext.getContentResolver().openOutputStream(backupInput.mOutputUri));
 
-            { // export key data, and possibly return if we don't encrypt
+            boolean backupSuccess = exportKeysToStream(log, backupInput.mMasterKeyIds,
+                    backupInput.mExportSecret, backupInput.mEnableAsciiArmor,
+                    backupInput.mResumeAfterMasterKeyId, outStream);
 
-                DataOutputStream outStream = new DataOutputStream(new BufferedOutputStream(
-                        mContext.getContentResolver().openOutputStream(backupOutputUri)));
+            if (!backupSuccess) {
+                // if there was an error, it will be in the log so we just have to return
+                return new ExportResult(ExportResult.RESULT_ERROR, log);
+            }
 
-                boolean backupSuccess = exportKeysToStream(
-                        log, backupInput.mMasterKeyIds, backupInput.mExportSecret, outStream);
+            // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
+            log.add(LogType.MSG_BACKUP_SUCCESS, 1);
+            return new ExportResult(ExportResult.RESULT_OK, log);
 
-                exportedDataSize = outStream.size();
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
 
-                if (!backupSuccess) {
-                    // if there was an error, it will be in the log so we just have to return
-                    return new ExportResult(ExportResult.RESULT_ERROR, log);
-                }
+        }
 
-                if (nonEncryptedOutput) {
-                    // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
-                    log.add(LogType.MSG_BACKUP_SUCCESS, 1);
-                    return new ExportResult(ExportResult.RESULT_OK, log);
-                }
-            }
+    }
 
-            PgpSignEncryptOperation pseOp = new PgpSignEncryptOperation(mContext, mProviderHelper, mProgressable, mCancelled);
+    /**
+     * Exports keys and encrypts them in a single pass. The keys are exported on a separate
+     * thread, into a pipe which is read by the encryption, so the plaintext never hits the disk
+     * and only a bounded amount of it is held in memory. If the export fails, the encryption
+     * fails as well, and the partially written output is truncated.
+     */
+    private ExportResult exportEncrypted(OperationLog log, final BackupKeyringParcel backupInput)
+            throws FileNotFoundException {
 
-            PgpSignEncryptInputParcel inputParcel = new PgpSignEncryptInputParcel();
-            inputParcel.setSymmetricPassphrase(backupInput.mSymmetricPassphrase);
-            inputParcel.setEnableAsciiArmorOutput(true);
-            inputParcel.setAddBackupHeader(true);
+        OutputStream outStream = new BufferedOutputStream(
+                mContext.getContentResolver().openOutputStream(backupInput.mOutputUri));
 
-            InputStream inStream = mContext.getContentResolver().openInputStream(backupOutputUri);
+        final AbortablePipedInputStream pipedIn = new AbortablePipedInputStream(PIPE_BUFFER_SIZE);
+        final PipedOutputStream pipedOut;
+        try {
+            pipedOut = new PipedOutputStream(pipedIn);
+        } catch (IOException e) {
+            // only thrown if the pipe is already connected
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
 
-            String filename;
-            if (backupInput.mMasterKeyIds != null && backupInput.mMasterKeyIds.length == 1) {
-                filename = Constants.FILE_BACKUP_PREFIX + KeyFormattingUtils.convertKeyIdToHex(backupInput.mMasterKeyIds[0]);
-            } else {
-                filename = Constants.FILE_BACKUP_PREFIX + new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(new Date());
+        // the export thread logs separately, its log is merged after it is done
+        final OperationLog exportLog = new OperationLog();
+        final boolean[] exportSuccess = { false };
+        Thread exportThread = new Thread("backup export") {
+            @Override
+            public void run() {
+                // buffered, since the armored output writes single bytes into the pipe
+                boolean success = exportKeysToStream(exportLog, backupInput.mMasterKeyIds,
+                        backupInput.mExportSecret, true, backupInput.mResumeAfterMasterKeyId,
+                        new BufferedOutputStream(new UnclosedOutputStream(pipedOut)));
+                // the pipe is closed only here, so the encryption can't end normally on failure
+                if (!success) {
+                    pipedIn.abort();
+                }
+                try {
+                    pipedOut.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "error closing pipe", e);
+                }
+                exportSuccess[0] = success;
             }
-            filename += backupInput.mExportSecret ? Constants.FILE_EXTENSION_BACKUP_SECRET : Constants.FILE_EXTENSION_BACKUP_PUBLIC;
+        };
 
-            InputData inputData = new InputData(inStream, exportedDataSize, filename);
+        // progress is reported by the export, the encryption only follows it
+        PgpSignEncryptOperation pseOp = new PgpSignEncryptOperation(
+                mContext, mProviderHelper, new ProgressScaler(), mCancelled);
 
-            OutputStream outStream = mContext.getContentResolver().openOutputStream(backupInput.mOutputUri);
-            outStream = new BufferedOutputStream(outStream);
+        PgpSignEncryptInputParcel inputParcel = new PgpSignEncryptInputParcel();
+        inputParcel.setSymmetricPassphrase(backupInput.mSymmetricPassphrase);
+        inputParcel.setEnableAsciiArmorOutput(backupInput.mEnableAsciiArmor);
+        inputParcel.setAddBackupHeader(true);
 
-            PgpSignEncryptResult encryptResult = pseOp.execute(inputParcel, new CryptoInputParcel(), inputData, outStream);
-            if (!encryptResult.success()) {
-                log.addByMerge(encryptResult, 1);
-                // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
-                return new ExportResult(ExportResult.RESULT_ERROR, log);
-            }
+        String filename;
+        if (backupInput.mMasterKeyIds != null && backupInput.mMasterKeyIds.length == 1) {
+            filename = Constants.FILE_BACKUP_PREFIX + KeyFormattingUtils.convertKeyIdToHex(backupInput.mMasterKeyIds[0]);
+        } else {
+            filename = Constants.FILE_BACKUP_PREFIX + new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(new Date());
+        }
+        filename += backupInput.mExportSecret ? Constants.FILE_EXTENSION_BACKUP_SECRET : Constants.FILE_EXTENSION_BACKUP_PUBLIC;
 
-            log.add(encryptResult, 1);
-            log.add(LogType.MSG_BACKUP_SUCCESS, 1);
-            return new ExportResult(ExportResult.RESULT_OK, log);
+        // the size of the exported data is not known in advance
+        InputData inputData = new InputData(pipedIn, -1, filename);
 
-        } catch (FileNotFoundException e) {
-            log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+        PgpSignEncryptResult encryptResult;
+        exportThread.start();
+        try {
+            encryptResult = pseOp.execute(inputParcel, new CryptoInputParcel(), inputData, outStream);
+        } finally {
+            // if encryption stopped early, this makes the export fail instead of blocking
+            try {
+                pipedIn.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "error closing pipe", e);
+            }
+        }
+
+        try {
+            exportThread.join();
+        } catch (InterruptedException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            log.addByMerge(encryptResult, 1);
+            truncateOutput(outStream, backupInput.mOutputUri);
             return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
 
+        log.addAll(exportLog);
+        if (!exportSuccess[0] || !encryptResult.success()) {
+            // if there was an error, it will be in the log
+            log.addByMerge(encryptResult, 1);
+            // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
+            truncateOutput(outStream, backupInput.mOutputUri);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
         }
 
+        log.add(encryptResult, 1);
+        log.add(LogType.MSG_BACKUP_SUCCESS, 1);
+        return new ExportResult(ExportResult.RESULT_OK, log);
+
+    }
+
+    /** Truncates the output of a failed backup, so no partial backup is left behind. */
+    private void truncateOutput(OutputStream outStream, Uri outputUri) {
+        try {
+            outStream.close();
+        } catch (IOException e) {
+            // already closed by the encryption
+        }
+        try {
+            OutputStream truncatedStream = mContext.getContentResolver().openOutputStream(outputUri, "wt");
+            if (truncatedStream != null) {
+                truncatedStream.close();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(Constants.TAG, "error truncating output of failed backup", e);
+        }
     }
 
     boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret, OutputStream outStream) {
+        return exportKeysToStream(log, masterKeyIds, exportSecret, true, null, outStream);
+    }
+
+    /**
+     * Exports keys to a stream, ordered by master key id. Keys are read from the database in
+     * chunks of {@value #EXPORT_CHUNK_SIZE}, so only a few keyring blobs are held at a time.
+     *
+     * @param armor write all keyrings into a single ascii armor block, or binary otherwise
+     * @param resumeAfterMasterKeyId if not null, only keys with a greater master key id are
+     *                               exported. Together with {@link #getLastExportedMasterKeyId()}
+     *                               this allows resuming an interrupted export.
+     */
+    boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret,
+                               boolean armor, Long resumeAfterMasterKeyId, OutputStream outStream) {
 
         // noinspection unused TODO use these in a log entry
         int okSecret = 0, okPublic = 0;
 
-        int progress = 0;
-
-        Cursor cursor = queryForKeys(masterKeyIds);
-
-        if (cursor == null || !cursor.moveToFirst()) {
-            log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
-            return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
-        }
+        CountingOutputStream countingOutStream = new CountingOutputStream(outStream);
+        // a single encoder for all keys, so they end up in one armor block
+        OutputStream keyOutStream = armor ? new ArmoredOutputStream(countingOutStream) : countingOutStream;
+        long startTime = SystemClock.elapsedRealtime();
 
         try {
 
-            int numKeys = cursor.getCount();
+            long[] exportIds = getSortedMasterKeyIds(masterKeyIds, resumeAfterMasterKeyId);
+            if (exportIds == null || (exportIds.length == 0 && resumeAfterMasterKeyId == null)) {
+                log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
+                return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
+            }
+
+            int numKeys = exportIds.length;
 
             updateProgress(mContext.getResources().getQuantityString(R.plurals.progress_exporting_key, numKeys),
                     0, numKeys);
 
-            // For each public masterKey id
-            while (!cursor.isAfterLast()) {
+            String[] projection = exportSecret ? PROJECTION : PROJECTION_PUBLIC;
+            int progress = 0;
 
-                long keyId = cursor.getLong(INDEX_MASTER_KEY_ID);
-                log.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyId));
+            for (int chunkStart = 0; chunkStart < numKeys; chunkStart += EXPORT_CHUNK_SIZE) {
+                int chunkEnd = Math.min(chunkStart + EXPORT_CHUNK_SIZE, numKeys);
+
+                Cursor cursor = queryForKeys(projection, exportIds, chunkStart, chunkEnd);
+                if (cursor == null) {
+                    log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
+                    return false;
+                }
 
-                if (writePublicKeyToStream(log, outStream, cursor)) {
-                    okPublic += 1;
+                try {
+                    // For each public masterKey id
+                    while (cursor.moveToNext()) {
 
-                    boolean hasSecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
-                    if (exportSecret && hasSecret) {
-                        log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(keyId));
-                        if (writeSecretKeyToStream(log, outStream, cursor)) {
-                            okSecret += 1;
+                        long keyId = cursor.getLong(INDEX_MASTER_KEY_ID);
+                        log.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyId));
+
+                        if (writeKeyToStream(log, keyOutStream, cursor.getBlob(INDEX_PUBKEY_DATA))) {
+                            okPublic += 1;
+
+                            boolean hasSecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
+                            if (exportSecret && hasSecret) {
+                                log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(keyId));
+                                if (writeKeyToStream(log, keyOutStream, cursor.getBlob(INDEX_SECKEY_DATA))) {
+                                    okSecret += 1;
+                                }
+                            }
                         }
+
+                        mLastExportedMasterKeyId = keyId;
+                        updateProgress(progress++, numKeys);
                     }
+                } finally {
+                    cursor.close();
                 }
 
-                updateProgress(progress++, numKeys);
-                cursor.moveToNext();
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+                    return false;
+                }
+            }
+
+            if (progress == 0 && resumeAfterMasterKeyId == null) {
+                // none of the requested keys are in the database
+                log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
+                return false;
             }
 
             updateProgress(R.string.progress_done, numKeys, numKeys);
 
+            long time = SystemClock.elapsedRealtime() - startTime;
+            log.add(LogType.MSG_BACKUP_STATS, 1, progress, countingOutStream.getCount(), time,
+                    progress * 1000L / Math.max(time, 1));
+
         } catch (IOException e) {
             log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
             return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
         } finally {
             // Make sure the stream is closed
-            if (outStream != null) try {
-                outStream.close();
+            try {
+                // the armored stream only writes its footer, it doesn't close the underlying stream
+                if (armor) {
+                    keyOutStream.close();
+                }
+                countingOutStream.close();
             } catch (Exception e) {
                 Log.e(Constants.TAG, "error closing stream", e);
             }
-            cursor.close();
         }
 
         return true;
 
     }
 
-    private boolean writePublicKeyToStream(OperationLog log, OutputStream outStream, Cursor cursor)
-            throws IOException {
+    /** Returns the master key id of the last key written by the export, or null if none was. */
+    public Long getLastExportedMasterKeyId() {
+        return mLastExportedMasterKeyId;
+    }
 
-        ArmoredOutputStream arOutStream = null;
+    private boolean writeKeyToStream(OperationLog log, OutputStream outStream, byte[] data)
+            throws IOException {
 
         try {
-            arOutStream = new ArmoredOutputStream(outStream);
-            byte[] data = cursor.getBlob(INDEX_PUBKEY_DATA);
             CanonicalizedKeyRing ring = UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
-            ring.encode(arOutStream);
+            ring.encode(outStream);
 
         } catch (PgpGeneralException e) {
             log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
-        } finally {
-            if (arOutStream != null) {
-                arOutStream.close();
-            }
         }
         return true;
     }
 
-    private boolean writeSecretKeyToStream(OperationLog log, OutputStream outStream, Cursor cursor)
-            throws IOException {
-
-        ArmoredOutputStream arOutStream = null;
+    /**
+     * Returns the master key ids to export in ascending order, either the given ones or all in
+     * the database. Only the ids are queried here, the keyring data is fetched in chunks later.
+     */
+    private long[] getSortedMasterKeyIds(long[] masterKeyIds, Long resumeAfterMasterKeyId) {
 
-        try {
-            arOutStream = new ArmoredOutputStream(outStream);
-            byte[] data = cursor.getBlob(INDEX_SECKEY_DATA);
-            CanonicalizedKeyRing ring = UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
-            ring.encode(arOutStream);
-
-        } catch (PgpGeneralException e) {
-            log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
-        } finally {
-            if (arOutStream != null) {
-                arOutStream.close();
+        long[] result;
+        if (masterKeyIds != null) {
+            result = masterKeyIds.clone();
+            Arrays.sort(result);
+        } else {
+            Cursor cursor = mProviderHelper.getContentResolver().query(
+                    KeyRings.buildUnifiedKeyRingsUri(), new String[] { KeyRings.MASTER_KEY_ID },
+                    null, null, Tables.KEYS + "." + KeyRings.MASTER_KEY_ID);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                result = new long[cursor.getCount()];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    result[i] = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
             }
         }
-        return true;
-    }
 
-    private Cursor queryForKeys(long[] masterKeyIds) {
+        if (resumeAfterMasterKeyId != null) {
+            int i = 0;
+            while (i < result.length && result[i] <= resumeAfterMasterKeyId) {
+                i++;
+            }
+            result = Arrays.copyOfRange(result, i, result.length);
+        }
 
-        String selection = null, selectionArgs[] = null;
+        return result;
 
-        if (masterKeyIds != null) {
-            // convert long[] to String[]
-            selectionArgs = new String[masterKeyIds.length];
-            for (int i = 0; i < masterKeyIds.length; i++) {
-                selectionArgs[i] = Long.toString(masterKeyIds[i]);
-            }
+    }
 
-            // generates ?,?,? as placeholders for selectionArgs
-            String placeholders = TextUtils.join(",",
-                    Collections.nCopies(masterKeyIds.length, "?"));
+    private Cursor queryForKeys(String[] projection, long[] masterKeyIds, int start, int end) {
 
-            // put together selection string
-            selection = Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
-                    + " IN (" + placeholders + ")";
+        // convert long[] to String[]
+        String[] selectionArgs = new String[end - start];
+        for (int i = start; i < end; i++) {
+            selectionArgs[i - start] = Long.toString(masterKeyIds[i]);
         }
 
+        // generates ?,?,? as placeholders for selectionArgs
+        String placeholders = TextUtils.join(",",
+                Collections.nCopies(selectionArgs.length, "?"));
+
+        // put together selection string
+        String selection = Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
+                + " IN (" + placeholders + ")";
+
         return mProviderHelper.getContentResolver().query(
-                KeyRings.buildUnifiedKeyRingsUri(), PROJECTION, selection, selectionArgs,
+                KeyRings.buildUnifiedKeyRingsUri(), projection, selection, selectionArgs,
                 Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
         );
 
     }
 
-}
\ No newline at end of file
+    /** A pipe whose reader gets an error instead of the end of the stream if it was aborted. */
+    private static class AbortablePipedInputStream extends PipedInputStream {
+
+        private volatile boolean mAborted = false;
+
+        AbortablePipedInputStream(int pipeSize) {
+            super(pipeSize);
+        }
+
+        void abort() {
+            mAborted = true;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b == -1 && mAborted) {
+                throw new IOException("export aborted");
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count == -1 && mAborted) {
+                throw new IOException("export aborted");
+            }
+            return count;
+        }
+    }
+
+    /** Passes writes through, but leaves closing the wrapped stream to its owner. */
+    private static class UnclosedOutputStream extends FilterOutputStream {
+
+        UnclosedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long mCount = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount += 1;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
+}
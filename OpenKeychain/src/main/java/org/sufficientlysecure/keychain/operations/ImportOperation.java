@@ -84,6 +84,8 @@ import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
     public static final int MAX_THREADS = 10;
+    // debug entries of the accumulated log beyond this number are dropped
+    public static final int MAX_DEBUG_LOG_ENTRIES = 5000;
 
     public ImportOperation(Context context, ProviderHelper providerHelper, Progressable
             progressable) {
@@ -137,6 +139,19 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
     private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int num,
                                                 String keyServerUri, Progressable progressable,
                                                 @NonNull Proxy proxy) {
+        // key lists are refreshed once after the import, not for every single key
+        mProviderHelper.beginBulkOperation();
+        try {
+            return importKeyRings(entries, num, keyServerUri, progressable, proxy);
+        } finally {
+            mProviderHelper.endBulkOperation();
+        }
+    }
+
+    @NonNull
+    private ImportKeyResult importKeyRings(Iterator<ParcelableKeyRing> entries, int num,
+                                           String keyServerUri, Progressable progressable,
+                                           @NonNull Proxy proxy) {
         if (progressable != null) {
             progressable.setProgress(R.string.progress_importing, 0, 100);
         }
@@ -457,8 +472,20 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
     @NonNull
     private ImportKeyResult multiThreadedKeyImport(@NonNull Iterator<ParcelableKeyRing> keyListIterator,
-                                                   int totKeys, final String keyServer,
-                                                   final Proxy proxy) {
+                                                   int totKeys, String keyServer, Proxy proxy) {
+        // as for serial imports, key lists are refreshed once after all workers are done
+        mProviderHelper.beginBulkOperation();
+        try {
+            return importKeyRingsMultiThreaded(keyListIterator, totKeys, keyServer, proxy);
+        } finally {
+            mProviderHelper.endBulkOperation();
+        }
+    }
+
+    @NonNull
+    private ImportKeyResult importKeyRingsMultiThreaded(@NonNull Iterator<ParcelableKeyRing> keyListIterator,
+                                                        int totKeys, final String keyServer,
+                                                        final Proxy proxy) {
         Log.d(Constants.TAG, "Multi-threaded key import starting");
         KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
 
@@ -487,7 +514,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                     ArrayList<ParcelableKeyRing> list = new ArrayList<>();
                     list.add(pkRing);
 
-                    return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable, proxy);
+                    return importKeyRings(list.iterator(), 1, keyServer, ignoreProgressable, proxy);
                 }
             };
 
@@ -502,7 +529,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                         "import", e);
                 // do nothing?
                 if (e instanceof ExecutionException) {
-                    // Since serialKeyRingImport does not throw any exceptions, this is what
+                    // Since importKeyRings does not throw any exceptions, this is what
                     // would have happened if
                     // we were importing the key on this thread
                     throw new RuntimeException();
@@ -540,6 +567,9 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         public KeyImportAccumulator(int totalKeys, Progressable externalProgressable) {
             mTotalKeys = totalKeys;
             mProgressable = externalProgressable;
+            // logs of bulk imports can be huge, keep them out of memory
+            mImportLog.enableSpilling();
+            mImportLog.setMaxDebugEntries(MAX_DEBUG_LOG_ENTRIES);
             if (mProgressable != null) {
                 mProgressable.setProgress(0, totalKeys);
             }
@@ -558,7 +588,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
             boolean notCancelledOrFirstCancelled = !result.cancelled() || !mHasCancelledResult;
             if (notCancelledOrFirstCancelled) {
-                mImportLog.addAll(result.getLog().toList()); //accumulates log
+                mImportLog.addAll(result.getLog()); //accumulates log
                 if (result.cancelled()) {
                     mHasCancelledResult = true;
                 }
@@ -26,12 +26,16 @@ import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 
+import java.util.ArrayList;
+
 public class DecryptVerifyResult extends InputPendingResult {
 
     public static final int RESULT_NO_DATA = RESULT_ERROR + 16;
     public static final int RESULT_KEY_DISALLOWED = RESULT_ERROR + 32;
 
     OpenPgpSignatureResult mSignatureResult;
+    // results of all verified signatures, if there is more than one signer
+    ArrayList<OpenPgpSignatureResult> mSignatureResults;
     OpenPgpDecryptionResult mDecryptionResult;
     OpenPgpMetadata mDecryptionMetadata;
 
@@ -56,6 +60,7 @@ public class DecryptVerifyResult extends InputPendingResult {
         mDecryptionResult = source.readParcelable(OpenPgpDecryptionResult.class.getClassLoader());
         mDecryptionMetadata = source.readParcelable(OpenPgpMetadata.class.getClassLoader());
         mCachedCryptoInputParcel = source.readParcelable(CryptoInputParcel.class.getClassLoader());
+        mSignatureResults = source.createTypedArrayList(OpenPgpSignatureResult.CREATOR);
     }
 
 
@@ -71,6 +76,14 @@ public class DecryptVerifyResult extends InputPendingResult {
         mSignatureResult = signatureResult;
     }
 
+    public ArrayList<OpenPgpSignatureResult> getSignatureResults() {
+        return mSignatureResults;
+    }
+
+    public void setSignatureResults(ArrayList<OpenPgpSignatureResult> signatureResults) {
+        mSignatureResults = signatureResults;
+    }
+
     public OpenPgpDecryptionResult getDecryptionResult() {
         return mDecryptionResult;
     }
@@ -113,6 +126,7 @@ public class DecryptVerifyResult extends InputPendingResult {
         dest.writeParcelable(mDecryptionResult, flags);
         dest.writeParcelable(mDecryptionMetadata, flags);
         dest.writeParcelable(mCachedCryptoInputParcel, flags);
+        dest.writeTypedList(mSignatureResults);
     }
 
     public static final Creator<DecryptVerifyResult> CREATOR = new Creator<DecryptVerifyResult>() {
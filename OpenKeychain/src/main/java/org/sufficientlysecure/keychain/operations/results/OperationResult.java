@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.operations.results;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.os.Parcel;
@@ -33,14 +34,15 @@ import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.ActionListener;
 import org.sufficientlysecure.keychain.ui.util.Notify.Showable;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
-import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableCache;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Represent the result of an operation.
@@ -63,7 +65,15 @@ public abstract class OperationResult implements Parcelable {
      */
     private static ParcelableCache<OperationLog> logCache;
     static {
-        logCache = new ParcelableCache<>();
+        logCache = new ParcelableCache<OperationLog>() {
+            @Override
+            protected void onExpired(OperationLog log) {
+                if (log.releaseTicket(false)) {
+                    // nobody can get this log anymore, delete its spilled entries now
+                    log.clear();
+                }
+            }
+        };
     }
 
     /** Holds the overall result, the number specifying varying degrees of success:
@@ -90,6 +100,9 @@ public abstract class OperationResult implements Parcelable {
         mResult = source.readInt();
         // get log out of cache based on UUID from source
         mLog = logCache.readFromParcelAndGetFromCache(source);
+        if (mLog != null) {
+            mLog.releaseTicket(true);
+        }
     }
 
     public int getResult() {
@@ -123,7 +136,9 @@ public abstract class OperationResult implements Parcelable {
             mType = type;
             mParameters = parameters;
             mIndent = indent;
-            Log.v(Constants.TAG, "log: " + this);
+            if (Constants.DEBUG) {
+                Log.v(Constants.TAG, "log: " + this);
+            }
         }
 
         /** Clones this LogEntryParcel, adding extra indent. Note that the parameter array is NOT cloned! */
@@ -207,7 +222,9 @@ public abstract class OperationResult implements Parcelable {
             super(type, indent, parameters);
             mSubResult = subResult;
 
-            Log.v(Constants.TAG, "log: " + this);
+            if (Constants.DEBUG) {
+                Log.v(Constants.TAG, "log: " + this);
+            }
         }
 
         public SubLogEntryParcel(Parcel source) {
@@ -666,6 +683,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_CLEAR_SIGNATURE_CHECK (LogLevel.DEBUG, R.string.msg_dc_clear_signature_check),
         MSG_DC_CLEAR_SIGNATURE_OK (LogLevel.OK, R.string.msg_dc_clear_signature_ok),
         MSG_DC_CLEAR_SIGNATURE (LogLevel.DEBUG, R.string.msg_dc_clear_signature),
+        MSG_DC_CLEAR_SIGNATURE_SIGNER (LogLevel.INFO, R.string.msg_dc_clear_signature_signer),
         MSG_DC_ERROR_BAD_PASSPHRASE (LogLevel.ERROR, R.string.msg_dc_error_bad_passphrase),
         MSG_DC_ERROR_SYM_PASSPHRASE (LogLevel.ERROR, R.string.msg_dc_error_sym_passphrase),
         MSG_DC_ERROR_CORRUPT_DATA (LogLevel.ERROR, R.string.msg_dc_error_corrupt_data),
@@ -783,6 +801,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_BACKUP(LogLevel.START, R.plurals.msg_backup),
         MSG_BACKUP_PUBLIC(LogLevel.DEBUG, R.string.msg_backup_public),
         MSG_BACKUP_SECRET(LogLevel.DEBUG, R.string.msg_backup_secret),
+        MSG_BACKUP_STATS(LogLevel.DEBUG, R.string.msg_backup_stats),
         MSG_BACKUP_ALL(LogLevel.START, R.string.msg_backup_all),
         MSG_BACKUP_ERROR_URI_OPEN(LogLevel.ERROR, R.string.msg_backup_error_uri_open),
         MSG_BACKUP_ERROR_DB(LogLevel.ERROR, R.string.msg_backup_error_db),
@@ -939,36 +958,127 @@ public abstract class OperationResult implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(mResult);
         // cache log and write UUID to dest
+        if (mLog != null) {
+            mLog.acquireTicket();
+        }
         logCache.cacheAndWriteToParcel(mLog, dest);
     }
 
+    /**
+     * The log of an operation.
+     * <p/>
+     * Logs of bulk operations can grow very large. For these, {@link #enableSpilling()} moves
+     * entries to a compact temporary file once more than {@value #MAX_ENTRIES_IN_MEMORY} of them
+     * are held in memory, and {@link #setMaxDebugEntries(int)} caps the number of debug entries.
+     * Entries should be accessed with {@link #size()} and {@link #get(int)} or iterated, which
+     * pages them in from the file as needed, see {@link #isInMemory(int)}. The file is deleted by
+     * {@link #clear()}, when the log expires from the parcel cache without ever being read back,
+     * or at the latest on the next app start. Once read back, the reader owns the file.
+     */
     public static class OperationLog implements Iterable<LogEntryParcel> {
 
+        private static final int MAX_ENTRIES_IN_MEMORY = 1000;
+
         private final List<LogEntryParcel> mParcels = new ArrayList<>();
+        // older entries, if spilling is enabled and the log grew too large
+        private SpilledLogEntries mSpilled;
+        private boolean mSpillingEnabled = false;
+
+        // tickets of the parcel cache which are not read back yet, and whether any ever was
+        private int mPendingTickets = 0;
+        private boolean mDelivered = false;
+
+        private int mMaxDebugEntries = -1;
+        private int mDebugEntries = 0;
+        private int mDroppedEntries = 0;
+
+        /** Moves entries to a temporary file when the log grows large. */
+        public void enableSpilling() {
+            mSpillingEnabled = true;
+        }
+
+        /** Deletes files of spilled logs left behind by processes which are gone. */
+        public static void deleteOrphanedSpillFiles(Context context) {
+            SpilledLogEntries.deleteOrphanedFiles(context);
+        }
+
+        /** Drops debug entries beyond the given number, -1 for no limit. */
+        public void setMaxDebugEntries(int maxDebugEntries) {
+            mMaxDebugEntries = maxDebugEntries;
+        }
+
+        /** Returns the number of entries dropped because of the debug entry limit. */
+        public int getDroppedEntryCount() {
+            return mDroppedEntries;
+        }
+
+        private void addEntry(LogEntryParcel entry) {
+            if (entry.mType.mLevel == LogLevel.DEBUG && mMaxDebugEntries >= 0) {
+                if (mDebugEntries >= mMaxDebugEntries) {
+                    mDroppedEntries += 1;
+                    return;
+                }
+                mDebugEntries += 1;
+            }
+
+            mParcels.add(entry);
+            if (mSpillingEnabled && mParcels.size() > MAX_ENTRIES_IN_MEMORY) {
+                spill();
+            }
+        }
+
+        private void spill() {
+            try {
+                if (mSpilled == null) {
+                    mSpilled = new SpilledLogEntries();
+                }
+                mSpilled.appendAll(mParcels);
+                mParcels.clear();
+            } catch (IOException e) {
+                // none of these entries were spilled, keep them and all further ones in memory
+                Log.e(Constants.TAG, "error spilling log, keeping it in memory", e);
+                mSpillingEnabled = false;
+                if (mSpilled != null && mSpilled.size() == 0) {
+                    mSpilled.delete();
+                    mSpilled = null;
+                }
+            }
+        }
+
+        synchronized void acquireTicket() {
+            mPendingTickets += 1;
+        }
+
+        /** Returns true if the ticket was the last one, and the log was never read back. */
+        synchronized boolean releaseTicket(boolean delivered) {
+            mPendingTickets -= 1;
+            mDelivered |= delivered;
+            return mPendingTickets == 0 && !mDelivered;
+        }
 
         /// Simple convenience method
         public void add(LogType type, int indent, Object... parameters) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, parameters));
+            addEntry(new OperationResult.LogEntryParcel(type, indent, parameters));
         }
 
         public void add(LogType type, int indent) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, (Object[]) null));
+            addEntry(new OperationResult.LogEntryParcel(type, indent, (Object[]) null));
         }
 
         public void add(OperationResult subResult, int indent) {
             OperationLog subLog = subResult.getLog();
-            mParcels.add(new SubLogEntryParcel(subResult, subLog.getFirst().mType, indent, subLog.getFirst().mParameters));
+            addEntry(new SubLogEntryParcel(subResult, subLog.getFirst().mType, indent, subLog.getFirst().mParameters));
         }
 
         public void addByMerge(OperationResult subResult, int indent) {
             OperationLog subLog = subResult.getLog();
             for (LogEntryParcel entry : subLog) {
-                mParcels.add(new LogEntryParcel(entry, indent));
+                addEntry(new LogEntryParcel(entry, indent));
             }
         }
 
         public SubLogEntryParcel getSubResultIfSingle() {
-            if (mParcels.size() != 1) {
+            if (size() != 1) {
                 return null;
             }
             LogEntryParcel first = getFirst();
@@ -980,10 +1090,14 @@ public abstract class OperationResult implements Parcelable {
 
         public void clear() {
             mParcels.clear();
+            if (mSpilled != null) {
+                mSpilled.delete();
+                mSpilled = null;
+            }
         }
 
         public boolean containsType(LogType type) {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
+            for (LogEntryParcel entry : this) {
                 if (entry.mType == type) {
                     return true;
                 }
@@ -992,7 +1106,7 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public boolean containsWarnings() {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
+            for (LogEntryParcel entry : this) {
                 if (entry.mType.mLevel == LogLevel.WARN || entry.mType.mLevel == LogLevel.ERROR) {
                     return true;
                 }
@@ -1001,29 +1115,66 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public void addAll(List<LogEntryParcel> parcels) {
-            mParcels.addAll(parcels);
+            for (LogEntryParcel entry : parcels) {
+                addEntry(entry);
+            }
         }
 
+        public void addAll(OperationLog log) {
+            for (LogEntryParcel entry : log) {
+                addEntry(entry);
+            }
+        }
+
+        /** Returns all entries as a list. For large logs, prefer {@link #get(int)}. */
         public List<LogEntryParcel> toList() {
-            return mParcels;
+            if (mSpilled == null) {
+                return mParcels;
+            }
+            ArrayList<LogEntryParcel> result = new ArrayList<>(size());
+            for (LogEntryParcel entry : this) {
+                result.add(entry);
+            }
+            return result;
+        }
+
+        public int size() {
+            return (mSpilled != null ? mSpilled.size() : 0) + mParcels.size();
+        }
+
+        public LogEntryParcel get(int position) {
+            int spilledSize = mSpilled != null ? mSpilled.size() : 0;
+            if (position < spilledSize) {
+                return mSpilled.get(position);
+            }
+            return mParcels.get(position - spilledSize);
+        }
+
+        /**
+         * Returns whether the entry at the given position can be returned by {@link #get(int)}
+         * without reading it from a file. Otherwise, get it off the main thread first.
+         */
+        public boolean isInMemory(int position) {
+            int spilledSize = mSpilled != null ? mSpilled.size() : 0;
+            return position >= spilledSize || mSpilled.isCached(position);
         }
 
         public boolean isEmpty() {
-            return mParcels.isEmpty();
+            return size() == 0;
         }
 
         public LogEntryParcel getFirst() {
-            if (mParcels.isEmpty()) {
+            if (isEmpty()) {
                 return null;
             }
-            return mParcels.get(0);
+            return get(0);
         }
 
         public LogEntryParcel getLast() {
-            if (mParcels.isEmpty()) {
+            if (isEmpty()) {
                 return null;
             }
-            LogEntryParcel last = mParcels.get(mParcels.size() -1);
+            LogEntryParcel last = get(size() - 1);
             if (last instanceof SubLogEntryParcel) {
                 return ((SubLogEntryParcel) last).getSubResult().getLog().getLast();
             }
@@ -1032,7 +1183,30 @@ public abstract class OperationResult implements Parcelable {
 
         @Override
         public Iterator<LogEntryParcel> iterator() {
-            return mParcels.iterator();
+            if (mSpilled == null) {
+                return mParcels.iterator();
+            }
+            return new Iterator<LogEntryParcel>() {
+                int mPosition = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return mPosition < size();
+                }
+
+                @Override
+                public LogEntryParcel next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return get(mPosition++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
 
         /**
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.content.Context;
+import android.os.Parcel;
+import android.os.Process;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Append-only storage of log entries in a temporary file, used by {@link OperationResult.OperationLog}
+ * for large logs.
+ * <p/>
+ * Entries are written in a compact binary form: log types by their numeric code, and string
+ * parameters as indices into a table of interned strings, which is kept in memory. Results of
+ * sub log entries are written as well, followed by their own log. Entries are read back in pages
+ * of {@value #PAGE_SIZE}, of which a few are cached, so sequential access only reads the file once.
+ * Entries are appended in batches, which are either written completely or not at all.
+ * <p/>
+ * Files are named after the process which wrote them, so files of processes which are gone
+ * can be deleted on startup, see {@link #deleteOrphanedFiles(Context)}.
+ */
+class SpilledLogEntries {
+
+    private static final String FILE_PREFIX = "oklog";
+
+    private static final int PAGE_SIZE = 128;
+    private static final int CACHED_PAGES = 4;
+
+    private static final byte ENTRY = 0;
+    private static final byte SUB_ENTRY = 1;
+
+    private static final byte PARAM_NULL = 0;
+    private static final byte PARAM_INTEGER = 1;
+    private static final byte PARAM_LONG = 2;
+    private static final byte PARAM_STRING = 3;
+    private static final byte PARAM_SERIALIZED = 4;
+
+    private static final LogType[] LOG_TYPES = LogType.values();
+
+    private final File mFile;
+    private final FileOutputStream mFileOut;
+    private final DataOutputStream mOut;
+    // length of the file up to the last completely written batch
+    private long mCommittedLength = 0;
+    private boolean mFailed = false;
+
+    private int mSize = 0;
+    // file offset of the first entry of each page
+    private long[] mPageOffsets = new long[16];
+
+    private final ArrayList<String> mStrings = new ArrayList<>();
+    private final HashMap<String, Integer> mStringIds = new HashMap<>();
+
+    private final LinkedHashMap<Integer, LogEntryParcel[]> mPageCache =
+            new LinkedHashMap<Integer, LogEntryParcel[]>(CACHED_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, LogEntryParcel[]> eldest) {
+                    return size() > CACHED_PAGES;
+                }
+            };
+
+    SpilledLogEntries() throws IOException {
+        // java.io.tmpdir points to the app's cache dir on Android
+        mFile = File.createTempFile(FILE_PREFIX + Process.myPid() + "-", null);
+        mFileOut = new FileOutputStream(mFile);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileOut, 1 << 16));
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Appends all given entries, or none of them if writing fails. After a failure, the file is
+     * truncated to the entries written before, and no further entries can be appended.
+     */
+    synchronized void appendAll(List<LogEntryParcel> entries) throws IOException {
+        if (mFailed) {
+            throw new IOException("spilled log failed before");
+        }
+
+        int size = mSize;
+        int stringCount = mStrings.size();
+        try {
+            for (LogEntryParcel entry : entries) {
+                append(entry);
+            }
+            mOut.flush();
+            mCommittedLength = mOut.size();
+        } catch (IOException | RuntimeException e) {
+            // e.g. a parameter which is not serializable
+            mFailed = true;
+            mSize = size;
+            while (mStrings.size() > stringCount) {
+                mStringIds.remove(mStrings.remove(mStrings.size() - 1));
+            }
+            // pages read before are still valid, the last one may have been dropped
+            try {
+                mFileOut.getChannel().truncate(mCommittedLength);
+            } catch (IOException truncateException) {
+                Log.e(Constants.TAG, "could not truncate spilled log", truncateException);
+            }
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    private void append(LogEntryParcel entry) throws IOException {
+        if (mSize % PAGE_SIZE == 0) {
+            int page = mSize / PAGE_SIZE;
+            if (page == mPageOffsets.length) {
+                long[] pageOffsets = new long[mPageOffsets.length * 2];
+                System.arraycopy(mPageOffsets, 0, pageOffsets, 0, mPageOffsets.length);
+                mPageOffsets = pageOffsets;
+            }
+            // bytes written so far, including those still buffered
+            mPageOffsets[page] = mOut.size();
+        }
+
+        writeEntry(entry);
+
+        mSize += 1;
+        // the last page may have been cached incomplete
+        mPageCache.remove((mSize - 1) / PAGE_SIZE);
+    }
+
+    synchronized LogEntryParcel get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("no log entry " + position);
+        }
+        int page = position / PAGE_SIZE;
+        LogEntryParcel[] entries = mPageCache.get(page);
+        if (entries == null) {
+            try {
+                entries = readPage(page);
+            } catch (IOException e) {
+                // the file is in our own cache dir, this is not expected to happen
+                throw new IllegalStateException("error reading spilled log", e);
+            }
+            mPageCache.put(page, entries);
+        }
+        return entries[position % PAGE_SIZE];
+    }
+
+    synchronized void delete() {
+        mPageCache.clear();
+        try {
+            // buffered data is discarded, it is of no use once the file is gone
+            mFileOut.close();
+        } catch (IOException e) {
+            // ignore, the file is deleted anyways
+        }
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(Constants.TAG, "could not delete spilled log " + mFile);
+        }
+    }
+
+    /**
+     * Deletes files of spilled logs whose process is gone, e.g. because it crashed or was
+     * killed before the logs were collected. Files of other live processes are kept.
+     */
+    static void deleteOrphanedFiles(Context context) {
+        HashSet<String> livePrefixes = new HashSet<>();
+        livePrefixes.add(FILE_PREFIX + Process.myPid() + "-");
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        List<RunningAppProcessInfo> processes = activityManager.getRunningAppProcesses();
+        if (processes != null) {
+            for (RunningAppProcessInfo process : processes) {
+                livePrefixes.add(FILE_PREFIX + process.pid + "-");
+            }
+        }
+
+        File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(FILE_PREFIX)) {
+                continue;
+            }
+            int pidEnd = name.indexOf('-');
+            if (pidEnd < 0 || !livePrefixes.contains(name.substring(0, pidEnd + 1))) {
+                Log.d(Constants.TAG, "deleting orphaned spilled log " + file);
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /** Returns whether the entry at the given position can be returned without reading the file. */
+    synchronized boolean isCached(int position) {
+        return mPageCache.containsKey(position / PAGE_SIZE);
+    }
+
+    private LogEntryParcel[] readPage(int page) throws IOException {
+        // all appended entries are flushed, see appendAll
+        int count = Math.min(PAGE_SIZE, mSize - page * PAGE_SIZE);
+        LogEntryParcel[] entries = new LogEntryParcel[count];
+
+        FileInputStream fileIn = new FileInputStream(mFile);
+        try {
+            fileIn.getChannel().position(mPageOffsets[page]);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn, 1 << 14));
+            for (int i = 0; i < count; i++) {
+                entries[i] = readEntry(in);
+            }
+        } finally {
+            fileIn.close();
+        }
+        return entries;
+    }
+
+    private void writeEntry(LogEntryParcel entry) throws IOException {
+        boolean isSubEntry = entry instanceof SubLogEntryParcel;
+        mOut.writeByte(isSubEntry ? SUB_ENTRY : ENTRY);
+        mOut.writeShort(entry.mType.ordinal());
+        mOut.writeShort(entry.mIndent);
+        writeParameters(entry.mParameters);
+        if (isSubEntry) {
+            writeSubResult(((SubLogEntryParcel) entry).getSubResult());
+        }
+    }
+
+    private LogEntryParcel readEntry(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        LogType type = LOG_TYPES[in.readShort()];
+        int indent = in.readShort();
+        Object[] parameters = readParameters(in);
+
+        if (kind == SUB_ENTRY) {
+            return new SubLogEntryParcel(readSubResult(in), type, indent, parameters);
+        }
+        return new LogEntryParcel(type, indent, parameters);
+    }
+
+    /**
+     * Writes the result as a marshalled parcel, followed by the entries of its log. The log is
+     * detached while parceling, so it is not put into the log cache of {@link OperationResult}.
+     */
+    private void writeSubResult(OperationResult subResult) throws IOException {
+        OperationLog subLog = subResult.mLog;
+        Parcel parcel = Parcel.obtain();
+        byte[] bytes;
+        try {
+            subResult.mLog = null;
+            parcel.writeParcelable(subResult, 0);
+            bytes = parcel.marshall();
+        } finally {
+            subResult.mLog = subLog;
+            parcel.recycle();
+        }
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+
+        if (subLog == null) {
+            mOut.writeInt(-1);
+            return;
+        }
+        mOut.writeInt(subLog.size());
+        for (LogEntryParcel subEntry : subLog) {
+            writeEntry(subEntry);
+        }
+    }
+
+    private OperationResult readSubResult(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        OperationResult subResult;
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            subResult = parcel.readParcelable(OperationResult.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+        if (subResult == null) {
+            throw new IOException("bad spilled sub result");
+        }
+
+        int count = in.readInt();
+        if (count >= 0) {
+            ArrayList<LogEntryParcel> subEntries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                subEntries.add(readEntry(in));
+            }
+            OperationLog subLog = new OperationLog();
+            subLog.addAll(subEntries);
+            subResult.mLog = subLog;
+        }
+        return subResult;
+    }
+
+    private void writeParameters(Object[] parameters) throws IOException {
+        if (parameters == null) {
+            mOut.writeShort(-1);
+            return;
+        }
+        mOut.writeShort(parameters.length);
+        for (Object parameter : parameters) {
+            if (parameter == null) {
+                mOut.writeByte(PARAM_NULL);
+            } else if (parameter instanceof Integer) {
+                mOut.writeByte(PARAM_INTEGER);
+                mOut.writeInt((Integer) parameter);
+            } else if (parameter instanceof Long) {
+                mOut.writeByte(PARAM_LONG);
+                mOut.writeLong((Long) parameter);
+            } else if (parameter instanceof String) {
+                mOut.writeByte(PARAM_STRING);
+                mOut.writeInt(internString((String) parameter));
+            } else {
+                // anything else has to be serializable to be parceled as well
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+                objectOut.writeObject((Serializable) parameter);
+                objectOut.close();
+                mOut.writeByte(PARAM_SERIALIZED);
+                mOut.writeInt(bytes.size());
+                bytes.writeTo(mOut);
+            }
+        }
+    }
+
+    private Object[] readParameters(DataInputStream in) throws IOException {
+        int count = in.readShort();
+        if (count < 0) {
+            return null;
+        }
+        Object[] parameters = new Object[count];
+        for (int i = 0; i < count; i++) {
+            byte tag = in.readByte();
+            switch (tag) {
+                case PARAM_NULL:
+                    break;
+                case PARAM_INTEGER:
+                    parameters[i] = in.readInt();
+                    break;
+                case PARAM_LONG:
+                    parameters[i] = in.readLong();
+                    break;
+                case PARAM_STRING:
+                    parameters[i] = mStrings.get(in.readInt());
+                    break;
+                case PARAM_SERIALIZED:
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                    try {
+                        parameters[i] = objectIn.readObject();
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException("unknown log parameter class", e);
+                    }
+                    break;
+                default:
+                    throw new IOException("bad log parameter tag " + tag);
+            }
+        }
+        return parameters;
+    }
+
+    private int internString(String string) {
+        Integer id = mStringIds.get(string);
+        if (id == null) {
+            id = mStrings.size();
+            mStrings.add(string);
+            mStringIds.put(string, id);
+        }
+        return id;
+    }
+
+}
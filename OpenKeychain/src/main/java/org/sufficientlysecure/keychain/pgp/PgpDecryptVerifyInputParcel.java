@@ -19,7 +19,8 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Set;
 
 import android.net.Uri;
 import android.os.Parcel;
@@ -32,7 +33,8 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
     private byte[] mInputBytes;
 
     private boolean mAllowSymmetricDecryption;
-    private HashSet<Long> mAllowedKeyIds;
+    // sorted, for binary search
+    private long[] mAllowedKeyIds;
     private boolean mDecryptMetadataOnly;
     private byte[] mDetachedSignature;
     private String mRequiredSignerFingerprint;
@@ -56,7 +58,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         mInputBytes = source.createByteArray();
 
         mAllowSymmetricDecryption = source.readInt() != 0;
-        mAllowedKeyIds  = (HashSet<Long>) source.readSerializable();
+        mAllowedKeyIds = source.createLongArray();
         mDecryptMetadataOnly = source.readInt() != 0;
         mDetachedSignature = source.createByteArray();
         mRequiredSignerFingerprint = source.readString();
@@ -74,7 +76,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         dest.writeByteArray(mInputBytes);
 
         dest.writeInt(mAllowSymmetricDecryption ? 1 : 0);
-        dest.writeSerializable(mAllowedKeyIds);
+        dest.writeLongArray(mAllowedKeyIds);
         dest.writeInt(mDecryptMetadataOnly ? 1 : 0);
         dest.writeByteArray(mDetachedSignature);
         dest.writeString(mRequiredSignerFingerprint);
@@ -111,12 +113,32 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         return this;
     }
 
-    HashSet<Long> getAllowedKeyIds() {
+    boolean hasAllowedKeyIds() {
+        return mAllowedKeyIds != null;
+    }
+
+    boolean isKeyIdAllowed(long masterKeyId) {
+        return mAllowedKeyIds == null || Arrays.binarySearch(mAllowedKeyIds, masterKeyId) >= 0;
+    }
+
+    long[] getAllowedKeyIds() {
         return mAllowedKeyIds;
     }
 
-    public PgpDecryptVerifyInputParcel setAllowedKeyIds(HashSet<Long> allowedKeyIds) {
-        mAllowedKeyIds = allowedKeyIds;
+    public PgpDecryptVerifyInputParcel setAllowedKeyIds(Set<Long> allowedKeyIds) {
+        long[] keyIds = new long[allowedKeyIds.size()];
+        int i = 0;
+        for (long keyId : allowedKeyIds) {
+            keyIds[i++] = keyId;
+        }
+        Arrays.sort(keyIds);
+        mAllowedKeyIds = keyIds;
+        return this;
+    }
+
+    /** Sets allowed master key ids, which must already be sorted. */
+    public PgpDecryptVerifyInputParcel setAllowedKeyIds(long[] sortedAllowedKeyIds) {
+        mAllowedKeyIds = sortedAllowedKeyIds;
         return this;
     }
 
@@ -20,15 +20,18 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.Locale;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
@@ -36,6 +39,7 @@ import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 
 import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.openpgp.PGPCompressedData;
 import org.bouncycastle.openpgp.PGPDataValidationException;
 import org.bouncycastle.openpgp.PGPEncryptedData;
@@ -81,6 +85,14 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInputParcel> {
 
+    // line ending of the canonical text form that cleartext signatures are made over
+    private static final byte[] CANONICAL_LINE_SEPARATOR = new byte[] { '\r', '\n' };
+    // hash algorithms of cleartext signatures which can be verified
+    private static final int[] CLEARTEXT_HASH_ALGORITHMS = new int[] {
+            HashAlgorithmTags.SHA1, HashAlgorithmTags.RIPEMD160, HashAlgorithmTags.SHA224,
+            HashAlgorithmTags.SHA256, HashAlgorithmTags.SHA384, HashAlgorithmTags.SHA512
+    };
+
     public PgpDecryptVerifyOperation(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
@@ -529,6 +541,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         result.setCachedCryptoInputParcel(cryptoInput);
         result.setSignatureResult(signatureChecker.getSignatureResult());
+        result.setSignatureResults(signatureChecker.getSignatureResults());
         result.setDecryptionResult(decryptionResultBuilder.build());
         result.setDecryptionMetadata(metadata);
         result.mOperationTime = opTime;
@@ -578,12 +591,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                     long masterKeyId = cachedPublicKeyRing.getMasterKeyId();
 
                     // allow only specific keys for decryption?
-                    if (input.getAllowedKeyIds() != null) {
+                    if (input.hasAllowedKeyIds()) {
                         Log.d(Constants.TAG, "encData.getKeyID(): " + subKeyId);
-                        Log.d(Constants.TAG, "mAllowedKeyIds: " + input.getAllowedKeyIds());
+                        Log.d(Constants.TAG, "mAllowedKeyIds: " + Arrays.toString(input.getAllowedKeyIds()));
                         Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
 
-                        if (!input.getAllowedKeyIds().contains(masterKeyId)) {
+                        if (!input.isKeyIdAllowed(masterKeyId)) {
                             // this key is in our db, but NOT allowed!
                             // continue with the next packet in the while loop
                             result.skippedDisallowedKey = true;
@@ -821,41 +834,54 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         OperationLog log = new OperationLog();
 
-        byte[] clearText;
+        // The signatures follow the cleartext, so they are not known while it is read. Instead,
+        // the canonical text is hashed with the algorithms announced in the Hash armor header,
+        // line by line in the same pass which passes the text through to the output.
+        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mProviderHelper);
+        signatureChecker.initPrehashedDigests(getCleartextHashAlgorithms(aIn));
+
+        long clearTextLength = 0;
         { // read cleartext
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OutputStream out = outputStream != null
+                    ? new BufferedOutputStream(outputStream, 1 << 16) : null;
 
             updateProgress(R.string.progress_reading_data, 0, 100);
 
-            ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-            int lookAhead = readInputLine(lineOut, aIn);
+            LineBuffer lineOut = new LineBuffer();
             byte[] lineSep = getLineSeparator();
 
-            byte[] line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
+            int lookAhead = readInputLine(lineOut, aIn);
+            boolean firstLine = true;
+            while (true) {
+                byte[] line = lineOut.getBuffer();
+                int length = getLengthWithoutSeparator(line, lineOut.size());
+                if (out != null) {
+                    out.write(line, 0, length);
+                    out.write(lineSep);
+                }
+                clearTextLength += length + lineSep.length;
 
-            while (lookAhead != -1 && aIn.isClearText()) {
+                // lines are hashed without trailing whitespace, separated by <CR><LF>
+                if (!firstLine) {
+                    signatureChecker.updateSignatureData(CANONICAL_LINE_SEPARATOR, 0, 2);
+                }
+                signatureChecker.updateSignatureData(line, 0, getLengthWithoutWhiteSpace(line, length));
+                firstLine = false;
+
+                if (lookAhead == -1 || !aIn.isClearText()) {
+                    break;
+                }
                 lookAhead = readInputLine(lineOut, lookAhead, aIn);
-                line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparator(line));
-                out.write(lineSep);
             }
 
-            out.close();
-            clearText = out.toByteArray();
-        }
-
-        if (outputStream != null) {
-            outputStream.write(clearText);
-            outputStream.close();
+            if (out != null) {
+                out.close();
+            }
         }
 
         updateProgress(R.string.progress_processing_signature, 60, 100);
         JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(aIn);
 
-        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mProviderHelper);
-
         Object o = pgpFact.nextObject();
         if (!signatureChecker.initializeSignature(o, log, indent+1)) {
             log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
@@ -863,32 +889,78 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         }
 
         if (signatureChecker.isInitialized()) {
-            try {
-                updateProgress(R.string.progress_verifying_signature, 90, 100);
-
-                signatureChecker.updateSignatureWithCleartext(clearText);
-                signatureChecker.verifySignature(log, indent);
-
-            } catch (SignatureException e) {
-                Log.d(Constants.TAG, "SignatureException", e);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
-            }
+            updateProgress(R.string.progress_verifying_signature, 90, 100);
+            signatureChecker.verifySignature(log, indent);
         }
 
         updateProgress(R.string.progress_done, 100, 100);
 
         log.add(LogType.MSG_DC_OK, indent);
 
-        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearText.length, "utf-8");
+        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearTextLength, "utf-8");
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setSignatureResult(signatureChecker.getSignatureResult());
+        result.setSignatureResults(signatureChecker.getSignatureResults());
         result.setDecryptionResult(
                 new OpenPgpDecryptionResult(OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED));
         result.setDecryptionMetadata(metadata);
         return result;
     }
 
+    /**
+     * Returns the hash algorithms announced in the Hash armor headers of a cleartext signature,
+     * see http://tools.ietf.org/html/rfc4880#section-7. If none of them can be verified, the
+     * text is hashed with all algorithms which can.
+     */
+    private static int[] getCleartextHashAlgorithms(ArmoredInputStream aIn) {
+        ArrayList<Integer> hashAlgorithms = new ArrayList<>();
+        String[] headers = aIn.getArmorHeaders();
+        if (headers != null) {
+            for (String header : headers) {
+                String[] pieces = header.split(":", 2);
+                if (pieces.length != 2 || !"hash".equalsIgnoreCase(pieces[0].trim())) {
+                    continue;
+                }
+                for (String name : pieces[1].split(",")) {
+                    int hashAlgorithm = getHashAlgorithmByName(name.trim());
+                    if (hashAlgorithm != -1 && !hashAlgorithms.contains(hashAlgorithm)) {
+                        hashAlgorithms.add(hashAlgorithm);
+                    }
+                }
+            }
+        }
+        if (hashAlgorithms.isEmpty()) {
+            return CLEARTEXT_HASH_ALGORITHMS.clone();
+        }
+
+        int[] result = new int[hashAlgorithms.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = hashAlgorithms.get(i);
+        }
+        return result;
+    }
+
+    private static int getHashAlgorithmByName(String name) {
+        switch (name.toUpperCase(Locale.ENGLISH)) {
+            case "SHA1":
+                return HashAlgorithmTags.SHA1;
+            case "RIPEMD160":
+                return HashAlgorithmTags.RIPEMD160;
+            case "SHA224":
+                return HashAlgorithmTags.SHA224;
+            case "SHA256":
+                return HashAlgorithmTags.SHA256;
+            case "SHA384":
+                return HashAlgorithmTags.SHA384;
+            case "SHA512":
+                return HashAlgorithmTags.SHA512;
+            default:
+                // MD5 and unknown algorithms can not be verified
+                return -1;
+        }
+    }
+
     @NonNull
     private DecryptVerifyResult verifyDetachedSignature(
             PgpDecryptVerifyInputParcel input, InputData inputData, OutputStream out, int indent)
@@ -960,6 +1032,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setSignatureResult(signatureChecker.getSignatureResult());
+        result.setSignatureResults(signatureChecker.getSignatureResults());
         result.setDecryptionResult(
                 new OpenPgpDecryptionResult(OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED));
         return result;
@@ -1016,8 +1089,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return lookAhead;
     }
 
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutSeparator(byte[] line, int length) {
+        int end = length - 1;
 
         while (end >= 0 && isLineEnding(line[end])) {
             end--;
@@ -1026,10 +1099,31 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return end + 1;
     }
 
+    private static int getLengthWithoutWhiteSpace(byte[] line, int length) {
+        int end = length - 1;
+
+        while (end >= 0 && isWhiteSpace(line[end])) {
+            end--;
+        }
+
+        return end + 1;
+    }
+
     private static boolean isLineEnding(byte b) {
         return b == '\r' || b == '\n';
     }
 
+    private static boolean isWhiteSpace(byte b) {
+        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
+    }
+
+    /** A line buffer which gives access to its contents without copying them. */
+    private static class LineBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
     private static byte[] getLineSeparator() {
         String nl = System.getProperty("line.separator");
         return nl.getBytes();
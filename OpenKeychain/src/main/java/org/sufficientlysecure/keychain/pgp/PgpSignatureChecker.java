@@ -1,12 +1,10 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.security.SignatureException;
+import java.util.ArrayList;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.bouncycastle.openpgp.PGPException;
@@ -14,35 +12,94 @@ import org.bouncycastle.openpgp.PGPOnePassSignature;
 import org.bouncycastle.openpgp.PGPOnePassSignatureList;
 import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
 
 
-/** This class is used to track the state of a single signature verification.
- *
+/** This class is used to track the state of the signature verification of a message.
  *
+ * All signatures made by keys in our database are verified in a single pass over the data.
+ * The first of them is the primary signature, whose result is returned by
+ * {@link #getSignatureResult()}, results of all of them by {@link #getSignatureResults()}.
+ * Log entries about other signatures than the primary one are grouped below an entry naming
+ * their signing key.
+ * Binary signatures with the same hash algorithm share a single digest of the data, see
+ * {@link SharedDigestVerifierBuilderProvider}. For cleartext signatures, which follow the
+ * data, the digests are created up front by {@link #initPrehashedDigests(int[])}.
  */
 class PgpSignatureChecker {
 
+    // result if there is no verifiable signature
     OpenPgpSignatureResultBuilder signatureResultBuilder = new OpenPgpSignatureResultBuilder();
 
-    private CanonicalizedPublicKey signingKey;
-
-    private int signatureIndex;
-    PGPOnePassSignature onePassSignature;
-    PGPSignature signature;
+    private final ArrayList<VerifiableSignature> mSignatures = new ArrayList<>();
+    // shared digests by hash algorithm
+    private final SparseArray<SharedDigestVerifierBuilderProvider> mSharedDigests = new SparseArray<>();
+    // true if the data is hashed before the signatures are known
+    private boolean mPrehashed = false;
 
     ProviderHelper mProviderHelper;
 
+    private static class VerifiableSignature {
+        final int mIndex;
+        final CanonicalizedPublicKey mSigningKey;
+        final PGPOnePassSignature mOnePassSignature;
+        final PGPSignature mSignature;
+        final OpenPgpSignatureResultBuilder mResultBuilder = new OpenPgpSignatureResultBuilder();
+        // true if the data is hashed by a shared digest rather than by this signature
+        boolean mUsesSharedDigest;
+        // true if the data was hashed up front, but not with the algorithm of this signature
+        boolean mNotHashed;
+
+        VerifiableSignature(int index, CanonicalizedPublicKey signingKey,
+                PGPOnePassSignature onePassSignature, PGPSignature signature) {
+            mIndex = index;
+            mSigningKey = signingKey;
+            mOnePassSignature = onePassSignature;
+            mSignature = signature;
+        }
+
+        int getSignatureType() {
+            return mSignature != null ? mSignature.getSignatureType() : mOnePassSignature.getSignatureType();
+        }
+
+        int getHashAlgorithm() {
+            return mSignature != null ? mSignature.getHashAlgorithm() : mOnePassSignature.getHashAlgorithm();
+        }
+
+        void update(byte[] buf, int off, int len) {
+            if (mSignature != null) {
+                mSignature.update(buf, off, len);
+            } else {
+                mOnePassSignature.update(buf, off, len);
+            }
+        }
+    }
+
     PgpSignatureChecker(ProviderHelper providerHelper) {
         mProviderHelper = providerHelper;
     }
 
+    /**
+     * Starts hashing the data with the given algorithms before the signatures are known. The
+     * data must already be canonicalized. Signatures with other algorithms will not verify.
+     */
+    void initPrehashedDigests(int[] hashAlgorithms) throws PGPException {
+        for (int hashAlgorithm : hashAlgorithms) {
+            if (mSharedDigests.get(hashAlgorithm) == null) {
+                mSharedDigests.put(hashAlgorithm, new SharedDigestVerifierBuilderProvider(hashAlgorithm));
+            }
+        }
+        mPrehashed = true;
+    }
+
     boolean initializeSignature(Object dataChunk, OperationLog log, int indent) throws PGPException {
 
         if (!(dataChunk instanceof PGPSignatureList)) {
@@ -50,19 +107,12 @@ class PgpSignatureChecker {
         }
 
         PGPSignatureList sigList = (PGPSignatureList) dataChunk;
-        findAvailableSignature(sigList);
-
-        if (signingKey != null) {
-
-            // key found in our database!
-            signatureResultBuilder.initValid(signingKey);
+        findAvailableSignatures(sigList);
 
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            signature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
-            checkKeySecurity(log, indent);
+        if (!mSignatures.isEmpty()) {
 
+            // keys found in our database!
+            initVerifiers(log, indent);
 
         } else if (!sigList.isEmpty()) {
 
@@ -85,19 +135,12 @@ class PgpSignatureChecker {
         log.add(LogType.MSG_DC_CLEAR_SIGNATURE, indent + 1);
 
         PGPOnePassSignatureList sigList = (PGPOnePassSignatureList) dataChunk;
-        findAvailableSignature(sigList);
+        findAvailableSignatures(sigList);
 
-        if (signingKey != null) {
+        if (!mSignatures.isEmpty()) {
 
-            // key found in our database!
-            signatureResultBuilder.initValid(signingKey);
-
-            JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
-                    new JcaPGPContentVerifierBuilderProvider()
-                            .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-            onePassSignature.init(contentVerifierBuilderProvider, signingKey.getPublicKey());
-
-            checkKeySecurity(log, indent);
+            // keys found in our database!
+            initVerifiers(log, indent);
 
         } else if (!sigList.isEmpty()) {
 
@@ -111,90 +154,134 @@ class PgpSignatureChecker {
 
     }
 
-    private void checkKeySecurity(OperationLog log, int indent) {
-        // TODO: checks on signingRing ?
-        if (!PgpSecurityConstants.isSecureKey(signingKey)) {
-            log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
-            signatureResultBuilder.setInsecure(true);
-        }
-    }
+    private void initVerifiers(OperationLog log, int indent) throws PGPException {
 
-    public boolean isInitialized() {
-        return signingKey != null;
-    }
-
-    private void findAvailableSignature(PGPOnePassSignatureList sigList) {
-        // go through all signatures (should be just one), make sure we have
-        //  the key and it matches the one we’re looking for
-        for (int i = 0; i < sigList.size(); ++i) {
-            try {
-                long sigKeyId = sigList.get(i).getKeyID();
-                CanonicalizedPublicKeyRing signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
-                CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
-                if ( ! keyCandidate.canSign()) {
-                    continue;
-                }
-                signatureIndex = i;
-                signingKey = keyCandidate;
-                onePassSignature = sigList.get(i);
-                return;
-            } catch (ProviderHelper.NotFoundException e) {
-                Log.d(Constants.TAG, "key not found, trying next signature...");
+        // binary signatures with the same hash algorithm can share a digest
+        SparseIntArray sharableCount = new SparseIntArray();
+        for (VerifiableSignature sig : mSignatures) {
+            if (isSharable(sig)) {
+                int hashAlgorithm = sig.getHashAlgorithm();
+                sharableCount.put(hashAlgorithm, sharableCount.get(hashAlgorithm) + 1);
             }
         }
-    }
 
-    public void findAvailableSignature(PGPSignatureList sigList) {
-        // go through all signatures (should be just one), make sure we have
-        //  the key and it matches the one we’re looking for
-        for (int i = 0; i < sigList.size(); ++i) {
-            try {
-                long sigKeyId = sigList.get(i).getKeyID();
-                CanonicalizedPublicKeyRing signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
-                CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
-                if ( ! keyCandidate.canSign()) {
+        JcaPGPContentVerifierBuilderProvider jcaProvider = new JcaPGPContentVerifierBuilderProvider()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+
+        for (VerifiableSignature sig : mSignatures) {
+            sig.mResultBuilder.initValid(sig.mSigningKey);
+
+            PGPContentVerifierBuilderProvider contentVerifierBuilderProvider = jcaProvider;
+            int hashAlgorithm = sig.getHashAlgorithm();
+            if (mPrehashed) {
+                SharedDigestVerifierBuilderProvider sharedDigest = mSharedDigests.get(hashAlgorithm);
+                if (sharedDigest == null || !SharedDigestVerifierBuilderProvider.isSupported(
+                        sig.mSigningKey.getAlgorithm(), hashAlgorithm)) {
+                    Log.d(Constants.TAG, "data was not hashed with algorithm " + hashAlgorithm);
+                    sig.mNotHashed = true;
+                    checkKeySecurity(sig, log, indent);
                     continue;
                 }
-                signatureIndex = i;
-                signingKey = keyCandidate;
-                signature = sigList.get(i);
-                return;
-            } catch (ProviderHelper.NotFoundException e) {
-                Log.d(Constants.TAG, "key not found, trying next signature...");
+                contentVerifierBuilderProvider = sharedDigest;
+                sig.mUsesSharedDigest = true;
+            } else if (isSharable(sig) && sharableCount.get(hashAlgorithm) > 1) {
+                SharedDigestVerifierBuilderProvider sharedDigest = mSharedDigests.get(hashAlgorithm);
+                if (sharedDigest == null) {
+                    sharedDigest = new SharedDigestVerifierBuilderProvider(hashAlgorithm);
+                    mSharedDigests.put(hashAlgorithm, sharedDigest);
+                }
+                contentVerifierBuilderProvider = sharedDigest;
+                sig.mUsesSharedDigest = true;
             }
+
+            if (sig.mSignature != null) {
+                sig.mSignature.init(contentVerifierBuilderProvider, sig.mSigningKey.getPublicKey());
+            } else {
+                sig.mOnePassSignature.init(contentVerifierBuilderProvider, sig.mSigningKey.getPublicKey());
+            }
+
+            checkKeySecurity(sig, log, indent);
         }
-    }
 
-    public void updateSignatureWithCleartext(byte[] clearText) throws IOException, SignatureException {
+        Log.d(Constants.TAG, "verifying " + mSignatures.size() + " signatures with "
+                + mSharedDigests.size() + " shared digests");
 
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
+    }
 
-        ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
+    private static boolean isSharable(VerifiableSignature sig) {
+        return sig.getSignatureType() == PGPSignature.BINARY_DOCUMENT
+                && SharedDigestVerifierBuilderProvider.isSupported(
+                        sig.mSigningKey.getAlgorithm(), sig.getHashAlgorithm());
+    }
 
-        int lookAhead = readInputLine(outputBuffer, sigIn);
+    /**
+     * Returns the indent for log entries about a signature. For other signatures than the
+     * primary one, an entry naming the signing key is logged, and its entries go below it.
+     */
+    private int logSigner(VerifiableSignature sig, OperationLog log, int indent) {
+        if (sig == mSignatures.get(0)) {
+            return indent;
+        }
+        log.add(LogType.MSG_DC_CLEAR_SIGNATURE_SIGNER, indent + 1,
+                KeyFormattingUtils.convertKeyIdToHex(sig.mSigningKey.getKeyId()));
+        return indent + 1;
+    }
 
-        processLine(signature, outputBuffer.toByteArray());
+    private void checkKeySecurity(VerifiableSignature sig, OperationLog log, int indent) {
+        // TODO: checks on signingRing ?
+        if (!PgpSecurityConstants.isSecureKey(sig.mSigningKey)) {
+            log.add(LogType.MSG_DC_INSECURE_KEY, logSigner(sig, log, indent) + 1);
+            sig.mResultBuilder.setInsecure(true);
+        }
+    }
 
-        while (lookAhead != -1) {
-            lookAhead = readInputLine(outputBuffer, lookAhead, sigIn);
+    public boolean isInitialized() {
+        return !mSignatures.isEmpty();
+    }
 
-            signature.update((byte) '\r');
-            signature.update((byte) '\n');
+    private void findAvailableSignatures(PGPOnePassSignatureList sigList) {
+        // go through all signatures, and use all for which we have a key that can sign
+        for (int i = 0; i < sigList.size(); ++i) {
+            CanonicalizedPublicKey signingKey = findSigningKey(sigList.get(i).getKeyID());
+            if (signingKey != null) {
+                mSignatures.add(new VerifiableSignature(i, signingKey, sigList.get(i), null));
+            }
+        }
+    }
 
-            processLine(signature, outputBuffer.toByteArray());
+    public void findAvailableSignatures(PGPSignatureList sigList) {
+        // go through all signatures, and use all for which we have a key that can sign
+        for (int i = 0; i < sigList.size(); ++i) {
+            CanonicalizedPublicKey signingKey = findSigningKey(sigList.get(i).getKeyID());
+            if (signingKey != null) {
+                mSignatures.add(new VerifiableSignature(i, signingKey, null, sigList.get(i)));
+            }
         }
+    }
 
+    private CanonicalizedPublicKey findSigningKey(long sigKeyId) {
+        try {
+            CanonicalizedPublicKeyRing signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
+                    KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
+            );
+            CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
+            if (keyCandidate.canSign()) {
+                return keyCandidate;
+            }
+        } catch (ProviderHelper.NotFoundException e) {
+            Log.d(Constants.TAG, "key not found, trying next signature...");
+        }
+        return null;
     }
 
     public void updateSignatureData(byte[] buf, int off, int len) {
-        if (signature != null) {
-            signature.update(buf, off, len);
-        } else if (onePassSignature != null) {
-            onePassSignature.update(buf, off, len);
+        for (int i = 0; i < mSharedDigests.size(); i++) {
+            mSharedDigests.valueAt(i).update(buf, off, len);
+        }
+        for (VerifiableSignature sig : mSignatures) {
+            if (!sig.mUsesSharedDigest && !sig.mNotHashed) {
+                sig.update(buf, off, len);
+            }
         }
     }
 
@@ -202,22 +289,12 @@ class PgpSignatureChecker {
 
         log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
 
-        // Verify signature
-        boolean validSignature = signature.verify();
-        if (validSignature) {
-            log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
-        } else {
-            log.add(LogType.MSG_DC_CLEAR_SIGNATURE_BAD, indent + 1);
-        }
-
-        // check for insecure hash algorithms
-        if (!PgpSecurityConstants.isSecureHashAlgorithm(signature.getHashAlgorithm())) {
-            log.add(LogType.MSG_DC_INSECURE_HASH_ALGO, indent + 1);
-            signatureResultBuilder.setInsecure(true);
+        for (VerifiableSignature sig : mSignatures) {
+            // Verify signature
+            boolean validSignature = !sig.mNotHashed && sig.mSignature.verify();
+            setVerificationResult(sig, validSignature, sig.mSignature.getHashAlgorithm(), log, indent);
         }
 
-        signatureResultBuilder.setValidSignature(validSignature);
-
     }
 
     boolean verifySignatureOnePass(Object o, OperationLog log, int indent) throws PGPException {
@@ -227,17 +304,36 @@ class PgpSignatureChecker {
             return false;
         }
         PGPSignatureList signatureList = (PGPSignatureList) o;
-        if (signatureList.size() <= signatureIndex) {
+        // the primary signature is required, others are reported as invalid if missing
+        if (signatureList.size() <= mSignatures.get(0).mIndex) {
             log.add(LogType.MSG_DC_ERROR_NO_SIGNATURE, indent);
             return false;
         }
 
-        // PGPOnePassSignature and PGPSignature packets are "bracketed",
-        // so we need to take the last-minus-index'th element here
-        PGPSignature messageSignature = signatureList.get(signatureList.size() - 1 - signatureIndex);
+        for (VerifiableSignature sig : mSignatures) {
+            if (signatureList.size() <= sig.mIndex) {
+                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_BAD, logSigner(sig, log, indent) + 1);
+                sig.mResultBuilder.setValidSignature(false);
+                continue;
+            }
+
+            // PGPOnePassSignature and PGPSignature packets are "bracketed",
+            // so we need to take the last-minus-index'th element here
+            PGPSignature messageSignature = signatureList.get(signatureList.size() - 1 - sig.mIndex);
+
+            // Verify signature
+            boolean validSignature = sig.mOnePassSignature.verify(messageSignature);
+            setVerificationResult(sig, validSignature, sig.mOnePassSignature.getHashAlgorithm(),
+                    log, indent);
+        }
+
+        return true;
+
+    }
 
-        // Verify signature
-        boolean validSignature = onePassSignature.verify(messageSignature);
+    private void setVerificationResult(VerifiableSignature sig, boolean validSignature,
+            int hashAlgorithm, OperationLog log, int indent) {
+        indent = logSigner(sig, log, indent);
         if (validSignature) {
             log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
         } else {
@@ -245,100 +341,33 @@ class PgpSignatureChecker {
         }
 
         // check for insecure hash algorithms
-        if (!PgpSecurityConstants.isSecureHashAlgorithm(onePassSignature.getHashAlgorithm())) {
+        if (!PgpSecurityConstants.isSecureHashAlgorithm(hashAlgorithm)) {
             log.add(LogType.MSG_DC_INSECURE_HASH_ALGO, indent + 1);
-            signatureResultBuilder.setInsecure(true);
+            sig.mResultBuilder.setInsecure(true);
         }
 
-        signatureResultBuilder.setValidSignature(validSignature);
-
-        return true;
-
+        sig.mResultBuilder.setValidSignature(validSignature);
     }
 
     public byte[] getSigningFingerprint() {
-        return signingKey.getFingerprint();
+        return mSignatures.get(0).mSigningKey.getFingerprint();
     }
 
+    /** Returns the result of the primary signature. */
     public OpenPgpSignatureResult getSignatureResult() {
-        return signatureResultBuilder.build();
-    }
-
-    /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
-     */
-
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
-        }
-    }
-
-    private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int lookAhead = -1;
-        int ch;
-
-        while ((ch = fIn.read()) >= 0) {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
+        if (mSignatures.isEmpty()) {
+            return signatureResultBuilder.build();
         }
-
-        return lookAhead;
+        return mSignatures.get(0).mResultBuilder.build();
     }
 
-    private static int readInputLine(ByteArrayOutputStream bOut, int lookAhead, InputStream fIn)
-            throws IOException {
-        bOut.reset();
-
-        int ch = lookAhead;
-
-        do {
-            bOut.write(ch);
-            if (ch == '\r' || ch == '\n') {
-                lookAhead = readPastEOL(bOut, ch, fIn);
-                break;
-            }
-        } while ((ch = fIn.read()) >= 0);
-
-        if (ch < 0) {
-            lookAhead = -1;
+    /** Returns the results of all verified signatures, starting with the primary one. */
+    public ArrayList<OpenPgpSignatureResult> getSignatureResults() {
+        ArrayList<OpenPgpSignatureResult> results = new ArrayList<>();
+        for (VerifiableSignature sig : mSignatures) {
+            results.add(sig.mResultBuilder.build());
         }
-
-        return lookAhead;
-    }
-
-    private static int readPastEOL(ByteArrayOutputStream bOut, int lastCh, InputStream fIn)
-            throws IOException {
-        int lookAhead = fIn.read();
-
-        if (lastCh == '\r' && lookAhead == '\n') {
-            bOut.write(lookAhead);
-            lookAhead = fIn.read();
-        }
-
-        return lookAhead;
-    }
-
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
-
-        while (end >= 0 && isWhiteSpace(line[end])) {
-            end--;
-        }
-
-        return end + 1;
-    }
-
-    private static boolean isWhiteSpace(byte b) {
-        return b == '\r' || b == '\n' || b == '\t' || b == ' ';
+        return results;
     }
 
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.operator.PGPContentVerifier;
+import org.bouncycastle.openpgp.operator.PGPContentVerifierBuilder;
+import org.bouncycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyConverter;
+import org.bouncycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Content verifiers for several signatures over the same data with the same hash algorithm,
+ * which hash the data only once.
+ * <p/>
+ * The signed data is fed into a single digest via {@link #update}, instead of through the
+ * signatures. When a signature is verified, Bouncy Castle writes its trailer to the verifier,
+ * which is appended to a copy of the shared digest. The resulting hash is then checked with a
+ * raw (NONEwith...) signature of the key algorithm. Only binary signatures can share a digest,
+ * since text signatures canonicalize the data themselves, unless the data is canonicalized
+ * before it is passed in, as for cleartext signatures.
+ */
+class SharedDigestVerifierBuilderProvider implements PGPContentVerifierBuilderProvider {
+
+    private final int mHashAlgorithm;
+    private final MessageDigest mDataDigest;
+
+    SharedDigestVerifierBuilderProvider(int hashAlgorithm) throws PGPException {
+        mHashAlgorithm = hashAlgorithm;
+        try {
+            mDataDigest = MessageDigest.getInstance(
+                    getDigestName(hashAlgorithm), Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        } catch (GeneralSecurityException e) {
+            throw new PGPException("cannot create digest", e);
+        }
+    }
+
+    static boolean isSupported(int keyAlgorithm, int hashAlgorithm) {
+        return getRawSignatureName(keyAlgorithm) != null && getDigestName(hashAlgorithm) != null;
+    }
+
+    void update(byte[] buf, int off, int len) {
+        mDataDigest.update(buf, off, len);
+    }
+
+    @Override
+    public PGPContentVerifierBuilder get(final int keyAlgorithm, final int hashAlgorithm)
+            throws PGPException {
+        if (hashAlgorithm != mHashAlgorithm || !isSupported(keyAlgorithm, hashAlgorithm)) {
+            throw new PGPException("unsupported algorithm for shared digest");
+        }
+
+        return new PGPContentVerifierBuilder() {
+            @Override
+            public PGPContentVerifier build(final PGPPublicKey publicKey) throws PGPException {
+                final PublicKey jcaKey = new JcaPGPKeyConverter()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).getPublicKey(publicKey);
+                return new SharedDigestVerifier(keyAlgorithm, publicKey.getKeyID(), jcaKey);
+            }
+        };
+    }
+
+    private class SharedDigestVerifier implements PGPContentVerifier {
+
+        private final int mKeyAlgorithm;
+        private final long mKeyId;
+        private final PublicKey mPublicKey;
+        // only the signature trailer is written here, the data goes into the shared digest
+        private final ByteArrayOutputStream mTrailer = new ByteArrayOutputStream();
+
+        SharedDigestVerifier(int keyAlgorithm, long keyId, PublicKey publicKey) {
+            mKeyAlgorithm = keyAlgorithm;
+            mKeyId = keyId;
+            mPublicKey = publicKey;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mTrailer;
+        }
+
+        @Override
+        public int getHashAlgorithm() {
+            return mHashAlgorithm;
+        }
+
+        @Override
+        public int getKeyAlgorithm() {
+            return mKeyAlgorithm;
+        }
+
+        @Override
+        public long getKeyID() {
+            return mKeyId;
+        }
+
+        @Override
+        public boolean verify(byte[] expected) {
+            try {
+                MessageDigest digest = (MessageDigest) mDataDigest.clone();
+                digest.update(mTrailer.toByteArray());
+                byte[] hash = digest.digest();
+
+                Signature signature = Signature.getInstance(
+                        getRawSignatureName(mKeyAlgorithm), Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                signature.initVerify(mPublicKey);
+                if (isRsa(mKeyAlgorithm)) {
+                    // raw RSA signatures do not include the DigestInfo structure
+                    signature.update(getDigestInfoPrefix(mHashAlgorithm));
+                }
+                signature.update(hash);
+                return signature.verify(expected);
+            } catch (CloneNotSupportedException | GeneralSecurityException e) {
+                Log.e(Constants.TAG, "error verifying signature with shared digest", e);
+                return false;
+            }
+        }
+    }
+
+    private static boolean isRsa(int keyAlgorithm) {
+        return keyAlgorithm == PublicKeyAlgorithmTags.RSA_GENERAL
+                || keyAlgorithm == PublicKeyAlgorithmTags.RSA_SIGN;
+    }
+
+    private static String getRawSignatureName(int keyAlgorithm) {
+        switch (keyAlgorithm) {
+            case PublicKeyAlgorithmTags.RSA_GENERAL:
+            case PublicKeyAlgorithmTags.RSA_SIGN:
+                return "NONEwithRSA";
+            case PublicKeyAlgorithmTags.DSA:
+                return "NONEwithDSA";
+            case PublicKeyAlgorithmTags.ECDSA:
+                return "NONEwithECDSA";
+            default:
+                return null;
+        }
+    }
+
+    private static String getDigestName(int hashAlgorithm) {
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.SHA1:
+                return "SHA-1";
+            case HashAlgorithmTags.RIPEMD160:
+                return "RIPEMD160";
+            case HashAlgorithmTags.SHA224:
+                return "SHA-224";
+            case HashAlgorithmTags.SHA256:
+                return "SHA-256";
+            case HashAlgorithmTags.SHA384:
+                return "SHA-384";
+            case HashAlgorithmTags.SHA512:
+                return "SHA-512";
+            default:
+                return null;
+        }
+    }
+
+    /** DER encoded DigestInfo up to the hash, see https://tools.ietf.org/html/rfc4880#section-5.2.2 */
+    private static byte[] getDigestInfoPrefix(int hashAlgorithm) {
+        switch (hashAlgorithm) {
+            case HashAlgorithmTags.SHA1:
+                return Hex.decode("3021300906052B0E03021A05000414");
+            case HashAlgorithmTags.RIPEMD160:
+                return Hex.decode("3021300906052B2403020105000414");
+            case HashAlgorithmTags.SHA224:
+                return Hex.decode("302D300D06096086480165030402040500041C");
+            case HashAlgorithmTags.SHA256:
+                return Hex.decode("3031300D060960864801650304020105000420");
+            case HashAlgorithmTags.SHA384:
+                return Hex.decode("3041300D060960864801650304020205000430");
+            case HashAlgorithmTags.SHA512:
+                return Hex.decode("3051300D060960864801650304020305000440");
+            default:
+                throw new IllegalArgumentException("unsupported hash algorithm");
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Collects content change notifications and delivers each changed uri once per window, so
+ * observing loaders don't re-run their queries for every single insert.
+ * <p/>
+ * While a bulk operation is in progress, notifications are held back entirely and delivered
+ * when the last bulk operation ends. If many distinct uris changed, only the root uri of the
+ * provider is notified, which reaches the observers of all of them. Since bulk operations may be
+ * started from other processes which can die before ending them, suppression is released after a
+ * timeout in any case.
+ * <p/>
+ * Changes to api apps are always delivered right away, since the permission caches of the
+ * remote api rely on them to notice revoked access.
+ */
+class ContentChangeCoalescer {
+
+    private static final long WINDOW_MILLIS = 100;
+    private static final long MAX_SUPPRESSION_MILLIS = 60 * 1000;
+    private static final int MAX_DISTINCT_URIS = 16;
+
+    private final ContentResolver mContentResolver;
+    private final Uri mRootUri;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final LinkedHashSet<Uri> mPendingUris = new LinkedHashSet<>();
+    private int mBulkOperations = 0;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable mSuppressionTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ContentChangeCoalescer.this) {
+                Log.w(Constants.TAG, "bulk operation did not end, releasing notifications");
+                mBulkOperations = 0;
+            }
+            flush();
+        }
+    };
+
+    ContentChangeCoalescer(ContentResolver contentResolver, Uri rootUri) {
+        mContentResolver = contentResolver;
+        mRootUri = rootUri;
+    }
+
+    void notifyChange(Uri uri) {
+        if (isImmediate(uri)) {
+            mContentResolver.notifyChange(uri, null);
+            return;
+        }
+        synchronized (this) {
+            mPendingUris.add(uri);
+            if (mBulkOperations == 0 && !mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, WINDOW_MILLIS);
+            }
+        }
+    }
+
+    private static boolean isImmediate(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return !segments.isEmpty() && KeychainContract.BASE_API_APPS.equals(segments.get(0));
+    }
+
+    synchronized void beginBulkOperation() {
+        mBulkOperations += 1;
+        mHandler.removeCallbacks(mSuppressionTimeoutRunnable);
+        mHandler.postDelayed(mSuppressionTimeoutRunnable, MAX_SUPPRESSION_MILLIS);
+    }
+
+    void endBulkOperation() {
+        synchronized (this) {
+            if (mBulkOperations == 0) {
+                return;
+            }
+            mBulkOperations -= 1;
+            if (mBulkOperations > 0) {
+                return;
+            }
+            mHandler.removeCallbacks(mSuppressionTimeoutRunnable);
+        }
+        flush();
+    }
+
+    private void flush() {
+        Uri[] uris;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            if (mBulkOperations > 0 || mPendingUris.isEmpty()) {
+                return;
+            }
+            if (mPendingUris.size() > MAX_DISTINCT_URIS) {
+                uris = new Uri[] { mRootUri };
+            } else {
+                uris = mPendingUris.toArray(new Uri[mPendingUris.size()]);
+            }
+            mPendingUris.clear();
+        }
+        for (Uri uri : uris) {
+            mContentResolver.notifyChange(uri, null);
+        }
+    }
+
+}
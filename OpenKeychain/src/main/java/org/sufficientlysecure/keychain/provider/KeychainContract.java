@@ -18,8 +18,11 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import java.util.Collection;
+
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
 
@@ -61,6 +64,7 @@ public class KeychainContract {
         String TYPE = "type"; // not a database id
         String USER_ID = "user_id"; // not a database id
         String ATTRIBUTE_DATA = "attribute_data"; // not a database id
+        String EMAIL = "email"; // lower case email part of USER_ID, for indexed lookups
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
         String IS_PRIMARY = "is_primary";
         String IS_REVOKED = "is_revoked";
@@ -100,6 +104,13 @@ public class KeychainContract {
     private static final Uri BASE_CONTENT_URI_INTERNAL = Uri
             .parse("content://" + CONTENT_AUTHORITY);
 
+    // provider methods which suppress change notifications during bulk operations
+    public static final String METHOD_BEGIN_BULK_OPERATION = "begin_bulk_operation";
+    public static final String METHOD_END_BULK_OPERATION = "end_bulk_operation";
+
+    // query parameter to limit the number of returned rows, used for paging
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     public static final String BASE_KEY_RINGS = "key_rings";
 
     public static final String BASE_UPDATED_KEYS = "updated_keys";
@@ -108,6 +119,7 @@ public class KeychainContract {
 
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
+    public static final String PATH_BY_EMAILS = "emails";
     public static final String PATH_BY_SUBKEY = "subkey";
     public static final String PATH_BY_USER_ID = "user_id";
 
@@ -175,6 +187,16 @@ public class KeychainContract {
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
         }
 
+        /**
+         * Uri to look up master key ids for many emails at once, matching them exactly against
+         * the indexed {@link UserPacketsColumns#EMAIL} column. Returns one row per pair of email
+         * and master key id, emails must be lower case.
+         */
+        public static Uri buildFindByEmailsUri(Collection<String> emails) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_EMAILS).appendPath(TextUtils.join(",", emails)).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindByUserIdUri(String query) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_USER_ID).appendPath(query).build();
@@ -383,6 +405,12 @@ public class KeychainContract {
                     .appendPath(PATH_CERTS).build();
         }
 
+        /** Returns the certs uri of the key, limited to the given number of rows. */
+        public static Uri buildCertsPageUri(Uri uri, int limit) {
+            return buildCertsUri(uri).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit)).build();
+        }
+
         public static Uri buildLinkedIdCertsUri(Uri uri, int rank) {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1))
                     .appendPath(PATH_LINKED_IDS).appendPath(Integer.toString(rank))
@@ -54,7 +54,7 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 14;
+    private static final int DATABASE_VERSION = 15;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -116,6 +116,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.TYPE + " INT, "
                 + UserPacketsColumns.USER_ID + " TEXT, "
                 + UserPacketsColumns.ATTRIBUTE_DATA + " BLOB, "
+                + UserPacketsColumns.EMAIL + " TEXT, "
 
                 + UserPacketsColumns.IS_PRIMARY + " INTEGER, "
                 + UserPacketsColumns.IS_REVOKED + " INTEGER, "
@@ -226,6 +227,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX verified_certs ON certs ("
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+        db.execSQL("CREATE INDEX uids_by_email ON user_packets ("
+                + UserPacketsColumns.EMAIL + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
 
     }
 
@@ -301,11 +304,20 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             case 13:
                 // do nothing here, just consolidate
             case 14:
-                db.execSQL("CREATE INDEX keys_by_rank ON keys (" + KeysColumns.RANK + ");");
-                db.execSQL("CREATE INDEX uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
+                db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_rank ON keys (" + KeysColumns.RANK + ");");
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
                         + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
-                db.execSQL("CREATE INDEX verified_certs ON certs ("
+                db.execSQL("CREATE INDEX IF NOT EXISTS verified_certs ON certs ("
                         + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+            case 15:
+                // email column for bulk lookups, filled in by the consolidate below
+                try {
+                    db.execSQL("ALTER TABLE user_packets ADD COLUMN email TEXT");
+                } catch (Exception e) {
+                    // never mind, the column probably already existed
+                }
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_email ON user_packets ("
+                        + UserPacketsColumns.EMAIL + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
 
         }
 
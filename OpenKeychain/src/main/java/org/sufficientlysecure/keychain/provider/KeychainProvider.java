@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -28,6 +31,7 @@ import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
@@ -46,9 +50,11 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColu
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
@@ -77,6 +83,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
     private static final int KEY_RINGS_FIND_BY_USER_ID = 402;
+    private static final int KEY_RINGS_FIND_BY_EMAILS = 403;
 
     private static final int UPDATED_KEYS = 500;
     private static final int UPDATED_KEYS_SPECIFIC = 501;
@@ -119,6 +126,7 @@ public class KeychainProvider extends ContentProvider {
          * find by criteria other than master key id
          *
          * key_rings/find/email/_
+         * key_rings/find/emails/_
          * key_rings/find/subkey/_
          *
          */
@@ -131,6 +139,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                         + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_USER_ID + "/*",
                 KEY_RINGS_FIND_BY_USER_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                        + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_EMAILS + "/*",
+                KEY_RINGS_FIND_BY_EMAILS);
 
         /**
          * list key_ring specifics
@@ -212,21 +223,130 @@ public class KeychainProvider extends ContentProvider {
 
     private KeychainDatabase mKeychainDatabase;
 
+    // uris changed by the batch running on the current thread, notified when it is done
+    private final ThreadLocal<HashSet<Uri>> mBatchChangedUris = new ThreadLocal<>();
+    private ContentChangeCoalescer mChangeCoalescer;
+
     /**
      * {@inheritDoc}
      */
     @Override
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher();
+        mChangeCoalescer = new ContentChangeCoalescer(getContext().getContentResolver(),
+                Uri.parse("content://" + KeychainContract.CONTENT_AUTHORITY));
         return true;
     }
 
+    /**
+     * Supports {@link KeychainContract#METHOD_BEGIN_BULK_OPERATION} and
+     * {@link KeychainContract#METHOD_END_BULK_OPERATION}, which hold back change notifications
+     * while many keys are written.
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        switch (method) {
+            case KeychainContract.METHOD_BEGIN_BULK_OPERATION:
+                mChangeCoalescer.beginBulkOperation();
+                return null;
+            case KeychainContract.METHOD_END_BULK_OPERATION:
+                mChangeCoalescer.endBulkOperation();
+                return null;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
     public KeychainDatabase getDb() {
         if(mKeychainDatabase == null)
             mKeychainDatabase = new KeychainDatabase(getContext());
         return mKeychainDatabase;
     }
 
+    /**
+     * Applies all operations in a single transaction, instead of one per operation. The
+     * transaction may only be yielded to other threads before operations which allow it.
+     * Changes are notified once per uri, after the transaction is committed.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashSet<Uri> changedUris = new HashSet<>();
+        mBatchChangedUris.set(changedUris);
+        boolean success = false;
+
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    db.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            success = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchChangedUris.remove();
+            if (success) {
+                notifyChanges(changedUris);
+            }
+        }
+    }
+
+    /**
+     * Inserts all values in a single transaction, with one change notification per uri.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashSet<Uri> changedUris = new HashSet<>();
+        mBatchChangedUris.set(changedUris);
+        boolean success = false;
+
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                if (insert(uri, value) != null) {
+                    count += 1;
+                }
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            db.endTransaction();
+            mBatchChangedUris.remove();
+            if (success) {
+                notifyChanges(changedUris);
+            }
+        }
+        return count;
+    }
+
+    /** Notifies a change, or defers it until the end of the batch running on this thread. */
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> batchChangedUris = mBatchChangedUris.get();
+        if (batchChangedUris != null) {
+            batchChangedUris.add(uri);
+        } else {
+            mChangeCoalescer.notifyChange(uri);
+        }
+    }
+
+    private void notifyChanges(HashSet<Uri> uris) {
+        for (Uri uri : uris) {
+            mChangeCoalescer.notifyChange(uri);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -486,6 +606,51 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_FIND_BY_EMAILS: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
+                projectionMap.put(KeyRings.EMAIL, Tables.USER_PACKETS + "." + UserPackets.EMAIL);
+                projectionMap.put(KeyRings.IS_REVOKED, Tables.KEYS + "." + Keys.IS_REVOKED);
+                projectionMap.put(KeyRings.IS_EXPIRED,
+                        "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
+                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.USER_PACKETS + " INNER JOIN " + Tables.KEYS + " ON ("
+                        + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                            + " = " + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
+                        + " AND " + Tables.KEYS + "." + Keys.RANK + " = 0"
+                        + ")");
+
+                // exact matches only, so this can be answered from the uids_by_email index
+                StringBuilder emailIn = new StringBuilder();
+                for (String email : uri.getLastPathSegment().split(" *, *")) {
+                    if (email.length() == 0) {
+                        continue;
+                    }
+                    if (emailIn.length() > 0) {
+                        emailIn.append(", ");
+                    }
+                    emailIn.append(DatabaseUtils.sqlEscapeString(email));
+                }
+                if (emailIn.length() > 0) {
+                    qb.appendWhere(Tables.USER_PACKETS + "." + UserPackets.EMAIL
+                            + " IN (" + emailIn + ")");
+                } else {
+                    Log.e(Constants.TAG, "Malformed find by emails query!");
+                    qb.appendWhere("0");
+                }
+
+                // one row per email and key, even if several user ids carry the same email
+                groupBy = Tables.USER_PACKETS + "." + UserPackets.EMAIL
+                        + ", " + Tables.KEYS + "." + Keys.MASTER_KEY_ID;
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
+
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -614,19 +779,24 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(Certs.SIGNER_UID, "signer." + UserPackets.USER_ID + " AS " + Certs.SIGNER_UID);
                 qb.setProjectionMap(projectionMap);
 
-                qb.setTables(Tables.CERTS
+                String tables = Tables.CERTS
                     + " JOIN " + Tables.USER_PACKETS + " ON ("
                             + Tables.CERTS + "." + Certs.MASTER_KEY_ID + " = "
                             + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
                         + " AND "
                             + Tables.CERTS + "." + Certs.RANK + " = "
                             + Tables.USER_PACKETS + "." + UserPackets.RANK
-                    + ") LEFT JOIN " + Tables.USER_PACKETS + " AS signer ON ("
-                            + Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER + " = "
-                            + "signer." + UserPackets.MASTER_KEY_ID
-                        + " AND "
-                            + "signer." + Keys.RANK + " = 0"
-                    + ")");
+                    + ")";
+                // the signer join is only needed if its user id is requested
+                if (projection == null || Arrays.asList(projection).contains(Certs.SIGNER_UID)) {
+                    tables += " LEFT JOIN " + Tables.USER_PACKETS + " AS signer ON ("
+                                + Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER + " = "
+                                + "signer." + UserPackets.MASTER_KEY_ID
+                            + " AND "
+                                + "signer." + Keys.RANK + " = 0"
+                        + ")";
+                }
+                qb.setTables(tables);
 
                 groupBy = Tables.CERTS + "." + Certs.RANK + ", "
                         + Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER;
@@ -720,16 +890,18 @@ public class KeychainProvider extends ContentProvider {
             orderBy = sortOrder;
         }
 
+        String limit = uri.getQueryParameter(KeychainContract.QUERY_PARAMETER_LIMIT);
+
         SQLiteDatabase db = getDb().getReadableDatabase();
 
-        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy);
+        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy, limit);
         if (cursor != null) {
             // Tell the cursor what uri to watch, so it knows when its source data changes
             cursor.setNotificationUri(getContext().getContentResolver(), uri);
         }
 
         Log.d(Constants.TAG,
-                "Query: " + qb.buildQuery(projection, selection, null, null, orderBy, null));
+                "Query: " + qb.buildQuery(projection, selection, null, null, orderBy, limit));
 
         if (Constants.DEBUG && Constants.DEBUG_LOG_DB_QUERIES) {
             Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(cursor));
@@ -854,7 +1026,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -924,7 +1096,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -972,7 +1144,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -28,9 +28,11 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -114,6 +116,27 @@ public class ProviderHelper {
         return mLog;
     }
 
+    /**
+     * Holds back change notifications of the provider until the matching call to
+     * {@link #endBulkOperation()}, so observers refresh only once after many keys are written.
+     */
+    public void beginBulkOperation() {
+        callProvider(KeychainContract.METHOD_BEGIN_BULK_OPERATION);
+    }
+
+    public void endBulkOperation() {
+        callProvider(KeychainContract.METHOD_END_BULK_OPERATION);
+    }
+
+    private void callProvider(String method) {
+        try {
+            mContentResolver.call(KeyRings.CONTENT_URI, method, null, null);
+        } catch (RuntimeException e) {
+            // not critical, observers are just notified more often
+            Log.e(Constants.TAG, "could not call provider method " + method, e);
+        }
+    }
+
     public static class NotFoundException extends Exception {
         public NotFoundException() {
         }
@@ -712,21 +735,27 @@ public class ProviderHelper {
         }
         lastUpdatedCursor.close();
 
+        // delete old version of this keyRing, which also deletes all keys and userIds on cascade.
+        // this is part of the batch, so the key is replaced in a single transaction. the start
+        // of a keyring is the only point where the transaction may be yielded to other threads
+        operations.add(0, ContentProviderOperation
+                .newDelete(KeyRingData.buildPublicKeyRingUri(masterKeyId))
+                .withYieldAllowed(true)
+                .build());
+
         try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
+            log(LogType.MSG_IP_APPLY_BATCH);
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            ContentProviderResult[] results =
+                    mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            if (results.length > 0 && results[0].count != null && results[0].count > 0) {
                 log(LogType.MSG_IP_DELETE_OLD_OK);
                 result |= SaveKeyringResult.UPDATED;
             } else {
                 log(LogType.MSG_IP_DELETE_OLD_FAIL);
             }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-
             log(LogType.MSG_IP_SUCCESS);
             progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
             return result;
@@ -1268,6 +1297,8 @@ public class ProviderHelper {
             mConsolidateCritical = true;
         }
 
+        // the database is wiped and refilled, observers only need to see the end result
+        beginBulkOperation();
         try {
             Preferences prefs = Preferences.getPreferences(mContext);
 
@@ -1404,6 +1435,7 @@ public class ProviderHelper {
 
         } finally {
             mConsolidateCritical = false;
+            endBulkOperation();
         }
 
     }
@@ -1438,6 +1470,10 @@ public class ProviderHelper {
         values.put(UserPackets.TYPE, item.type);
         values.put(UserPackets.USER_ID, item.userId);
         values.put(UserPackets.ATTRIBUTE_DATA, item.attributeData);
+        if (item.userId != null) {
+            String email = KeyRing.splitUserId(item.userId).email;
+            values.put(UserPackets.EMAIL, email != null ? email.toLowerCase(Locale.ENGLISH) : null);
+        }
         values.put(UserPackets.IS_PRIMARY, item.isPrimary);
         values.put(UserPackets.IS_REVOKED, item.selfRevocation != null);
         values.put(UserPackets.RANK, rank);
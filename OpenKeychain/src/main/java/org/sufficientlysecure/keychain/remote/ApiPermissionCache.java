@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.HashMap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.util.SparseBooleanArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Process-wide cache of uids which have successfully passed the permission check in
+ * {@link ApiPermissionHelper}, and of the key ids each package is allowed to use.
+ * <p/>
+ * Only positive permission results are cached. An entry is dropped when the package(s) behind a
+ * uid are added, replaced, changed or removed, since their signing certificates might have
+ * changed. The whole cache is dropped on any write to the api_apps table (including accounts and
+ * allowed keys, which live below the same uri), so registering or revoking an app, or changing
+ * its allowed keys, takes effect immediately.
+ */
+public class ApiPermissionCache {
+
+    private static ApiPermissionCache sInstance;
+
+    private final SparseBooleanArray mAllowedUids = new SparseBooleanArray();
+    // sorted master key ids by package name, with and without keys of (deprecated) accounts
+    private final HashMap<String, long[]> mAllowedKeyIds = new HashMap<>();
+    private final HashMap<String, long[]> mAllowedKeyIdsWithAccounts = new HashMap<>();
+    // incremented on every invalidation, to discard results computed concurrently
+    private int mGeneration = 0;
+
+    public static synchronized ApiPermissionCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ApiPermissionCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ApiPermissionCache(Context context) {
+        context.getContentResolver().registerContentObserver(ApiApps.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        Log.d(Constants.TAG, "ApiPermissionCache: api apps changed, invalidating");
+                        invalidateAll();
+                    }
+                });
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+                Log.d(Constants.TAG, "ApiPermissionCache: " + intent.getAction() + " for uid " + uid);
+                if (uid == -1) {
+                    invalidateAll();
+                } else {
+                    invalidateUid(uid);
+                }
+            }
+        }, filter);
+    }
+
+    public synchronized boolean isUidAllowed(int uid) {
+        return mAllowedUids.get(uid, false);
+    }
+
+    /** Returns a token to be passed to {@link #putAllowedUid}, taken before the actual check. */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Remembers a uid as allowed. Ignored if the cache has been invalidated since generation
+     * was obtained, since the result might already be outdated.
+     */
+    public synchronized void putAllowedUid(int uid, int generation) {
+        if (generation == mGeneration) {
+            mAllowedUids.put(uid, true);
+        }
+    }
+
+    /** Returns sorted allowed key ids of a package, or null if they are not cached. */
+    public synchronized long[] getAllowedKeyIds(String packageName, boolean includeAccountKeys) {
+        return (includeAccountKeys ? mAllowedKeyIdsWithAccounts : mAllowedKeyIds).get(packageName);
+    }
+
+    public synchronized void putAllowedKeyIds(String packageName, boolean includeAccountKeys,
+            long[] sortedKeyIds, int generation) {
+        if (generation == mGeneration) {
+            (includeAccountKeys ? mAllowedKeyIdsWithAccounts : mAllowedKeyIds).put(packageName, sortedKeyIds);
+        }
+    }
+
+    public synchronized void invalidateUid(int uid) {
+        mGeneration += 1;
+        mAllowedUids.delete(uid);
+    }
+
+    public synchronized void invalidateAll() {
+        mGeneration += 1;
+        mAllowedUids.clear();
+        mAllowedKeyIds.clear();
+        mAllowedKeyIdsWithAccounts.clear();
+    }
+
+}
@@ -41,6 +41,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 
 
 /**
@@ -50,12 +51,14 @@ public class ApiPermissionHelper {
 
     private final Context mContext;
     private final ApiDataAccessObject mApiDao;
+    private final ApiPermissionCache mPermissionCache;
     private PackageManager mPackageManager;
 
     public ApiPermissionHelper(Context context, ApiDataAccessObject apiDao) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mApiDao = apiDao;
+        mPermissionCache = ApiPermissionCache.getInstance(context);
     }
 
     public static class WrongPackageCertificateException extends Exception {
@@ -85,7 +88,14 @@ public class ApiPermissionHelper {
     protected Intent isAllowedOrReturnIntent(Intent data) {
         ApiPendingIntentFactory piFactory = new ApiPendingIntentFactory(mContext);
         try {
-            if (isCallerAllowed()) {
+            long startTime = System.nanoTime();
+            boolean isCallerAllowed = isCallerAllowed();
+            if (Constants.DEBUG) {
+                long micros = (System.nanoTime() - startTime) / 1000;
+                Log.d(Constants.TAG, "Permission check took " + micros + "µs");
+            }
+
+            if (isCallerAllowed) {
                 return null;
             } else {
                 String packageName = getCurrentCallingPackage();
@@ -168,6 +178,35 @@ public class ApiPermissionHelper {
         return currentPkg;
     }
 
+    /**
+     * Returns the sorted master key ids the given package is allowed to use, optionally including
+     * the keys of its (deprecated) accounts. Served from {@link ApiPermissionCache} if possible.
+     */
+    protected long[] getAllowedKeyIds(String packageName, boolean includeAccountKeys) {
+        long[] cachedKeyIds = mPermissionCache.getAllowedKeyIds(packageName, includeAccountKeys);
+        if (cachedKeyIds != null) {
+            return cachedKeyIds;
+        }
+        int cacheGeneration = mPermissionCache.getGeneration();
+
+        HashSet<Long> keyIds = mApiDao.getAllowedKeyIdsForApp(
+                KeychainContract.ApiAllowedKeys.buildBaseUri(packageName));
+        if (includeAccountKeys) {
+            keyIds.addAll(mApiDao.getAllKeyIdsForApp(
+                    KeychainContract.ApiAccounts.buildBaseUri(packageName)));
+        }
+
+        long[] sortedKeyIds = new long[keyIds.size()];
+        int i = 0;
+        for (long keyId : keyIds) {
+            sortedKeyIds[i++] = keyId;
+        }
+        Arrays.sort(sortedKeyIds);
+
+        mPermissionCache.putAllowedKeyIds(packageName, includeAccountKeys, sortedKeyIds, cacheGeneration);
+        return sortedKeyIds;
+    }
+
     /**
      * Retrieves AccountSettings from database for the application calling this remote service
      */
@@ -213,11 +252,19 @@ public class ApiPermissionHelper {
     private boolean isUidAllowed(int uid)
             throws WrongPackageCertificateException {
 
+        if (mPermissionCache.isUidAllowed(uid)) {
+            Log.d(Constants.TAG, "Uid is allowed (cached)");
+            return true;
+        }
+        // must be obtained before the check, so a concurrent invalidation isn't lost
+        int cacheGeneration = mPermissionCache.getGeneration();
+
         String[] callingPackages = mPackageManager.getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
         for (String currentPkg : callingPackages) {
             if (isPackageAllowed(currentPkg)) {
+                mPermissionCache.putAllowedUid(uid, cacheGeneration);
                 return true;
             }
         }
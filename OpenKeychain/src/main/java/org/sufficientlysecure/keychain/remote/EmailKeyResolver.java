@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Resolves recipient emails to master key ids of usable (not revoked or expired) keys.
+ * <p/>
+ * All emails which are not in the cache are looked up in a single query against the indexed
+ * email column of user packets. Results are kept for a short time, and dropped as soon as
+ * anything below the key_rings uri changes.
+ */
+public class EmailKeyResolver {
+
+    private static final long CACHE_TTL_MILLIS = 60 * 1000;
+    // emails are passed as part of the uri, so don't make it too long
+    private static final int MAX_EMAILS_PER_QUERY = 250;
+
+    private static final long[] NO_KEYS = new long[0];
+
+    private static final String[] PROJECTION = new String[]{
+            KeyRings.EMAIL,
+            KeyRings.MASTER_KEY_ID,
+            KeyRings.IS_EXPIRED,
+            KeyRings.IS_REVOKED,
+    };
+    private static final int INDEX_EMAIL = 0;
+    private static final int INDEX_MASTER_KEY_ID = 1;
+
+    // do not pre-select revoked or expired keys
+    private static final String WHERE = Tables.KEYS + "." + KeyRings.IS_REVOKED
+            + " = 0 AND " + KeyRings.IS_EXPIRED + " = 0";
+
+    private static EmailKeyResolver sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final HashMap<String, CachedKeyIds> mCache = new HashMap<>();
+    // incremented on every invalidation, to discard results queried concurrently
+    private int mGeneration = 0;
+
+    private static class CachedKeyIds {
+        final long[] mMasterKeyIds;
+        final long mTimestamp;
+
+        CachedKeyIds(long[] masterKeyIds, long timestamp) {
+            mMasterKeyIds = masterKeyIds;
+            mTimestamp = timestamp;
+        }
+    }
+
+    public static synchronized EmailKeyResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EmailKeyResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private EmailKeyResolver(Context context) {
+        mContentResolver = context.getContentResolver();
+        mContentResolver.registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    public synchronized void invalidate() {
+        mGeneration += 1;
+        mCache.clear();
+    }
+
+    public static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the master key ids found for each of the given emails, keyed by the emails
+     * as they were passed in. Emails without a matching key map to an empty array, emails
+     * with more than one matching key to all of them.
+     */
+    public HashMap<String, long[]> resolveEmails(Collection<String> emails) {
+        HashMap<String, long[]> result = new HashMap<>();
+
+        long now = SystemClock.elapsedRealtime();
+        HashSet<String> uncachedEmails = new HashSet<>();
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+            for (String email : emails) {
+                String normalizedEmail = normalizeEmail(email);
+                CachedKeyIds cached = mCache.get(normalizedEmail);
+                if (cached != null && now - cached.mTimestamp < CACHE_TTL_MILLIS) {
+                    result.put(email, cached.mMasterKeyIds);
+                } else {
+                    uncachedEmails.add(normalizedEmail);
+                }
+            }
+        }
+
+        if (!uncachedEmails.isEmpty()) {
+            HashMap<String, long[]> queried = queryEmails(uncachedEmails);
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    for (String normalizedEmail : uncachedEmails) {
+                        mCache.put(normalizedEmail, new CachedKeyIds(queried.get(normalizedEmail), now));
+                    }
+                }
+            }
+            for (String email : emails) {
+                if (!result.containsKey(email)) {
+                    result.put(email, queried.get(normalizeEmail(email)));
+                }
+            }
+        }
+
+        Log.d(Constants.TAG, "resolved " + emails.size() + " emails, "
+                + uncachedEmails.size() + " of them from database");
+        return result;
+    }
+
+    /** Queries all given (normalized) emails, returning an entry for each of them. */
+    private HashMap<String, long[]> queryEmails(Collection<String> normalizedEmails) {
+        HashMap<String, LongSparseArray<Boolean>> found = new HashMap<>();
+
+        ArrayList<String> chunk = new ArrayList<>(MAX_EMAILS_PER_QUERY);
+        for (String email : normalizedEmails) {
+            // commas are used as separator in the uri
+            if (email.isEmpty() || email.contains(",")) {
+                continue;
+            }
+            chunk.add(email);
+            if (chunk.size() == MAX_EMAILS_PER_QUERY) {
+                queryChunk(chunk, found);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            queryChunk(chunk, found);
+        }
+
+        HashMap<String, long[]> result = new HashMap<>();
+        for (String email : normalizedEmails) {
+            LongSparseArray<Boolean> keyIds = found.get(email);
+            if (keyIds == null) {
+                result.put(email, NO_KEYS);
+                continue;
+            }
+            long[] keyIdsArray = new long[keyIds.size()];
+            for (int i = 0; i < keyIdsArray.length; i++) {
+                keyIdsArray[i] = keyIds.keyAt(i);
+            }
+            result.put(email, keyIdsArray);
+        }
+        return result;
+    }
+
+    private void queryChunk(Collection<String> emails, HashMap<String, LongSparseArray<Boolean>> found) {
+        Cursor cursor = mContentResolver.query(KeyRings.buildFindByEmailsUri(emails),
+                PROJECTION, WHERE, null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                String email = cursor.getString(INDEX_EMAIL);
+                LongSparseArray<Boolean> keyIds = found.get(email);
+                if (keyIds == null) {
+                    keyIds = new LongSparseArray<>();
+                    found.put(email, keyIds);
+                }
+                keyIds.put(cursor.getLong(INDEX_MASTER_KEY_ID), true);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+}
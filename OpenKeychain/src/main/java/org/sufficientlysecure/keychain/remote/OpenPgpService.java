@@ -27,14 +27,13 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
@@ -63,10 +62,6 @@ import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
-import org.sufficientlysecure.keychain.provider.KeychainContract;
-import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
@@ -79,27 +74,16 @@ public class OpenPgpService extends Service {
     public static final List<Integer> SUPPORTED_VERSIONS =
             Collections.unmodifiableList(Arrays.asList(3, 4, 5, 6, 7, 8, 9, 10, 11));
 
-    static final String[] KEY_SEARCH_PROJECTION = new String[]{
-            KeyRings._ID,
-            KeyRings.MASTER_KEY_ID,
-            KeyRings.IS_EXPIRED,
-            KeyRings.IS_REVOKED,
-    };
-
-    // do not pre-select revoked or expired keys
-    static final String KEY_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
-            + " = 0 AND " + KeychainContract.KeyRings.IS_EXPIRED + " = 0";
-
     private ApiPermissionHelper mApiPermissionHelper;
     private ProviderHelper mProviderHelper;
-    private ApiDataAccessObject mApiDao;
+    private EmailKeyResolver mEmailKeyResolver;
 
     @Override
     public void onCreate() {
         super.onCreate();
         mApiPermissionHelper = new ApiPermissionHelper(this, new ApiDataAccessObject(this));
         mProviderHelper = new ProviderHelper(this);
-        mApiDao = new ApiDataAccessObject(this);
+        mEmailKeyResolver = EmailKeyResolver.getInstance(this);
     }
 
     private static class KeyIdResult {
@@ -125,36 +109,33 @@ public class OpenPgpService extends Service {
         ArrayList<String> missingEmails = new ArrayList<>();
         ArrayList<String> duplicateEmails = new ArrayList<>();
         if (!noUserIdsCheck) {
+            ArrayList<String> emails = new ArrayList<>(encryptionUserIds.length);
             for (String rawUserId : encryptionUserIds) {
                 UserId userId = KeyRing.splitUserId(rawUserId);
-                String email = userId.email != null ? userId.email : rawUserId;
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = getContentResolver().query(uri, KEY_SEARCH_PROJECTION, KEY_SEARCH_WHERE, null, null);
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                    } else {
-                        missingUserIdsCheck = true;
-                        missingEmails.add(email);
-                        Log.d(Constants.TAG, "user id missing");
-                    }
-                    // another entry for this email -> two keys with the same email inside user id
-                    if (cursor != null && cursor.moveToNext()) {
-                        duplicateUserIdsCheck = true;
-                        duplicateEmails.add(email);
-
-                        // also pre-select
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                        Log.d(Constants.TAG, "more than one user id with the same email");
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
+                emails.add(userId.email != null ? userId.email : rawUserId);
+            }
+
+            // look up keys for all emails at once
+            HashMap<String, long[]> emailKeyIds = mEmailKeyResolver.resolveEmails(emails);
+            for (String email : emails) {
+                long[] ids = emailKeyIds.get(email);
+                if (ids.length == 0) {
+                    missingUserIdsCheck = true;
+                    missingEmails.add(email);
+                    Log.d(Constants.TAG, "user id missing");
+                    continue;
+                }
+
+                // more than one key -> several keys with the same email inside user id
+                if (ids.length > 1) {
+                    duplicateUserIdsCheck = true;
+                    duplicateEmails.add(email);
+                    Log.d(Constants.TAG, "more than one user id with the same email");
+                }
+
+                // also pre-select duplicates
+                for (long id : ids) {
+                    keyIds.add(id);
                 }
             }
         }
@@ -431,13 +412,9 @@ public class OpenPgpService extends Service {
             }
 
             String currentPkg = mApiPermissionHelper.getCurrentCallingPackage();
-            HashSet<Long> allowedKeyIds = mApiDao.getAllowedKeyIdsForApp(
-                    KeychainContract.ApiAllowedKeys.buildBaseUri(currentPkg));
-
-            if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 7) {
-                allowedKeyIds.addAll(mApiDao.getAllKeyIdsForApp(
-                        ApiAccounts.buildBaseUri(currentPkg)));
-            }
+            // keys of accounts are allowed for older API versions
+            long[] allowedKeyIds = mApiPermissionHelper.getAllowedKeyIds(currentPkg,
+                    data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 7);
 
             CryptoInputParcel cryptoInput = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
             if (cryptoInput == null) {
@@ -34,6 +34,11 @@ public class BackupKeyringParcel implements Parcelable {
     public long mMasterKeyIds[];
     public Uri mOutputUri;
 
+    // write an ascii armored backup, or a binary one otherwise
+    public boolean mEnableAsciiArmor = true;
+    // if not null, only keys with a greater master key id are backed up
+    public Long mResumeAfterMasterKeyId;
+
     public BackupKeyringParcel(Passphrase symmetricPassphrase,
                                long[] masterKeyIds, boolean exportSecret, Uri outputUri) {
         mSymmetricPassphrase = symmetricPassphrase;
@@ -48,6 +53,8 @@ public class BackupKeyringParcel implements Parcelable {
         mOutputUri = (Uri) in.readValue(Uri.class.getClassLoader());
         mMasterKeyIds = in.createLongArray();
         mSymmetricPassphrase = in.readParcelable(getClass().getClassLoader());
+        mEnableAsciiArmor = in.readByte() != 0x00;
+        mResumeAfterMasterKeyId = (Long) in.readValue(Long.class.getClassLoader());
     }
 
     @Override
@@ -62,6 +69,8 @@ public class BackupKeyringParcel implements Parcelable {
         dest.writeValue(mOutputUri);
         dest.writeLongArray(mMasterKeyIds);
         dest.writeParcelable(mSymmetricPassphrase, 0);
+        dest.writeByte((byte) (mEnableAsciiArmor ? 0x01 : 0x00));
+        dest.writeValue(mResumeAfterMasterKeyId);
     }
 
     public static final Parcelable.Creator<BackupKeyringParcel> CREATOR = new Parcelable.Creator<BackupKeyringParcel>() {
@@ -60,9 +60,11 @@ import com.github.pinball83.maskededittext.MaskedEditText;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.ExportResult;
+import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationFragment;
+import org.sufficientlysecure.keychain.ui.util.FileOperationTask;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.ActionListener;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
@@ -479,12 +481,29 @@ public class BackupCodeFragment extends CryptoOperationFragment<BackupKeyringPar
             return;
         }
 
-        try {
-            FileHelper.copyUriData(activity, mCachedBackupUri, Uri.fromFile(file));
-            Notify.create(activity, R.string.snack_backup_saved_dir, Style.OK).show();
-        } catch (IOException e) {
-            Notify.create(activity, R.string.snack_backup_error_saving, Style.ERROR).show();
-        }
+        copyBackup(activity, Uri.fromFile(file), R.string.snack_backup_saved_dir);
+    }
+
+    /** Copies the cached backup to outputUri in the background, showing its progress. */
+    private void copyBackup(FragmentActivity activity, final Uri outputUri, final int savedMessageId) {
+        final Uri backupUri = mCachedBackupUri;
+        new FileOperationTask<Void>(activity, getString(R.string.progress_saving)) {
+            @Override
+            protected Void runOperation(Progressable progressable) throws IOException {
+                FileHelper.copyUriData(getActivity(), backupUri, outputUri, progressable);
+                return null;
+            }
+
+            @Override
+            protected void onSuccess(Void result) {
+                Notify.create(getActivity(), savedMessageId, Style.OK).show();
+            }
+
+            @Override
+            protected void onFailure(Exception e) {
+                Notify.create(getActivity(), R.string.snack_backup_error_saving, Style.ERROR).show();
+            }
+        }.execute();
     }
 
     @Override
@@ -502,13 +521,7 @@ public class BackupCodeFragment extends CryptoOperationFragment<BackupKeyringPar
         if (activity == null) {
             return;
         }
-        try {
-            Uri outputUri = data.getData();
-            FileHelper.copyUriData(activity, mCachedBackupUri, outputUri);
-            Notify.create(activity, R.string.snack_backup_saved, Style.OK).show();
-        } catch (IOException e) {
-            Notify.create(activity, R.string.snack_backup_error_saving, Style.ERROR).show();
-        }
+        copyBackup(activity, data.getData(), R.string.snack_backup_saved);
     }
 
     @Nullable
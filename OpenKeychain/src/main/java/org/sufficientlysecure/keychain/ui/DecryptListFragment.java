@@ -45,6 +45,7 @@ import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.widget.DefaultItemAnimator;
 import android.support.v7.widget.LinearLayoutManager;
@@ -76,6 +77,7 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
@@ -87,6 +89,7 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.StatusHolder;
 import org.sufficientlysecure.keychain.ui.DecryptListFragment.ViewHolder.SubViewHolder;
 import org.sufficientlysecure.keychain.ui.DecryptListFragment.DecryptFilesAdapter.ViewModel;
 import org.sufficientlysecure.keychain.ui.adapter.SpacesItemDecoration;
+import org.sufficientlysecure.keychain.ui.util.FileOperationTask;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
@@ -306,18 +309,33 @@ public class DecryptListFragment
 
         hideKeyboard();
 
-        Activity activity = getActivity();
+        FragmentActivity activity = getActivity();
         if (activity == null) {
             return;
         }
 
-        try {
-            FileHelper.copyUriData(activity, decryptedFileUri, saveUri);
-            Notify.create(activity, R.string.file_saved, Style.OK).show();
-        } catch (IOException e) {
-            Log.e(Constants.TAG, "error saving file", e);
-            Notify.create(activity, R.string.error_saving_file, Style.ERROR).show();
-        }
+        copyFile(activity, decryptedFileUri, saveUri);
+    }
+
+    private void copyFile(FragmentActivity activity, final Uri fromUri, final Uri toUri) {
+        new FileOperationTask<Void>(activity, getString(R.string.progress_saving)) {
+            @Override
+            protected Void runOperation(Progressable progressable) throws IOException {
+                FileHelper.copyUriData(getActivity(), fromUri, toUri, progressable);
+                return null;
+            }
+
+            @Override
+            protected void onSuccess(Void result) {
+                Notify.create(getActivity(), R.string.file_saved, Style.OK).show();
+            }
+
+            @Override
+            protected void onFailure(Exception e) {
+                Log.e(Constants.TAG, "error saving file", e);
+                Notify.create(getActivity(), R.string.error_saving_file, Style.ERROR).show();
+            }
+        }.execute();
     }
 
     @Override
@@ -732,7 +750,7 @@ public class DecryptListFragment
             return true;
         }
 
-        Activity activity = getActivity();
+        FragmentActivity activity = getActivity();
         if (activity == null) {
             return false;
         }
@@ -806,22 +824,34 @@ public class DecryptListFragment
     }
 
 
-    private void deleteFile(Activity activity, Uri uri) {
+    private void deleteFile(FragmentActivity activity, final Uri uri) {
 
         // we can only ever delete a file once, if we got this far either it's gone or it will never work
         mCanDelete = false;
 
-        try {
-            int deleted = FileHelper.deleteFileSecurely(activity, uri);
-            if (deleted > 0) {
-                Notify.create(activity, R.string.file_delete_ok, Style.OK).show();
-            } else {
-                Notify.create(activity, R.string.file_delete_none, Style.WARN).show();
+        String filename = FileHelper.getFilename(activity, uri);
+        new FileOperationTask<Integer>(activity,
+                getString(R.string.progress_deleting_securely, filename)) {
+            @Override
+            protected Integer runOperation(Progressable progressable) throws IOException {
+                return FileHelper.deleteFileSecurely(getActivity(), uri, progressable);
             }
-        } catch (Exception e) {
-            Log.e(Constants.TAG, "exception deleting file", e);
-            Notify.create(activity, R.string.file_delete_exception, Style.ERROR).show();
-        }
+
+            @Override
+            protected void onSuccess(Integer deleted) {
+                if (deleted > 0) {
+                    Notify.create(getActivity(), R.string.file_delete_ok, Style.OK).show();
+                } else {
+                    Notify.create(getActivity(), R.string.file_delete_none, Style.WARN).show();
+                }
+            }
+
+            @Override
+            protected void onFailure(Exception e) {
+                Log.e(Constants.TAG, "exception deleting file", e);
+                Notify.create(getActivity(), R.string.file_delete_exception, Style.ERROR).show();
+            }
+        }.execute();
 
     }
 
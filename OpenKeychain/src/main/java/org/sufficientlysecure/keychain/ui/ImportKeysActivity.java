@@ -42,7 +42,6 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.io.IOException;
@@ -350,9 +349,6 @@ public class ImportKeysActivity extends BaseActivity
         if (ls instanceof ImportKeysListFragment.BytesLoaderState) {
             Log.d(Constants.TAG, "importKeys started");
 
-            // get DATA from selected key entries
-            IteratorWithSize<ParcelableKeyRing> selectedEntries = keyListFragment.getSelectedData();
-
             // instead of giving the entries by Intent extra, cache them into a
             // file to prevent Java Binder problems on heavy imports
             // read FileImportCache for more info.
@@ -361,7 +357,7 @@ public class ImportKeysActivity extends BaseActivity
                 // display here, we should be able to import.
                 ParcelableFileCache<ParcelableKeyRing> cache =
                         new ParcelableFileCache<>(this, "key_import.pcl");
-                cache.writeCache(selectedEntries);
+                keyListFragment.writeSelectedData(cache);
 
                 mKeyList = null;
                 mKeyserver = null;
@@ -18,8 +18,8 @@
 package org.sufficientlysecure.keychain.ui;
 
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import android.Manifest;
@@ -35,7 +35,6 @@ import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.Loader;
-import android.support.v4.util.LongSparseArray;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
@@ -52,8 +51,9 @@ import org.sufficientlysecure.keychain.ui.adapter.AsyncTaskResultWrapper;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysAdapter;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListCloudLoader;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListLoader;
+import org.sufficientlysecure.keychain.ui.adapter.KeyRingFileIndex;
 import org.sufficientlysecure.keychain.util.Log;
-import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
@@ -78,7 +78,7 @@ public class ImportKeysListFragment extends ListFragment implements
     private static final int LOADER_ID_BYTES = 0;
     private static final int LOADER_ID_CLOUD = 1;
 
-    private LongSparseArray<ParcelableKeyRing> mCachedKeyData;
+    private KeyRingFileIndex mKeyRingIndex;
     private boolean mNonInteractive;
 
     private boolean mShowingOrbotDialog;
@@ -92,37 +92,11 @@ public class ImportKeysListFragment extends ListFragment implements
     }
 
     /**
-     * Returns an Iterator (with size) of the selected data items.
-     * This iterator is sort of a tradeoff, it's slightly more complex than an
-     * ArrayList would have been, but we save some memory by just returning
-     * relevant elements on demand.
+     * Writes the selected keyrings to the cache. The keyrings are read from the key file
+     * again, so only the list entries have to be kept in memory while the file is shown.
      */
-    public IteratorWithSize<ParcelableKeyRing> getSelectedData() {
-        final ArrayList<ImportKeysListEntry> entries = getSelectedEntries();
-        final Iterator<ImportKeysListEntry> it = entries.iterator();
-        return new IteratorWithSize<ParcelableKeyRing>() {
-
-            @Override
-            public int getSize() {
-                return entries.size();
-            }
-
-            @Override
-            public boolean hasNext() {
-                return it.hasNext();
-            }
-
-            @Override
-            public ParcelableKeyRing next() {
-                // throws NoSuchElementException if it doesn't exist, but that's not our problem
-                return mCachedKeyData.get(it.next().hashCode());
-            }
-
-            @Override
-            public void remove() {
-                it.remove();
-            }
-        };
+    public void writeSelectedData(ParcelableFileCache<ParcelableKeyRing> cache) throws IOException {
+        mKeyRingIndex.writeKeyRings(getSelectedEntries(), cache);
     }
 
     public ArrayList<ImportKeysListEntry> getSelectedEntries() {
@@ -401,8 +375,8 @@ public class ImportKeysListFragment extends ListFragment implements
             setListShownNoAnimation(true);
         }
 
-        // free old cached key data
-        mCachedKeyData = null;
+        // free old key index
+        mKeyRingIndex = null;
 
         GetKeyResult getKeyResult = (GetKeyResult) data.getOperationResult();
         switch (loader.getId()) {
@@ -410,7 +384,7 @@ public class ImportKeysListFragment extends ListFragment implements
 
                 if (getKeyResult.success()) {
                     // No error
-                    mCachedKeyData = ((ImportKeysListLoader) loader).getParcelableRings();
+                    mKeyRingIndex = ((ImportKeysListLoader) loader).getKeyRingIndex();
                 } else {
                     getKeyResult.createNotify(getActivity()).show();
                 }
@@ -27,12 +27,10 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.graphics.Color;
-import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.widget.SearchView;
@@ -69,6 +67,7 @@ import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
 import org.sufficientlysecure.keychain.service.ConsolidateInputParcel;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.ui.adapter.KeyAdapter;
+import org.sufficientlysecure.keychain.ui.adapter.KeyListLoader;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -298,30 +297,19 @@ public class KeyListFragment extends LoaderFragment
         startActivity(searchIntent);
     }
 
-    static final String ORDER =
-            KeyRings.HAS_ANY_SECRET + " DESC, " + KeyRings.USER_ID + " COLLATE NOCASE ASC";
-
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri uri;
-        if (!TextUtils.isEmpty(mQuery)) {
-            uri = KeyRings.buildUnifiedKeyRingsFindByUserIdUri(mQuery);
-        } else {
-            uri = KeyRings.buildUnifiedKeyRingsUri();
-        }
-
-        // Now create and return a CursorLoader that will take care of
-        // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), uri, KeyListAdapter.PROJECTION, null, null, ORDER);
+        // The loader keeps the key list in memory, and filters it by the search query.
+        return new KeyListLoader(getActivity(), mQuery);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         // Swap the new cursor in. (The framework will take care of closing the
         // old cursor once we return.)
-        mAdapter.setSearchQuery(mQuery);
+        mAdapter.setSearchQuery(((KeyListLoader) loader).getQuery());
 
         if (data != null && (mQuery == null || TextUtils.isEmpty(mQuery))) {
             boolean isSecret = data.moveToFirst() && data.getInt(KeyListAdapter.INDEX_HAS_ANY_SECRET) != 0;
@@ -432,7 +420,7 @@ public class KeyListFragment extends LoaderFragment
             @Override
             public boolean onMenuItemActionCollapse(MenuItem item) {
                 mQuery = null;
-                getLoaderManager().restartLoader(0, null, KeyListFragment.this);
+                setLoaderQuery();
 
                 // enable swipe-to-refresh
                 // mSwipeRefreshLayout.setIsLocked(false);
@@ -498,6 +486,16 @@ public class KeyListFragment extends LoaderFragment
         }
     }
 
+    /** Filters the loaded key list by the current query, without querying the database again. */
+    private void setLoaderQuery() {
+        Loader<Cursor> loader = getLoaderManager().getLoader(0);
+        if (loader instanceof KeyListLoader) {
+            ((KeyListLoader) loader).setQuery(mQuery);
+        } else {
+            getLoaderManager().restartLoader(0, null, this);
+        }
+    }
+
     @Override
     public boolean onQueryTextSubmit(String s) {
         return true;
@@ -513,7 +511,7 @@ public class KeyListFragment extends LoaderFragment
         // This hack prevents restarting the loader.
         if (!s.equals(mQuery)) {
             mQuery = s;
-            getLoaderManager().restartLoader(0, null, this);
+            setLoaderQuery();
         }
 
         if (s.length() > 2) {
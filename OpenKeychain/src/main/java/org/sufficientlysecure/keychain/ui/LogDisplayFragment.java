@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.Color;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
 import android.util.TypedValue;
@@ -34,7 +35,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
@@ -168,18 +169,65 @@ public class LogDisplayFragment extends ListFragment implements OnItemClickListe
         startActivity(intent);
     }
 
-    private class LogAdapter extends ArrayAdapter<LogEntryParcel> {
+    /**
+     * Adapter over the entries of a log, which are paged in lazily for large logs. Entries
+     * which are not in memory are read in the background, and shown once they are.
+     */
+    private class LogAdapter extends BaseAdapter {
 
+        // entries read ahead of the shown ones
+        private static final int PREFETCH_DISTANCE = 64;
+
+        private final OperationResult.OperationLog mLog;
         private LayoutInflater mInflater;
         private int dipFactor;
+        private boolean mPrefetching = false;
 
         public LogAdapter(Context context, OperationResult.OperationLog log) {
-            super(context, R.layout.log_display_item, log.toList());
-            mInflater = LayoutInflater.from(getContext());
+            mLog = log;
+            mInflater = LayoutInflater.from(context);
             dipFactor = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
                     (float) 8, getResources().getDisplayMetrics());
         }
 
+        @Override
+        public int getCount() {
+            return mLog.size();
+        }
+
+        @Override
+        public LogEntryParcel getItem(int position) {
+            return mLog.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        private void prefetch(final int position) {
+            final int last = Math.min(position + PREFETCH_DISTANCE, getCount() - 1);
+            if (mPrefetching || (mLog.isInMemory(position) && mLog.isInMemory(last))) {
+                return;
+            }
+            mPrefetching = true;
+            new AsyncTask<Void, Void, Void>() {
+                @Override
+                protected Void doInBackground(Void... params) {
+                    // reading an entry keeps its page cached
+                    mLog.get(position);
+                    mLog.get(last);
+                    return null;
+                }
+
+                @Override
+                protected void onPostExecute(Void result) {
+                    mPrefetching = false;
+                    notifyDataSetChanged();
+                }
+            }.execute();
+        }
+
         private class ItemHolder {
             final View mSecond;
             final TextView mText, mSecondText;
@@ -196,7 +244,6 @@ public class LogDisplayFragment extends ListFragment implements OnItemClickListe
         // Check if convertView.setPadding is redundant
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            LogEntryParcel entry = getItem(position);
             ItemHolder ih;
             if (convertView == null) {
                 convertView = mInflater.inflate(R.layout.log_display_item, parent, false);
@@ -213,6 +260,18 @@ public class LogDisplayFragment extends ListFragment implements OnItemClickListe
                 ih = (ItemHolder) convertView.getTag();
             }
 
+            prefetch(position);
+            if (!mLog.isInMemory(position)) {
+                // still being read, the list is updated once it is
+                ih.mSub.setVisibility(View.GONE);
+                ih.mSecond.setVisibility(View.GONE);
+                ih.mText.setText(null);
+                ih.mImg.setBackgroundColor(Color.TRANSPARENT);
+                return convertView;
+            }
+
+            LogEntryParcel entry = getItem(position);
+
             if (entry instanceof SubLogEntryParcel) {
                 ih.mSub.setVisibility(View.VISIBLE);
                 convertView.setClickable(false);
@@ -41,6 +41,7 @@ public class QrCodeViewActivity extends BaseActivity {
 
     private ImageView mQrCode;
     private CardView mQrCodeLayout;
+    private int mQrCodeSize;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -85,21 +86,33 @@ public class QrCodeViewActivity extends BaseActivity {
                 ActivityCompat.finishAfterTransition(QrCodeViewActivity.this);
             }
 
-            Uri uri = new Uri.Builder()
+            final Uri uri = new Uri.Builder()
                     .scheme(Constants.FINGERPRINT_SCHEME)
                     .opaquePart(KeyFormattingUtils.convertFingerprintToHex(blob))
                     .build();
-            // create a minimal size qr code, we can keep this in ram no problem
-            final Bitmap qrCode = QrCodeUtils.getQRCodeBitmap(uri, 0);
 
             mQrCode.getViewTreeObserver().addOnGlobalLayoutListener(
                     new OnGlobalLayoutListener() {
                         @Override
                         public void onGlobalLayout() {
-                            // create actual bitmap in display dimensions
-                            Bitmap scaled = Bitmap.createScaledBitmap(qrCode,
-                                    mQrCode.getWidth(), mQrCode.getWidth(), false);
-                            mQrCode.setImageBitmap(scaled);
+                            // create actual bitmap in display dimensions, once per size
+                            final int size = mQrCode.getWidth();
+                            if (size == 0 || size == mQrCodeSize) {
+                                return;
+                            }
+                            mQrCodeSize = size;
+                            Bitmap qrCode = QrCodeUtils.getQRCodeBitmapAsync(uri, size,
+                                    new QrCodeUtils.QrCodeCallback() {
+                                        @Override
+                                        public void onQrCodeLoaded(Bitmap qrCode) {
+                                            if (qrCode != null && size == mQrCodeSize && !isFinishing()) {
+                                                mQrCode.setImageBitmap(qrCode);
+                                            }
+                                        }
+                                    });
+                            if (qrCode != null) {
+                                mQrCode.setImageBitmap(qrCode);
+                            }
                         }
                     });
         } catch (ProviderHelper.NotFoundException e) {
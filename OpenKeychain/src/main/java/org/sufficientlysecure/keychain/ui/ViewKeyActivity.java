@@ -34,7 +34,6 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.nfc.NfcAdapter;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -49,7 +48,6 @@ import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.widget.CardView;
 import android.view.Menu;
@@ -91,11 +89,14 @@ import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.State;
 import org.sufficientlysecure.keychain.ui.util.ContentDescriptionHint;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailCursorLoader;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailSnapshot;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.ActionListener;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
 import org.sufficientlysecure.keychain.ui.util.QrCodeUtils;
 import org.sufficientlysecure.keychain.util.ContactHelper;
+import org.sufficientlysecure.keychain.util.ContactPhotoCache;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.NfcHelper;
 import org.sufficientlysecure.keychain.util.Passphrase;
@@ -270,6 +271,9 @@ public class ViewKeyActivity extends BaseSecurityTokenNfcActivity implements
 
         Log.i(Constants.TAG, "mDataUri: " + mDataUri);
 
+        // read all details of the key at once, while the activity is still being set up
+        KeyDetailSnapshot.prefetch(this, mDataUri);
+
         mActionEncryptFile.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -583,6 +587,12 @@ public class ViewKeyActivity extends BaseSecurityTokenNfcActivity implements
         startActivityForResult(deleteIntent, REQUEST_DELETE);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        KeyDetailSnapshot.release(mDataUri);
+    }
+
     @Override
     protected void onActivityResult(@RequestType int requestCode, int resultCode, Intent data) {
         if (mImportOpHelper.handleActivityResult(requestCode, resultCode, data)) {
@@ -773,34 +783,52 @@ public class ViewKeyActivity extends BaseSecurityTokenNfcActivity implements
      * Load QR Code asynchronously and with a fade in animation
      */
     private void loadQrCode(final String fingerprint) {
-        AsyncTask<Void, Void, Bitmap> loadTask =
-                new AsyncTask<Void, Void, Bitmap>() {
-                    protected Bitmap doInBackground(Void... unused) {
-                        Uri uri = new Uri.Builder()
-                                .scheme(Constants.FINGERPRINT_SCHEME)
-                                .opaquePart(fingerprint)
-                                .build();
-                        // render with minimal size
-                        return QrCodeUtils.getQRCodeBitmap(uri, 0);
-                    }
-
-                    protected void onPostExecute(Bitmap qrCode) {
+        Uri uri = new Uri.Builder()
+                .scheme(Constants.FINGERPRINT_SCHEME)
+                .opaquePart(fingerprint)
+                .build();
+        // render in our actual size. we do this rather than let the ImageView scale
+        // the image because we don't require filtering.
+        Bitmap qrCode = QrCodeUtils.getQRCodeBitmapAsync(uri, mQrCode.getHeight(),
+                new QrCodeUtils.QrCodeCallback() {
+                    @Override
+                    public void onQrCodeLoaded(Bitmap qrCode) {
+                        if (qrCode == null || isFinishing() || !fingerprint.equals(mFingerprintString)) {
+                            return;
+                        }
                         mQrCodeLoaded = fingerprint;
-                        // scale the image up to our actual size. we do this in code rather
-                        // than let the ImageView do this because we don't require filtering.
-                        Bitmap scaled = Bitmap.createScaledBitmap(qrCode,
-                                mQrCode.getHeight(), mQrCode.getHeight(),
-                                false);
-                        mQrCode.setImageBitmap(scaled);
+                        mQrCode.setImageBitmap(qrCode);
 
                         // simple fade-in animation
                         AlphaAnimation anim = new AlphaAnimation(0.0f, 1.0f);
                         anim.setDuration(200);
                         mQrCode.startAnimation(anim);
                     }
-                };
+                });
+
+        if (qrCode != null) {
+            // cached, e.g. after rotation
+            mQrCodeLoaded = fingerprint;
+            mQrCode.setImageBitmap(qrCode);
+        }
+    }
+
+    /**
+     * Load photo of the linked contact asynchronously, if there is one
+     */
+    private void loadPhoto() {
+        new ContactHelper(this).loadPhotoByMasterKeyIdAsync(mMasterKeyId, true,
+                new ContactPhotoCache.PhotoCallback() {
+                    @Override
+                    public void onPhotoLoaded(long masterKeyId, boolean highRes, Bitmap photo) {
+                        if (photo == null || masterKeyId != mMasterKeyId || isFinishing()) {
+                            return;
+                        }
 
-        loadTask.execute();
+                        mPhoto.setImageBitmap(photo);
+                        mPhotoLayout.setVisibility(View.VISIBLE);
+                    }
+                });
     }
 
 
@@ -831,7 +859,7 @@ public class ViewKeyActivity extends BaseSecurityTokenNfcActivity implements
         switch (id) {
             case LOADER_ID_UNIFIED: {
                 Uri baseUri = KeychainContract.KeyRings.buildUnifiedKeyRingUri(mDataUri);
-                return new CursorLoader(this, baseUri, PROJECTION, null, null, null);
+                return new KeyDetailCursorLoader(this, baseUri, PROJECTION, null, null, null);
             }
 
             default:
@@ -911,23 +939,6 @@ public class ViewKeyActivity extends BaseSecurityTokenNfcActivity implements
                         // this is done at the end of the animation otherwise
                     }
 
-                    AsyncTask<Long, Void, Bitmap> photoTask =
-                            new AsyncTask<Long, Void, Bitmap>() {
-                                protected Bitmap doInBackground(Long... mMasterKeyId) {
-                                    return new ContactHelper(ViewKeyActivity.this)
-                                            .loadPhotoByMasterKeyId(mMasterKeyId[0], true);
-                                }
-
-                                protected void onPostExecute(Bitmap photo) {
-                                    if (photo == null) {
-                                        return;
-                                    }
-
-                                    mPhoto.setImageBitmap(photo);
-                                    mPhotoLayout.setVisibility(View.VISIBLE);
-                                }
-                            };
-
                     // Note: order is important
                     int color;
                     if (mIsRevoked) {
@@ -969,7 +980,7 @@ public class ViewKeyActivity extends BaseSecurityTokenNfcActivity implements
                         if (!mFingerprintString.equals(mQrCodeLoaded)) {
                             loadQrCode(mFingerprintString);
                         }
-                        photoTask.execute(mMasterKeyId);
+                        loadPhoto();
                         mQrCodeLayout.setVisibility(View.VISIBLE);
 
                         // and place leftOf qr code
@@ -1018,7 +1029,7 @@ public class ViewKeyActivity extends BaseSecurityTokenNfcActivity implements
                                     State.VERIFIED, R.color.icons, true);
                             // noinspection deprecation, fix requires api level 23
                             color = getResources().getColor(R.color.key_flag_green);
-                            photoTask.execute(mMasterKeyId);
+                            loadPhoto();
 
                             hideFab();
                         } else {
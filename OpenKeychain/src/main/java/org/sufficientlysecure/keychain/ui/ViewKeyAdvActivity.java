@@ -26,7 +26,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.provider.ContactsContract;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.ViewPager;
 import android.support.v4.view.ViewPager.OnPageChangeListener;
@@ -50,6 +49,8 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.ui.adapter.PagerTabStripAdapter;
 import org.sufficientlysecure.keychain.ui.base.BaseActivity;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailCursorLoader;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailSnapshot;
 import org.sufficientlysecure.keychain.util.ContactHelper;
 import org.sufficientlysecure.keychain.util.Log;
 
@@ -110,6 +111,9 @@ public class ViewKeyAdvActivity extends BaseActivity implements
             }
         }
 
+        // the pages load their data in parallel, read it for all of them at once
+        KeyDetailSnapshot.prefetch(this, mDataUri);
+
         // Prepare the loaders. Either re-connect with an existing ones,
         // or start new ones.
         getSupportLoaderManager().initLoader(LOADER_ID_UNIFIED, null, this);
@@ -193,7 +197,7 @@ public class ViewKeyAdvActivity extends BaseActivity implements
         switch (id) {
             case LOADER_ID_UNIFIED: {
                 Uri baseUri = KeychainContract.KeyRings.buildUnifiedKeyRingUri(mDataUri);
-                return new CursorLoader(this, baseUri, PROJECTION, null, null, null);
+                return new KeyDetailCursorLoader(this, baseUri, PROJECTION, null, null, null);
             }
 
             default:
@@ -259,6 +263,12 @@ public class ViewKeyAdvActivity extends BaseActivity implements
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        KeyDetailSnapshot.release(mDataUri);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         // if a result has been returned, display a notify
@@ -23,12 +23,12 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.TextView;
 
@@ -37,7 +37,7 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase;
+import org.sufficientlysecure.keychain.ui.adapter.CertListLoader;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
 
@@ -53,26 +53,10 @@ public class ViewKeyAdvCertsFragment extends LoaderFragment implements
     private StickyListHeadersListView mStickyList;
     private CertListAdapter mCertsAdapter;
 
-    private Uri mDataUriCerts;
-
-    // These are the rows that we will retrieve.
-    static final String[] CERTS_PROJECTION = new String[]{
-            KeychainContract.Certs._ID,
-            KeychainContract.Certs.MASTER_KEY_ID,
-            KeychainContract.Certs.VERIFIED,
-            KeychainContract.Certs.TYPE,
-            KeychainContract.Certs.RANK,
-            KeychainContract.Certs.KEY_ID_CERTIFIER,
-            KeychainContract.Certs.USER_ID,
-            KeychainContract.Certs.SIGNER_UID
-    };
-
-    // sort by our user id,
-    static final String CERTS_SORT_ORDER =
-            KeychainDatabase.Tables.CERTS + "." + KeychainContract.Certs.RANK + " ASC, "
-                    + KeychainContract.Certs.VERIFIED + " DESC, "
-                    + KeychainDatabase.Tables.CERTS + "." + KeychainContract.Certs.TYPE + " DESC, "
-                    + KeychainContract.Certs.SIGNER_UID + " ASC";
+    // load the next page when the list is scrolled this close to its end
+    private static final int LOAD_NEXT_PAGE_THRESHOLD = 20;
+
+    private Uri mDataUri;
 
     /**
      * Creates new instance of this fragment
@@ -112,11 +96,28 @@ public class ViewKeyAdvCertsFragment extends LoaderFragment implements
     }
 
     private void loadData(Uri dataUri) {
-        mDataUriCerts = KeychainContract.Certs.buildCertsUri(dataUri);
+        mDataUri = dataUri;
 
         mStickyList.setAreHeadersSticky(true);
         mStickyList.setDrawingListUnderStickyHeader(false);
         mStickyList.setOnItemClickListener(this);
+        mStickyList.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount + LOAD_NEXT_PAGE_THRESHOLD >= totalItemCount) {
+                    Loader<Cursor> loader = getLoaderManager().getLoader(0);
+                    if (loader != null) {
+                        ((CertListLoader) loader).loadNextPage();
+                    }
+                }
+            }
+        });
 
         mStickyList.setEmptyView(getActivity().findViewById(R.id.empty));
 
@@ -133,10 +134,8 @@ public class ViewKeyAdvCertsFragment extends LoaderFragment implements
         setContentShown(false);
 
 
-        // Now create and return a CursorLoader that will take care of
-        // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), mDataUriCerts,
-                CERTS_PROJECTION, null, null, CERTS_SORT_ORDER);
+        // certifications are loaded page by page, as the list is scrolled
+        return new CertListLoader(getActivity(), mDataUri);
 
     }
 
@@ -146,10 +145,9 @@ public class ViewKeyAdvCertsFragment extends LoaderFragment implements
             return;
         }
 
-        // Swap the new cursor in. (The framework will take care of closing the
-        // old cursor once we return.)
+        // Swap the new cursor in. The adapter is not set again, as that would
+        // scroll the list back to the top with every loaded page.
         mCertsAdapter.swapCursor(data);
-        mStickyList.setAdapter(mCertsAdapter);
 
         // TODO: maybe show not before both are loaded!
         setContentShown(true);
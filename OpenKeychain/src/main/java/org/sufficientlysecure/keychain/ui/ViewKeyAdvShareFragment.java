@@ -33,13 +33,11 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.PorterDuff;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.widget.CardView;
 import android.view.LayoutInflater;
@@ -61,6 +59,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailCursorLoader;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
@@ -86,7 +85,8 @@ public class ViewKeyAdvShareFragment extends LoaderFragment implements
 
     private byte[] mFingerprint;
     private String mUserId;
-    private Bitmap mQrCodeBitmapCache;
+    private Uri mQrCodeUri;
+    private int mQrCodeSize;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup superContainer, Bundle savedInstanceState) {
@@ -99,31 +99,15 @@ public class ViewKeyAdvShareFragment extends LoaderFragment implements
         mFingerprintView = (TextView) view.findViewById(R.id.view_key_fingerprint);
         mQrCode = (ImageView) view.findViewById(R.id.view_key_qr_code);
 
-        // We cache the QR code bitmap in its smallest possible size, then scale
-        // it manually for the correct size whenever the layout of the ImageView
-        // changes.  The fingerprint qr code loader which runs in the background
-        // just calls requestLayout when it is finished, this way the loader and
-        // background task are disconnected from any layouting the ImageView may
-        // undergo. Please note how these six lines are perfectly right-aligned.
+        // The QR code is rendered in the size of the ImageView whenever its layout
+        // changes. Rendered codes are cached by size, so this is cheap if the size
+        // was shown before, e.g. after a rotation.
         mQrCode.addOnLayoutChangeListener(new OnLayoutChangeListener() {
             @Override
             public void onLayoutChange(View v, int left, int top, int right, int bottom, int oldLeft, int oldTop,
                     int oldRight,
                     int oldBottom) {
-                // bitmap scaling is expensive, avoid doing it if we already have the correct size!
-                int mCurrentWidth = 0, mCurrentHeight = 0;
-                if (mQrCodeBitmapCache != null) {
-                    if (mCurrentWidth == mQrCode.getWidth() && mCurrentHeight == mQrCode.getHeight()) {
-                        return;
-                    }
-                    mCurrentWidth = mQrCode.getWidth();
-                    mCurrentHeight = mQrCode.getHeight();
-                    // scale the image up to our actual size. we do this in code rather
-                    // than let the ImageView do this because we don't require filtering.
-                    Bitmap scaled = Bitmap.createScaledBitmap(mQrCodeBitmapCache,
-                            mCurrentWidth, mCurrentHeight, false);
-                    mQrCode.setImageBitmap(scaled);
-                }
+                loadQrCode(false);
             }
         });
         mQrCodeLayout = (CardView) view.findViewById(R.id.view_key_qr_code_layout);
@@ -371,7 +355,7 @@ public class ViewKeyAdvShareFragment extends LoaderFragment implements
         switch (id) {
             case LOADER_ID_UNIFIED: {
                 Uri baseUri = KeyRings.buildUnifiedKeyRingUri(mDataUri);
-                return new CursorLoader(getActivity(), baseUri, UNIFIED_PROJECTION, null, null, null);
+                return new KeyDetailCursorLoader(getActivity(), baseUri, UNIFIED_PROJECTION, null, null, null);
             }
 
             default:
@@ -409,7 +393,8 @@ public class ViewKeyAdvShareFragment extends LoaderFragment implements
      */
     public void onLoaderReset(Loader<Cursor> loader) {
         mFingerprint = null;
-        mQrCodeBitmapCache = null;
+        mQrCodeUri = null;
+        mQrCodeSize = 0;
     }
 
     /**
@@ -421,37 +406,51 @@ public class ViewKeyAdvShareFragment extends LoaderFragment implements
         final String fingerprint = KeyFormattingUtils.convertFingerprintToHex(fingerprintBlob);
         mFingerprintView.setText(KeyFormattingUtils.colorizeFingerprint(fingerprint));
 
-        if (mQrCodeBitmapCache != null) {
+        Uri uri = new Uri.Builder()
+                .scheme(Constants.FINGERPRINT_SCHEME)
+                .opaquePart(fingerprint)
+                .build();
+        if (uri.equals(mQrCodeUri)) {
+            return;
+        }
+        mQrCodeUri = uri;
+        mQrCodeSize = 0;
+        loadQrCode(true);
+    }
+
+    /**
+     * Shows the QR code in the current size of the ImageView, rendering it
+     * in the background if it isn't cached yet.
+     */
+    private void loadQrCode(final boolean fadeIn) {
+        final Uri uri = mQrCodeUri;
+        final int size = Math.min(mQrCode.getWidth(), mQrCode.getHeight());
+        if (uri == null || size == 0 || size == mQrCodeSize) {
             return;
         }
+        mQrCodeSize = size;
+
+        Bitmap qrCode = QrCodeUtils.getQRCodeBitmapAsync(uri, size, new QrCodeUtils.QrCodeCallback() {
+            @Override
+            public void onQrCodeLoaded(Bitmap qrCode) {
+                // ignore results for a key or size which is not shown anymore
+                if (qrCode == null || !isAdded() || !uri.equals(mQrCodeUri) || size != mQrCodeSize) {
+                    return;
+                }
+                mQrCode.setImageBitmap(qrCode);
+
+                if (fadeIn) {
+                    // simple fade-in animation
+                    AlphaAnimation anim = new AlphaAnimation(0.0f, 1.0f);
+                    anim.setDuration(200);
+                    mQrCode.startAnimation(anim);
+                }
+            }
+        });
 
-        AsyncTask<Void, Void, Bitmap> loadTask =
-                new AsyncTask<Void, Void, Bitmap>() {
-                    protected Bitmap doInBackground(Void... unused) {
-                        Uri uri = new Uri.Builder()
-                                .scheme(Constants.FINGERPRINT_SCHEME)
-                                .opaquePart(fingerprint)
-                                .build();
-                        // render with minimal size
-                        return QrCodeUtils.getQRCodeBitmap(uri, 0);
-                    }
-
-                    protected void onPostExecute(Bitmap qrCode) {
-                        // cache for later, and if we are attached request re-layout
-                        mQrCodeBitmapCache = qrCode;
-
-                        if (ViewKeyAdvShareFragment.this.isAdded()) {
-                            mQrCode.requestLayout();
-
-                            // simple fade-in animation
-                            AlphaAnimation anim = new AlphaAnimation(0.0f, 1.0f);
-                            anim.setDuration(200);
-                            mQrCode.startAnimation(anim);
-                        }
-                    }
-                };
-
-        loadTask.execute();
+        if (qrCode != null) {
+            mQrCode.setImageBitmap(qrCode);
+        }
     }
 
     private void uploadToKeyserver() {
@@ -27,7 +27,6 @@ import android.os.Message;
 import android.os.Messenger;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.view.ActionMode;
 import android.view.LayoutInflater;
@@ -53,6 +52,7 @@ import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.dialog.AddSubkeyDialogFragment;
 import org.sufficientlysecure.keychain.ui.dialog.EditSubkeyDialogFragment;
 import org.sufficientlysecure.keychain.ui.dialog.EditSubkeyExpiryDialogFragment;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailCursorLoader;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.util.Log;
 
@@ -174,7 +174,7 @@ public class ViewKeyAdvSubkeysFragment extends LoaderFragment implements
         switch (id) {
             case LOADER_ID_UNIFIED: {
                 Uri baseUri = KeychainContract.KeyRings.buildUnifiedKeyRingUri(mDataUri);
-                return new CursorLoader(getActivity(), baseUri,
+                return new KeyDetailCursorLoader(getActivity(), baseUri,
                         PROJECTION, null, null, null);
             }
 
@@ -182,7 +182,7 @@ public class ViewKeyAdvSubkeysFragment extends LoaderFragment implements
                 setContentShown(false);
 
                 Uri subkeysUri = KeychainContract.Keys.buildKeysUri(mDataUri);
-                return new CursorLoader(getActivity(), subkeysUri,
+                return new KeyDetailCursorLoader(getActivity(), subkeysUri,
                         SubkeysAdapter.SUBKEYS_PROJECTION, null, null, null);
             }
 
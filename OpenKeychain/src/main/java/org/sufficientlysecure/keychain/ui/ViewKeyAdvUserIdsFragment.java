@@ -28,7 +28,6 @@ import android.os.Message;
 import android.os.Messenger;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.view.ActionMode;
 import android.view.LayoutInflater;
@@ -54,6 +53,7 @@ import org.sufficientlysecure.keychain.ui.dialog.AddUserIdDialogFragment;
 import org.sufficientlysecure.keychain.ui.dialog.EditUserIdDialogFragment;
 import org.sufficientlysecure.keychain.ui.dialog.SetPassphraseDialogFragment;
 import org.sufficientlysecure.keychain.ui.dialog.UserIdInfoDialogFragment;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailCursorLoader;
 import org.sufficientlysecure.keychain.util.Log;
 
 public class ViewKeyAdvUserIdsFragment extends LoaderFragment implements
@@ -269,7 +269,7 @@ public class ViewKeyAdvUserIdsFragment extends LoaderFragment implements
         switch (id) {
             case LOADER_ID_UNIFIED: {
                 Uri baseUri = KeychainContract.KeyRings.buildUnifiedKeyRingUri(mDataUri);
-                return new CursorLoader(getActivity(), baseUri,
+                return new KeyDetailCursorLoader(getActivity(), baseUri,
                         PROJECTION, null, null, null);
             }
 
@@ -277,7 +277,7 @@ public class ViewKeyAdvUserIdsFragment extends LoaderFragment implements
                 setContentShown(false);
 
                 Uri userIdUri = UserPackets.buildUserIdsUri(mDataUri);
-                return new CursorLoader(getActivity(), userIdUri,
+                return new KeyDetailCursorLoader(getActivity(), userIdUri,
                         UserIdsAdapter.USER_PACKETS_PROJECTION, null, null, null);
             }
 
@@ -66,6 +66,7 @@ import org.sufficientlysecure.keychain.ui.dialog.UserIdInfoDialogFragment;
 import org.sufficientlysecure.keychain.ui.linked.LinkedIdViewFragment;
 import org.sufficientlysecure.keychain.ui.linked.LinkedIdViewFragment.OnIdentityLoadedListener;
 import org.sufficientlysecure.keychain.ui.linked.LinkedIdWizard;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailCursorLoader;
 import org.sufficientlysecure.keychain.util.ContactHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -386,7 +387,7 @@ public class ViewKeyFragment extends LoaderFragment implements
             case LOADER_ID_UNIFIED: {
                 setContentShown(false, false);
                 Uri baseUri = KeychainContract.KeyRings.buildUnifiedKeyRingUri(mDataUri);
-                return new CursorLoader(getActivity(), baseUri, UNIFIED_PROJECTION, null, null, null);
+                return new KeyDetailCursorLoader(getActivity(), baseUri, UNIFIED_PROJECTION, null, null, null);
             }
 
             case LOADER_ID_USER_IDS: {
@@ -506,7 +507,8 @@ public class ViewKeyFragment extends LoaderFragment implements
     private void initLinkedIds(boolean isSecret) {
         if (Preferences.getPreferences(getActivity()).getExperimentalEnableLinkedIdentities()) {
             mLinkedIdsAdapter =
-                    new LinkedIdsAdapter(getActivity(), null, 0, isSecret, mLinkedIdsExpander);
+                    new LinkedIdsAdapter(getActivity(), null, 0, isSecret, mFingerprint,
+                            mLinkedIdsExpander);
             mLinkedIds.setAdapter(mLinkedIdsAdapter);
             getLoaderManager().initLoader(LOADER_ID_LINKED_IDS, null, this);
         }
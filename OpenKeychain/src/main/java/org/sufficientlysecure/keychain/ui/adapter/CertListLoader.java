@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.AsyncTaskLoader;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Loads the certifications of a key page by page.
+ * <p/>
+ * Pages are queried in (rank, certifier key id) order, continuing after the last loaded row, so
+ * each page is a cheap range scan of the certs primary key no matter how far down the list it
+ * is. Signer user ids are not joined in the query, but looked up per certifier through
+ * {@link SignerNameCache}. The delivered cursor contains all pages loaded so far.
+ */
+public class CertListLoader extends AsyncTaskLoader<Cursor> {
+
+    static final int PAGE_SIZE = 100;
+
+    private static final String[] QUERY_PROJECTION = new String[]{
+            Certs._ID,
+            Certs.MASTER_KEY_ID,
+            Certs.VERIFIED,
+            Certs.TYPE,
+            Certs.RANK,
+            Certs.KEY_ID_CERTIFIER,
+            Certs.USER_ID,
+    };
+    private static final int INDEX_RANK = 4;
+    private static final int INDEX_KEY_ID_CERTIFIER = 5;
+
+    // columns of the delivered cursor, with the signer user id filled in from the cache
+    public static final String[] PROJECTION = new String[]{
+            Certs._ID,
+            Certs.MASTER_KEY_ID,
+            Certs.VERIFIED,
+            Certs.TYPE,
+            Certs.RANK,
+            Certs.KEY_ID_CERTIFIER,
+            Certs.USER_ID,
+            Certs.SIGNER_UID,
+    };
+
+    private static final String SORT_ORDER =
+            Tables.CERTS + "." + Certs.RANK + " ASC, "
+                    + Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER + " ASC";
+
+    private static final String AFTER_SELECTION =
+            Tables.CERTS + "." + Certs.RANK + " > ? OR ("
+                    + Tables.CERTS + "." + Certs.RANK + " = ? AND "
+                    + Tables.CERTS + "." + Certs.KEY_ID_CERTIFIER + " > ?)";
+
+    private final Uri mDataUri;
+    private final Uri mCertsUri;
+    private final ContentObserver mObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange) {
+            synchronized (CertListLoader.this) {
+                mReload = true;
+            }
+            onContentChanged();
+        }
+    };
+
+    private Cursor mCursor;
+    private boolean mObserverRegistered = false;
+
+    // loaded rows and pending requests, guarded by this
+    private ArrayList<Object[]> mRows = new ArrayList<>();
+    private boolean mHasMore = true;
+    private boolean mReload = true;
+    private boolean mLoadMore = false;
+
+    public CertListLoader(Context context, Uri dataUri) {
+        super(context);
+        mDataUri = dataUri;
+        mCertsUri = Certs.buildCertsUri(dataUri);
+    }
+
+    /** Requests the next page, unless all certifications are loaded or a page is pending. */
+    public void loadNextPage() {
+        synchronized (this) {
+            if (!mHasMore || mLoadMore || mReload) {
+                return;
+            }
+            mLoadMore = true;
+        }
+        onContentChanged();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        ArrayList<Object[]> rows;
+        int limit;
+        synchronized (this) {
+            if (mReload) {
+                // fetch as many rows as before, so the list doesn't jump
+                rows = new ArrayList<>(mRows.size());
+                limit = Math.max(PAGE_SIZE, mRows.size());
+            } else {
+                rows = new ArrayList<>(mRows);
+                limit = PAGE_SIZE;
+            }
+            mReload = false;
+        }
+
+        long start = System.currentTimeMillis();
+        boolean hasMore;
+        try {
+            hasMore = loadPage(rows, limit);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                mReload = true;
+                mLoadMore = false;
+            }
+            throw e;
+        }
+        Log.d(Constants.TAG, "loaded " + rows.size() + " certifications in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        synchronized (this) {
+            mRows = rows;
+            mHasMore = hasMore;
+            mLoadMore = false;
+        }
+
+        MatrixCursor cursor = new MatrixCursor(PROJECTION, rows.size());
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /** Appends up to limit rows after the last one to the list, returns if there may be more. */
+    private boolean loadPage(ArrayList<Object[]> rows, int limit) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (!rows.isEmpty()) {
+            Object[] last = rows.get(rows.size() - 1);
+            String rank = last[INDEX_RANK].toString();
+            selection = AFTER_SELECTION;
+            selectionArgs = new String[]{rank, rank, last[INDEX_KEY_ID_CERTIFIER].toString()};
+        }
+
+        Cursor cursor = getContext().getContentResolver().query(Certs.buildCertsPageUri(mDataUri, limit),
+                QUERY_PROJECTION, selection, selectionArgs, SORT_ORDER);
+        if (cursor == null) {
+            return false;
+        }
+
+        int firstNew = rows.size();
+        HashSet<Long> certifiers = new HashSet<>();
+        try {
+            while (cursor.moveToNext()) {
+                long certifier = cursor.getLong(INDEX_KEY_ID_CERTIFIER);
+                certifiers.add(certifier);
+                rows.add(new Object[]{
+                        cursor.getLong(0),
+                        cursor.getLong(1),
+                        cursor.getLong(2),
+                        cursor.getLong(3),
+                        cursor.getLong(INDEX_RANK),
+                        certifier,
+                        cursor.getString(6),
+                        null,
+                });
+            }
+        } finally {
+            cursor.close();
+        }
+
+        HashMap<Long, String> signerUserIds =
+                SignerNameCache.getSignerUserIds(getContext().getContentResolver(), certifiers);
+        for (int i = firstNew; i < rows.size(); i++) {
+            Object[] row = rows.get(i);
+            row[PROJECTION.length - 1] = signerUserIds.get((Long) row[INDEX_KEY_ID_CERTIFIER]);
+        }
+
+        return rows.size() - firstNew == limit;
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (isReset()) {
+            return;
+        }
+        mCursor = cursor;
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(mCertsUri, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mCursor = null;
+        synchronized (this) {
+            mRows = new ArrayList<>();
+            mHasMore = true;
+            mReload = true;
+            mLoadMore = false;
+        }
+    }
+
+}
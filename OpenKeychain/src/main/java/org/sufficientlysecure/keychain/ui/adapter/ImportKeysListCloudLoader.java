@@ -18,6 +18,8 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
 
@@ -35,6 +37,7 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.orbot.OrbotHelper;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ImportKeysListCloudLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
@@ -48,6 +51,10 @@ public class ImportKeysListCloudLoader
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // partial results are only delivered while the load that produced them is running
+    private final AtomicInteger mLoadGeneration = new AtomicInteger();
+
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
      *
@@ -75,11 +82,17 @@ public class ImportKeysListCloudLoader
             return mEntryListWrapper;
         }
 
-        if (mServerQuery.startsWith("0x") && mServerQuery.length() == 42) {
-            Log.d(Constants.TAG, "This search is based on a unique fingerprint. Enforce a fingerprint check!");
-            queryServer(true);
-        } else {
-            queryServer(false);
+        int generation = mLoadGeneration.incrementAndGet();
+        try {
+            if (mServerQuery.startsWith("0x") && mServerQuery.length() == 42) {
+                Log.d(Constants.TAG, "This search is based on a unique fingerprint. Enforce a fingerprint check!");
+                queryServer(true, generation);
+            } else {
+                queryServer(false, generation);
+            }
+        } finally {
+            // outdates partial results which are still waiting to be delivered
+            mLoadGeneration.incrementAndGet();
         }
 
         return mEntryListWrapper;
@@ -111,7 +124,7 @@ public class ImportKeysListCloudLoader
     /**
      * Query keyserver
      */
-    private void queryServer(boolean enforceFingerprint) {
+    private void queryServer(boolean enforceFingerprint, final int generation) {
         ParcelableProxy parcelableProxy;
 
         if (mParcelableProxy == null) {
@@ -133,10 +146,20 @@ public class ImportKeysListCloudLoader
         }
 
         try {
+            // a fingerprint search must have exactly one result, so it is not shown partially
+            CloudSearch.SearchListener partialListener = enforceFingerprint ? null
+                    : new CloudSearch.SearchListener() {
+                        @Override
+                        public void onPartialResults(ArrayList<ImportKeysListEntry> results) {
+                            deliverPartialResults(results, generation);
+                        }
+                    };
+
             ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
                     mServerQuery,
                     mCloudPrefs,
-                    parcelableProxy.getProxy()
+                    parcelableProxy.getProxy(),
+                    partialListener
             );
 
             mEntryList.clear();
@@ -183,4 +206,18 @@ public class ImportKeysListCloudLoader
             mEntryListWrapper = new AsyncTaskResultWrapper<>(mEntryList, getKeyResult);
         }
     }
+
+    private void deliverPartialResults(ArrayList<ImportKeysListEntry> results, final int generation) {
+        GetKeyResult getKeyResult = new GetKeyResult(GetKeyResult.RESULT_OK, null);
+        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partialWrapper =
+                new AsyncTaskResultWrapper<>(results, getKeyResult);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mLoadGeneration.get() && isStarted() && !isAbandoned()) {
+                    deliverResult(partialWrapper);
+                }
+            }
+        });
+    }
 }
@@ -28,11 +28,9 @@ import java.util.ArrayList;
 import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.v4.content.AsyncTaskLoader;
-import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
-import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
@@ -52,13 +50,14 @@ public class ImportKeysListLoader
     final BytesLoaderState mLoaderState;
 
     ArrayList<ImportKeysListEntry> mData = new ArrayList<>();
-    LongSparseArray<ParcelableKeyRing> mParcelableRings = new LongSparseArray<>();
+    KeyRingFileIndex mKeyRingIndex;
     AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListLoader(Context context, BytesLoaderState inputData) {
         super(context);
         this.mContext = context;
         this.mLoaderState = inputData;
+        this.mKeyRingIndex = new KeyRingFileIndex(context, inputData);
     }
 
     @Override
@@ -114,11 +113,14 @@ public class ImportKeysListLoader
         super.deliverResult(data);
     }
 
-    public LongSparseArray<ParcelableKeyRing> getParcelableRings() {
-        return mParcelableRings;
+    public KeyRingFileIndex getKeyRingIndex() {
+        return mKeyRingIndex;
     }
 
-    /** Reads all PGPKeyRing objects from the bytes of an InputData object. */
+    /**
+     * Reads all PGPKeyRing objects from the bytes of an InputData object. Only list entries
+     * and the positions of the keyrings are kept, see {@link KeyRingFileIndex}.
+     */
     private void generateListOfKeyrings(InputData inputData) {
         PositionAwareInputStream progressIn = new PositionAwareInputStream(
                 inputData.getInputStream());
@@ -130,11 +132,12 @@ public class ImportKeysListLoader
         try {
             // parse all keyrings
             IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(bufferedInput);
+            int position = 0;
             while (it.hasNext()) {
                 UncachedKeyRing ring = it.next();
                 ImportKeysListEntry item = new ImportKeysListEntry(getContext(), ring);
                 mData.add(item);
-                mParcelableRings.put(item.hashCode(), new ParcelableKeyRing(ring.getEncoded()));
+                mKeyRingIndex.add(item, position++);
             }
         } catch (IOException e) {
             Log.e(Constants.TAG, "IOException on parsing key file! Return NoValidKeysException!", e);
@@ -146,7 +149,7 @@ public class ImportKeysListLoader
     }
 
     @NonNull
-    private static InputData getInputData(Context context, BytesLoaderState loaderState) throws FileNotFoundException {
+    static InputData getInputData(Context context, BytesLoaderState loaderState) throws FileNotFoundException {
         InputData inputData;
         if (loaderState.mKeyBytes != null) {
             inputData = new InputData(new ByteArrayInputStream(loaderState.mKeyBytes), loaderState.mKeyBytes.length);
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+
+import java.util.HashSet;
+import java.util.List;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.AsyncTaskLoader;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Loads the key list into a {@link KeyListSnapshot}, and keeps it up to date.
+ * <p/>
+ * The whole list is only queried once. Afterwards, changes to single keys are applied by
+ * querying just those keys, and search queries filter the snapshot without touching the
+ * database. Search queries are debounced, so typing doesn't start a filter pass per key stroke.
+ */
+public class KeyListLoader extends AsyncTaskLoader<Cursor> {
+
+    private static final long SEARCH_DEBOUNCE_MILLIS = 150;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ContentObserver mObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onKeysChanged(uri);
+        }
+    };
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onContentChanged();
+        }
+    };
+
+    private volatile String mQuery;
+    private KeyListSnapshot mSnapshot;
+    private Cursor mCursor;
+    private boolean mObserverRegistered = false;
+
+    // changes which are not applied to the snapshot yet, guarded by this
+    private final HashSet<Long> mChangedKeyIds = new HashSet<>();
+    private boolean mReloadAll = true;
+
+    public KeyListLoader(Context context, String query) {
+        super(context);
+        mQuery = query;
+    }
+
+    /** Changes the search query, the list is filtered again after a short delay. */
+    public void setQuery(String query) {
+        mQuery = query;
+        mHandler.removeCallbacks(mSearchRunnable);
+        mHandler.postDelayed(mSearchRunnable, SEARCH_DEBOUNCE_MILLIS);
+    }
+
+    public String getQuery() {
+        return mQuery;
+    }
+
+    private void onKeysChanged(Uri uri) {
+        Long masterKeyId = getMasterKeyId(uri);
+        synchronized (this) {
+            if (masterKeyId != null) {
+                mChangedKeyIds.add(masterKeyId);
+            } else {
+                // no specific key, or we can't tell which one
+                mReloadAll = true;
+            }
+        }
+        onContentChanged();
+    }
+
+    /** Returns the master key id for uris of the form key_rings/<id>[/...], or null. */
+    private static Long getMasterKeyId(Uri uri) {
+        if (uri == null) {
+            return null;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2 || !KeychainContract.BASE_KEY_RINGS.equals(segments.get(0))) {
+            return null;
+        }
+        try {
+            return Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        KeyListSnapshot snapshot;
+        boolean reloadAll;
+        HashSet<Long> changedKeyIds;
+        synchronized (this) {
+            snapshot = mSnapshot;
+            reloadAll = mReloadAll || snapshot == null;
+            changedKeyIds = new HashSet<>(mChangedKeyIds);
+            mReloadAll = false;
+            mChangedKeyIds.clear();
+        }
+
+        try {
+            if (reloadAll) {
+                long start = System.currentTimeMillis();
+                snapshot = KeyListSnapshot.load(getContext().getContentResolver());
+                Log.d(Constants.TAG, "loaded " + snapshot.getCount() + " keys in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            } else if (!changedKeyIds.isEmpty()) {
+                snapshot = snapshot.withUpdatedKeys(getContext().getContentResolver(), changedKeyIds);
+            }
+        } catch (RuntimeException e) {
+            // make sure the changes are not lost
+            synchronized (this) {
+                mReloadAll = true;
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            mSnapshot = snapshot;
+        }
+        return snapshot.filter(mQuery);
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (isReset()) {
+            return;
+        }
+        mCursor = cursor;
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    KeyRings.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        mHandler.removeCallbacks(mSearchRunnable);
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mCursor = null;
+        synchronized (this) {
+            mSnapshot = null;
+            mReloadAll = true;
+            mChangedKeyIds.clear();
+        }
+    }
+
+}
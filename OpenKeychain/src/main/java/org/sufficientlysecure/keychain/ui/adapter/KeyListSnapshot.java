@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+
+
+/**
+ * Immutable in-memory copy of the key list, as returned by the unified key ring query with
+ * {@link KeyAdapter#PROJECTION}, stored in one array per column.
+ * <p/>
+ * Searching filters this copy instead of querying the database, and changes to single keys are
+ * applied by querying only those keys. Both return a {@link Cursor} over the snapshot, so it
+ * can be used with {@link KeyAdapter} as before.
+ */
+class KeyListSnapshot {
+
+    static final String ORDER =
+            KeyRings.HAS_ANY_SECRET + " DESC, " + KeyRings.USER_ID + " COLLATE NOCASE ASC";
+
+    private static final String[] USER_IDS_PROJECTION = new String[]{
+            UserPackets.MASTER_KEY_ID,
+            UserPackets.USER_ID,
+    };
+
+    private static final int FLAG_REVOKED = 1;
+    private static final int FLAG_EXPIRED = 1 << 1;
+    private static final int FLAG_SECRET = 1 << 2;
+    private static final int FLAG_DUPLICATE = 1 << 3;
+
+    private final int mCount;
+    private final long[] mRowIds;
+    private final long[] mMasterKeyIds;
+    private final String[] mUserIds;
+    private final int[] mFlags;
+    private final int[] mVerified;
+    private final byte[][] mFingerprints;
+    private final long[] mCreations;
+    // all user ids of each key in lower case, separated by newlines
+    private final String[] mSearchTexts;
+
+    private KeyListSnapshot(int count) {
+        mCount = count;
+        mRowIds = new long[count];
+        mMasterKeyIds = new long[count];
+        mUserIds = new String[count];
+        mFlags = new int[count];
+        mVerified = new int[count];
+        mFingerprints = new byte[count][];
+        mCreations = new long[count];
+        mSearchTexts = new String[count];
+    }
+
+    /** Loads the whole key list. */
+    static KeyListSnapshot load(ContentResolver resolver) {
+        HashMap<Long, String> searchTexts = querySearchTexts(resolver, UserPackets.buildUserIdsUri());
+
+        Cursor cursor = resolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                KeyAdapter.PROJECTION, null, null, ORDER);
+        if (cursor == null) {
+            return new KeyListSnapshot(0);
+        }
+        try {
+            KeyListSnapshot snapshot = new KeyListSnapshot(cursor.getCount());
+            int i = 0;
+            while (cursor.moveToNext()) {
+                snapshot.setRow(i++, cursor, searchTexts);
+            }
+            return snapshot;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns a new snapshot, in which the given keys are queried again. Keys which don't
+     * exist anymore are removed, new keys are inserted in list order.
+     */
+    KeyListSnapshot withUpdatedKeys(ContentResolver resolver, Set<Long> masterKeyIds) {
+        // query the changed keys into a small snapshot of their own
+        ArrayList<KeyListSnapshot> updatedRows = new ArrayList<>(masterKeyIds.size());
+        for (long masterKeyId : masterKeyIds) {
+            KeyListSnapshot row = queryKey(resolver, masterKeyId);
+            if (row.mCount > 0) {
+                updatedRows.add(row);
+            }
+        }
+        KeyListSnapshot updated = concat(updatedRows);
+        updated.sort();
+
+        // user ids whose duplicate flags may have changed
+        HashSet<String> affectedUserIds = new HashSet<>();
+        int removed = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (masterKeyIds.contains(mMasterKeyIds[i])) {
+                affectedUserIds.add(mUserIds[i]);
+                removed += 1;
+            }
+        }
+        for (int i = 0; i < updated.mCount; i++) {
+            affectedUserIds.add(updated.mUserIds[i]);
+        }
+
+        // merge the remaining rows with the updated ones, both are in list order
+        KeyListSnapshot result = new KeyListSnapshot(mCount - removed + updated.mCount);
+        int i = 0, j = 0, k = 0;
+        while (i < mCount || j < updated.mCount) {
+            if (i < mCount && masterKeyIds.contains(mMasterKeyIds[i])) {
+                i += 1;
+            } else if (j >= updated.mCount || (i < mCount && compare(this, i, updated, j) <= 0)) {
+                result.copyRow(k++, this, i++);
+            } else {
+                result.copyRow(k++, updated, j++);
+            }
+        }
+
+        result.updateDuplicateFlags(affectedUserIds);
+        return result;
+    }
+
+    /**
+     * Returns a cursor over the keys matching the query, like the find by user id query of
+     * the provider: the query is split at commas, and a key matches if any of its user ids
+     * contains any of the parts.
+     */
+    Cursor filter(String query) {
+        if (query == null || query.isEmpty()) {
+            return new SnapshotCursor(this, null, mCount);
+        }
+
+        ArrayList<String> parts = new ArrayList<>();
+        for (String part : query.split(" *, *")) {
+            if (!part.isEmpty()) {
+                parts.add(part.toLowerCase(Locale.ENGLISH));
+            }
+        }
+        if (parts.isEmpty()) {
+            return new SnapshotCursor(this, null, mCount);
+        }
+
+        int[] positions = new int[mCount];
+        int count = 0;
+        for (int i = 0; i < mCount; i++) {
+            String searchText = mSearchTexts[i];
+            if (searchText == null) {
+                continue;
+            }
+            for (String part : parts) {
+                if (searchText.contains(part)) {
+                    positions[count++] = i;
+                    break;
+                }
+            }
+        }
+        return new SnapshotCursor(this, positions, count);
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    private void setRow(int i, Cursor cursor, HashMap<Long, String> searchTexts) {
+        mRowIds[i] = cursor.getLong(0);
+        mMasterKeyIds[i] = cursor.getLong(KeyAdapter.INDEX_MASTER_KEY_ID);
+        mUserIds[i] = cursor.getString(KeyAdapter.INDEX_USER_ID);
+        int flags = 0;
+        if (cursor.getInt(KeyAdapter.INDEX_IS_REVOKED) > 0) {
+            flags |= FLAG_REVOKED;
+        }
+        if (cursor.getInt(KeyAdapter.INDEX_IS_EXPIRED) > 0) {
+            flags |= FLAG_EXPIRED;
+        }
+        if (cursor.getInt(KeyAdapter.INDEX_HAS_ANY_SECRET) != 0) {
+            flags |= FLAG_SECRET;
+        }
+        if (cursor.getLong(KeyAdapter.INDEX_HAS_DUPLICATE_USER_ID) > 0) {
+            flags |= FLAG_DUPLICATE;
+        }
+        mFlags[i] = flags;
+        mVerified[i] = cursor.getInt(KeyAdapter.INDEX_VERIFIED);
+        mFingerprints[i] = cursor.getBlob(KeyAdapter.INDEX_FINGERPRINT);
+        mCreations[i] = cursor.getLong(KeyAdapter.INDEX_CREATION);
+        mSearchTexts[i] = searchTexts.get(mMasterKeyIds[i]);
+    }
+
+    private void copyRow(int i, KeyListSnapshot from, int j) {
+        mRowIds[i] = from.mRowIds[j];
+        mMasterKeyIds[i] = from.mMasterKeyIds[j];
+        mUserIds[i] = from.mUserIds[j];
+        mFlags[i] = from.mFlags[j];
+        mVerified[i] = from.mVerified[j];
+        mFingerprints[i] = from.mFingerprints[j];
+        mCreations[i] = from.mCreations[j];
+        mSearchTexts[i] = from.mSearchTexts[j];
+    }
+
+    /** Sets the duplicate flag of all keys with one of the given user ids, see HAS_DUPLICATE_USER_ID. */
+    private void updateDuplicateFlags(HashSet<String> userIds) {
+        userIds.remove(null);
+        if (userIds.isEmpty()) {
+            return;
+        }
+        HashMap<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < mCount; i++) {
+            if (userIds.contains(mUserIds[i])) {
+                Integer count = counts.get(mUserIds[i]);
+                counts.put(mUserIds[i], count == null ? 1 : count + 1);
+            }
+        }
+        for (int i = 0; i < mCount; i++) {
+            Integer count = counts.get(mUserIds[i]);
+            if (count != null) {
+                mFlags[i] = count > 1 ? mFlags[i] | FLAG_DUPLICATE : mFlags[i] & ~FLAG_DUPLICATE;
+            }
+        }
+    }
+
+    /** Sorts the rows like {@link #ORDER}, only used for the few rows of an update. */
+    private void sort() {
+        Integer[] order = new Integer[mCount];
+        for (int i = 0; i < mCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return KeyListSnapshot.compare(KeyListSnapshot.this, lhs, KeyListSnapshot.this, rhs);
+            }
+        });
+        KeyListSnapshot copy = concat(Arrays.asList(this));
+        for (int i = 0; i < mCount; i++) {
+            copyRow(i, copy, order[i]);
+        }
+    }
+
+    private static int compare(KeyListSnapshot a, int i, KeyListSnapshot b, int j) {
+        boolean aSecret = (a.mFlags[i] & FLAG_SECRET) != 0;
+        boolean bSecret = (b.mFlags[j] & FLAG_SECRET) != 0;
+        if (aSecret != bSecret) {
+            return aSecret ? -1 : 1;
+        }
+        String aUserId = a.mUserIds[i];
+        String bUserId = b.mUserIds[j];
+        if (aUserId == null || bUserId == null) {
+            // nulls sort first, like in sqlite
+            return aUserId == null ? (bUserId == null ? 0 : -1) : 1;
+        }
+        return compareNoCase(aUserId, bUserId);
+    }
+
+    /**
+     * Compares like sqlite's NOCASE collation, which folds only ASCII A-Z and otherwise
+     * compares by code point. String.compareToIgnoreCase folds all of Unicode instead.
+     */
+    private static int compareNoCase(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int aChar = a.codePointAt(i);
+            int bChar = b.codePointAt(j);
+            i += Character.charCount(aChar);
+            j += Character.charCount(bChar);
+            aChar = aChar >= 'A' && aChar <= 'Z' ? aChar + ('a' - 'A') : aChar;
+            bChar = bChar >= 'A' && bChar <= 'Z' ? bChar + ('a' - 'A') : bChar;
+            if (aChar != bChar) {
+                return aChar < bChar ? -1 : 1;
+            }
+        }
+        if (i < a.length()) {
+            return 1;
+        }
+        return j < b.length() ? -1 : 0;
+    }
+
+    private static KeyListSnapshot concat(Collection<KeyListSnapshot> snapshots) {
+        int count = 0;
+        for (KeyListSnapshot snapshot : snapshots) {
+            count += snapshot.mCount;
+        }
+        KeyListSnapshot result = new KeyListSnapshot(count);
+        int k = 0;
+        for (KeyListSnapshot snapshot : snapshots) {
+            for (int i = 0; i < snapshot.mCount; i++) {
+                result.copyRow(k++, snapshot, i);
+            }
+        }
+        return result;
+    }
+
+    private static KeyListSnapshot queryKey(ContentResolver resolver, long masterKeyId) {
+        HashMap<Long, String> searchTexts =
+                querySearchTexts(resolver, UserPackets.buildUserIdsUri(masterKeyId));
+
+        Cursor cursor = resolver.query(KeyRings.buildUnifiedKeyRingUri(masterKeyId),
+                KeyAdapter.PROJECTION, null, null, null);
+        if (cursor == null) {
+            return new KeyListSnapshot(0);
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return new KeyListSnapshot(0);
+            }
+            KeyListSnapshot row = new KeyListSnapshot(1);
+            row.setRow(0, cursor, searchTexts);
+            return row;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static HashMap<Long, String> querySearchTexts(ContentResolver resolver, Uri uri) {
+        HashMap<Long, String> searchTexts = new HashMap<>();
+        Cursor cursor = resolver.query(uri, USER_IDS_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return searchTexts;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String userId = cursor.getString(1);
+                if (userId == null) {
+                    continue;
+                }
+                long masterKeyId = cursor.getLong(0);
+                String lowerCase = userId.toLowerCase(Locale.ENGLISH);
+                String previous = searchTexts.get(masterKeyId);
+                searchTexts.put(masterKeyId, previous == null ? lowerCase : previous + "\n" + lowerCase);
+            }
+        } finally {
+            cursor.close();
+        }
+        return searchTexts;
+    }
+
+    /** Read-only cursor over some rows of a snapshot, with the columns of {@link KeyAdapter#PROJECTION}. */
+    private static class SnapshotCursor extends AbstractCursor {
+
+        private final KeyListSnapshot mSnapshot;
+        // positions of the rows in the snapshot, null if all rows are included
+        private final int[] mPositions;
+        private final int mCount;
+
+        SnapshotCursor(KeyListSnapshot snapshot, int[] positions, int count) {
+            mSnapshot = snapshot;
+            mPositions = positions;
+            mCount = count;
+        }
+
+        private int row() {
+            int position = getPosition();
+            return mPositions == null ? position : mPositions[position];
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return KeyAdapter.PROJECTION;
+        }
+
+        @Override
+        public long getLong(int column) {
+            int row = row();
+            switch (column) {
+                case 0:
+                    return mSnapshot.mRowIds[row];
+                case KeyAdapter.INDEX_MASTER_KEY_ID:
+                    return mSnapshot.mMasterKeyIds[row];
+                case KeyAdapter.INDEX_IS_REVOKED:
+                    return (mSnapshot.mFlags[row] & FLAG_REVOKED) != 0 ? 1 : 0;
+                case KeyAdapter.INDEX_IS_EXPIRED:
+                    return (mSnapshot.mFlags[row] & FLAG_EXPIRED) != 0 ? 1 : 0;
+                case KeyAdapter.INDEX_VERIFIED:
+                    return mSnapshot.mVerified[row];
+                case KeyAdapter.INDEX_HAS_ANY_SECRET:
+                    return (mSnapshot.mFlags[row] & FLAG_SECRET) != 0 ? 1 : 0;
+                case KeyAdapter.INDEX_HAS_DUPLICATE_USER_ID:
+                    return (mSnapshot.mFlags[row] & FLAG_DUPLICATE) != 0 ? 1 : 0;
+                case KeyAdapter.INDEX_CREATION:
+                    return mSnapshot.mCreations[row];
+                default:
+                    throw new IllegalArgumentException("column " + column + " is not numeric");
+            }
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            if (column == KeyAdapter.INDEX_USER_ID) {
+                return mSnapshot.mUserIds[row()];
+            }
+            if (column == KeyAdapter.INDEX_FINGERPRINT) {
+                throw new IllegalArgumentException("fingerprint is a blob");
+            }
+            return Long.toString(getLong(column));
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            if (column == KeyAdapter.INDEX_FINGERPRINT) {
+                return mSnapshot.mFingerprints[row()];
+            }
+            return super.getBlob(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            if (column == KeyAdapter.INDEX_USER_ID) {
+                return mSnapshot.mUserIds[row()] == null;
+            }
+            if (column == KeyAdapter.INDEX_FINGERPRINT) {
+                return mSnapshot.mFingerprints[row()] == null;
+            }
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import android.content.Context;
+import android.support.v4.util.LongSparseArray;
+import android.util.SparseArray;
+
+import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
+import org.sufficientlysecure.keychain.ui.ImportKeysListFragment.BytesLoaderState;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache;
+
+
+/**
+ * Index of the keyrings in a file shown for import, by their position in the file.
+ * <p/>
+ * Only the list entries are kept in memory while the file is previewed. The keyrings selected
+ * for import are read again from the file, one at a time, when they are actually imported.
+ */
+public class KeyRingFileIndex {
+
+    private final Context mContext;
+    private final BytesLoaderState mLoaderState;
+    // position of each keyring in the file, by hash code of its list entry
+    private final LongSparseArray<Integer> mPositions = new LongSparseArray<>();
+
+    KeyRingFileIndex(Context context, BytesLoaderState loaderState) {
+        mContext = context.getApplicationContext();
+        mLoaderState = loaderState;
+    }
+
+    void add(ImportKeysListEntry entry, int position) {
+        mPositions.put(entry.hashCode(), position);
+    }
+
+    /**
+     * Writes the keyrings of the given entries to the cache, reading them from the file one at
+     * a time, in file order. Each keyring is checked against the fingerprint of the entry shown
+     * in the preview. If the file can't be read anymore or has changed in the meantime, an
+     * IOException is thrown, rather than importing fewer or other keys than were selected.
+     */
+    public void writeKeyRings(List<ImportKeysListEntry> entries,
+            ParcelableFileCache<ParcelableKeyRing> cache) throws IOException {
+        // expected fingerprints by position, sorted by position
+        final SparseArray<String> wanted = new SparseArray<>();
+        for (ImportKeysListEntry entry : entries) {
+            Integer position = mPositions.get(entry.hashCode());
+            if (position != null) {
+                wanted.put(position, entry.getFingerprintHex());
+            }
+        }
+
+        InputStream stream = new BufferedInputStream(
+                ImportKeysListLoader.getInputData(mContext, mLoaderState).getInputStream());
+        try {
+            cache.writeCache(wanted.size(), new KeyRingIterator(UncachedKeyRing.fromStream(stream), wanted));
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static class KeyRingIterator implements IteratorWithIOThrow<ParcelableKeyRing> {
+
+        private final IteratorWithIOThrow<UncachedKeyRing> mRings;
+        private final SparseArray<String> mWanted;
+        // position of the next keyring in the file, and index of the next wanted position
+        private int mFilePosition = 0;
+        private int mIndex = 0;
+        private ParcelableKeyRing mNext;
+
+        KeyRingIterator(IteratorWithIOThrow<UncachedKeyRing> rings, SparseArray<String> wanted) {
+            mRings = rings;
+            mWanted = wanted;
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            if (mNext == null && mIndex < mWanted.size()) {
+                readNext();
+            }
+            return mNext != null;
+        }
+
+        @Override
+        public ParcelableKeyRing next() throws IOException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ParcelableKeyRing next = mNext;
+            mNext = null;
+            return next;
+        }
+
+        private void readNext() throws IOException {
+            int wantedPosition = mWanted.keyAt(mIndex);
+            while (mRings.hasNext()) {
+                UncachedKeyRing ring = mRings.next();
+                if (mFilePosition++ < wantedPosition) {
+                    continue;
+                }
+
+                String fingerprint = KeyFormattingUtils.convertFingerprintToHex(ring.getFingerprint());
+                if (!fingerprint.equals(mWanted.valueAt(mIndex))) {
+                    throw new IOException("key file changed, keyring at position "
+                            + wantedPosition + " is not the one selected");
+                }
+                mIndex += 1;
+                mNext = new ParcelableKeyRing(ring.getEncoded());
+                return;
+            }
+            throw new IOException("key file changed, " + (mWanted.size() - mIndex)
+                    + " selected keyrings are missing");
+        }
+
+    }
+
+}
@@ -22,6 +22,7 @@ import android.animation.ObjectAnimator;
 import android.app.Activity;
 import android.content.Context;
 import android.database.Cursor;
+import android.graphics.PorterDuff;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
@@ -35,10 +36,15 @@ import android.widget.TextView;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.linked.LinkedAttribute;
+import org.sufficientlysecure.keychain.linked.LinkedIdVerifier;
+import org.sufficientlysecure.keychain.linked.LinkedIdVerifier.OnVerifiedListener;
+import org.sufficientlysecure.keychain.linked.LinkedResource;
+import org.sufficientlysecure.keychain.linked.LinkedTokenResource;
 import org.sufficientlysecure.keychain.linked.UriAttribute;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.ui.linked.LinkedIdViewFragment;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailCursorLoader;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.State;
 import org.sufficientlysecure.keychain.ui.util.SubtleAttentionSeeker;
@@ -46,22 +52,39 @@ import org.sufficientlysecure.keychain.util.FilterCursorWrapper;
 import org.sufficientlysecure.keychain.util.Log;
 
 import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.WeakHashMap;
 
 public class LinkedIdsAdapter extends UserAttributesAdapter {
     private final boolean mIsSecret;
+    private final byte[] mFingerprint;
     protected LayoutInflater mInflater;
     WeakHashMap<Integer,UriAttribute> mLinkedIdentityCache = new WeakHashMap<>();
 
+    // verification results by resource uri, filled in as they arrive
+    private final HashMap<URI,Boolean> mVerifyResults = new HashMap<>();
+    private final OnVerifiedListener mVerifiedListener = new OnVerifiedListener() {
+        @Override
+        public void onVerified(URI resourceUri, boolean success) {
+            Boolean previous = mVerifyResults.put(resourceUri, success);
+            if (previous == null || previous != success) {
+                notifyDataSetChanged();
+            }
+        }
+    };
+
     private Cursor mUnfilteredCursor;
 
     private TextView mExpander;
 
     public LinkedIdsAdapter(Context context, Cursor c, int flags,
-            boolean isSecret, TextView expander) {
+            boolean isSecret, byte[] fingerprint, TextView expander) {
         super(context, c, flags);
         mInflater = LayoutInflater.from(context);
         mIsSecret = isSecret;
+        mFingerprint = fingerprint;
 
         if (expander != null) {
             expander.setVisibility(View.GONE);
@@ -103,7 +126,27 @@ public class LinkedIdsAdapter extends UserAttributesAdapter {
             }
         }
 
-        return super.swapCursor(filteredCursor);
+        Cursor oldCursor = super.swapCursor(filteredCursor);
+        verifyAll(filteredCursor);
+        return oldCursor;
+    }
+
+    /** Starts background verification of all linked identities in the cursor. */
+    private void verifyAll(Cursor cursor) {
+        if (mFingerprint == null) {
+            return;
+        }
+        ArrayList<LinkedTokenResource> resources = new ArrayList<>();
+        for (int i = 0; cursor.moveToPosition(i); i++) {
+            UriAttribute id = getItemAtPosition(cursor);
+            if (id instanceof LinkedAttribute) {
+                LinkedResource resource = ((LinkedAttribute) id).mResource;
+                if (resource instanceof LinkedTokenResource) {
+                    resources.add((LinkedTokenResource) resource);
+                }
+            }
+        }
+        LinkedIdVerifier.verifyAll(mContext, mFingerprint, resources, mVerifiedListener);
     }
 
     private void showUnfiltered() {
@@ -137,6 +180,12 @@ public class LinkedIdsAdapter extends UserAttributesAdapter {
         UriAttribute id = getItemAtPosition(cursor);
         holder.setData(mContext, id);
 
+        Boolean verified = null;
+        if (id instanceof LinkedAttribute) {
+            verified = mVerifyResults.get(((LinkedAttribute) id).mResource.toUri());
+        }
+        holder.setVerifyResult(mContext, verified);
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             view.setTransitionName(id.mUri.toString());
         }
@@ -185,7 +234,7 @@ public class LinkedIdsAdapter extends UserAttributesAdapter {
 
     public static CursorLoader createLoader(Activity activity, Uri dataUri) {
         Uri baseUri = UserPackets.buildLinkedIdsUri(dataUri);
-        return new CursorLoader(activity, baseUri,
+        return new KeyDetailCursorLoader(activity, baseUri,
                 UserIdsAdapter.USER_PACKETS_PROJECTION, LINKED_IDS_WHERE, null, null);
     }
 
@@ -228,6 +277,17 @@ public class LinkedIdsAdapter extends UserAttributesAdapter {
 
         }
 
+        /** Tints the icon by the result of the last verification, if there is one. */
+        public void setVerifyResult(Context context, Boolean success) {
+            if (success == null) {
+                vIcon.clearColorFilter();
+            } else {
+                vIcon.setColorFilter(context.getResources().getColor(
+                        success ? R.color.android_green_light : R.color.android_red_light),
+                        PorterDuff.Mode.SRC_IN);
+            }
+        }
+
         public void seekAttention() {
             if (Build.VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
                 ObjectAnimator anim = SubtleAttentionSeeker.tintText(vComment, 1000);
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.support.v4.util.LruCache;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+
+/**
+ * Primary user ids of certifying keys, cached by key id.
+ * <p/>
+ * Certifications of a key mostly come from the same few certifiers, so instead of joining every
+ * certification against the user ids of its certifier, the names are looked up once per
+ * certifier. The cache is cleared whenever any key changes.
+ */
+class SignerNameCache {
+
+    private static final int CACHE_SIZE = 1000;
+    // stay well below the sqlite limit of 999 selection args
+    private static final int MAX_LOOKUP_IDS = 500;
+
+    // certifiers which are not in our database
+    private static final String NO_USER_ID = "";
+
+    private static final String[] PROJECTION = new String[]{
+            UserPackets.MASTER_KEY_ID,
+            UserPackets.USER_ID,
+    };
+
+    private static final LruCache<Long, String> sCache = new LruCache<>(CACHE_SIZE);
+    private static ContentObserver sObserver;
+    // incremented on every change, so lookups racing with a change are not cached
+    private static int sGeneration = 0;
+
+    /**
+     * Returns the primary user ids of the given certifier key ids. Certifiers which are not in
+     * the database are mapped to null.
+     */
+    static HashMap<Long, String> getSignerUserIds(ContentResolver resolver, Collection<Long> keyIds) {
+        int generation;
+        synchronized (SignerNameCache.class) {
+            if (sObserver == null) {
+                sObserver = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        synchronized (SignerNameCache.class) {
+                            sGeneration += 1;
+                            sCache.evictAll();
+                        }
+                    }
+                };
+                resolver.registerContentObserver(KeyRings.CONTENT_URI, true, sObserver);
+            }
+            generation = sGeneration;
+        }
+
+        HashMap<Long, String> result = new HashMap<>();
+        ArrayList<Long> missing = new ArrayList<>();
+        for (Long keyId : keyIds) {
+            if (result.containsKey(keyId)) {
+                continue;
+            }
+            String userId = sCache.get(keyId);
+            if (userId == null) {
+                missing.add(keyId);
+                // placeholder, in case the key is not in the database
+                result.put(keyId, null);
+            } else {
+                result.put(keyId, NO_USER_ID.equals(userId) ? null : userId);
+            }
+        }
+
+        for (int start = 0; start < missing.size(); start += MAX_LOOKUP_IDS) {
+            lookup(resolver, missing.subList(start, Math.min(start + MAX_LOOKUP_IDS, missing.size())),
+                    result);
+        }
+
+        synchronized (SignerNameCache.class) {
+            if (generation == sGeneration) {
+                for (Long keyId : missing) {
+                    String userId = result.get(keyId);
+                    sCache.put(keyId, userId == null ? NO_USER_ID : userId);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void lookup(ContentResolver resolver, List<Long> keyIds, HashMap<Long, String> result) {
+        StringBuilder selection = new StringBuilder(Tables.USER_PACKETS + "." + UserPackets.RANK
+                + " = 0 AND " + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID + " IN (");
+        String[] selectionArgs = new String[keyIds.size()];
+        for (int i = 0; i < keyIds.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = Long.toString(keyIds.get(i));
+        }
+        selection.append(")");
+
+        Cursor cursor = resolver.query(UserPackets.buildUserIdsUri(), PROJECTION,
+                selection.toString(), selectionArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                result.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -159,7 +159,13 @@ public class SubkeysAdapter extends CursorAdapter {
         deleteImage.setVisibility(View.GONE);
 
         long keyId = cursor.getLong(INDEX_KEY_ID);
-        vKeyId.setText(KeyFormattingUtils.beautifyKeyId(keyId));
+        // the TextView keeps the char array, so each view gets its own to reuse
+        char[] keyIdChars = (char[]) vKeyId.getTag();
+        if (keyIdChars == null) {
+            keyIdChars = new char[KeyFormattingUtils.BEAUTIFIED_KEY_ID_LENGTH];
+            vKeyId.setTag(keyIdChars);
+        }
+        vKeyId.setText(keyIdChars, 0, KeyFormattingUtils.formatBeautifiedKeyId(keyId, keyIdChars));
 
         // may be set with additional "stripped" later on
         SpannableStringBuilder algorithmStr = new SpannableStringBuilder();
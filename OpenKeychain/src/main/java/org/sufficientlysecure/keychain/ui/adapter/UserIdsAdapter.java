@@ -37,6 +37,7 @@ import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.ui.util.KeyDetailCursorLoader;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.State;
 
@@ -192,7 +193,7 @@ public class UserIdsAdapter extends UserAttributesAdapter {
 
     public static CursorLoader createLoader(Activity activity, Uri dataUri) {
         Uri baseUri = UserPackets.buildUserIdsUri(dataUri);
-        return new CursorLoader(activity, baseUri,
+        return new KeyDetailCursorLoader(activity, baseUri,
                 UserIdsAdapter.USER_PACKETS_PROJECTION, USER_IDS_WHERE, null, null);
     }
 
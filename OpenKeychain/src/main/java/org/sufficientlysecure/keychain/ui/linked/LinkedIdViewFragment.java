@@ -1,6 +1,7 @@
 package org.sufficientlysecure.keychain.ui.linked;
 
 import java.io.IOException;
+import java.net.URI;
 import java.util.Collections;
 
 import android.content.Context;
@@ -34,6 +35,8 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.LinkedVerifyResult;
 import org.sufficientlysecure.keychain.linked.LinkedTokenResource;
 import org.sufficientlysecure.keychain.linked.LinkedAttribute;
+import org.sufficientlysecure.keychain.linked.LinkedIdVerifier;
+import org.sufficientlysecure.keychain.linked.LinkedIdVerifier.OnVerifiedListener;
 import org.sufficientlysecure.keychain.linked.LinkedResource;
 import org.sufficientlysecure.keychain.linked.UriAttribute;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
@@ -226,6 +229,16 @@ public class LinkedIdViewFragment extends CryptoOperationFragment implements
             return;
         }
 
+        mViewHolder.mLinkedIdHolder.setVerifyResult(mContext, null);
+        LinkedIdVerifier.getCachedResult(mContext, mFingerprint, mLinkedResource, new OnVerifiedListener() {
+            @Override
+            public void onVerified(URI resourceUri, boolean success) {
+                if (mViewHolder != null && isAdded()) {
+                    mViewHolder.mLinkedIdHolder.setVerifyResult(mContext, success);
+                }
+            }
+        });
+
         if (mLinkedResource.isViewable()) {
             mViewHolder.vButtonView.setVisibility(View.VISIBLE);
             mViewHolder.vButtonView.setOnClickListener(new OnClickListener() {
@@ -461,7 +474,7 @@ public class LinkedIdViewFragment extends CryptoOperationFragment implements
             @Override
             protected LinkedVerifyResult doInBackground(Void... params) {
                 long timer = System.currentTimeMillis();
-                LinkedVerifyResult result = mLinkedResource.verify(getActivity(), mFingerprint);
+                LinkedVerifyResult result = LinkedIdVerifier.verify(mContext, mFingerprint, mLinkedResource);
 
                 // ux flow: this operation should take at last a second
                 timer = System.currentTimeMillis() -timer;
@@ -479,6 +492,7 @@ public class LinkedIdViewFragment extends CryptoOperationFragment implements
                 if (isCancelled()) {
                     return;
                 }
+                mViewHolder.mLinkedIdHolder.setVerifyResult(mContext, result.success());
                 if (result.success()) {
                     mViewHolder.vText.setText(getString(mLinkedResource.getVerifiedText(mIsSecret)));
                     // hack to preserve bold text
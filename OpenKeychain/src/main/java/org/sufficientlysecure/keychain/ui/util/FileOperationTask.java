@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.util;
+
+
+import android.app.ProgressDialog;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Message;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.FragmentManager;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.service.ServiceProgressHandler;
+import org.sufficientlysecure.keychain.service.ServiceProgressHandler.MessageStatus;
+import org.sufficientlysecure.keychain.ui.dialog.ProgressDialogFragment;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Runs a file operation, such as a copy or secure delete of
+ * {@link org.sufficientlysecure.keychain.util.FileHelper}, on a background thread. Its progress
+ * and throughput are shown in a progress dialog while it runs.
+ */
+public abstract class FileOperationTask<T> extends AsyncTask<Void, Void, T> {
+
+    private final FragmentActivity mActivity;
+    private final String mProgressMessage;
+    private final ServiceProgressHandler mProgressHandler;
+    private Exception mException;
+
+    public FileOperationTask(FragmentActivity activity, String progressMessage) {
+        mActivity = activity;
+        mProgressMessage = progressMessage;
+        mProgressHandler = new ServiceProgressHandler(activity);
+    }
+
+    public FragmentActivity getActivity() {
+        return mActivity;
+    }
+
+    /** Runs the operation on a background thread, reporting to progressable. */
+    protected abstract T runOperation(Progressable progressable) throws Exception;
+
+    /** Called on the main thread if the operation succeeded. */
+    protected abstract void onSuccess(T result);
+
+    /** Called on the main thread if the operation failed. */
+    protected abstract void onFailure(Exception e);
+
+    @Override
+    protected void onPreExecute() {
+        mProgressHandler.showProgressDialog(mProgressMessage, ProgressDialog.STYLE_HORIZONTAL, false);
+    }
+
+    @Override
+    protected T doInBackground(Void... params) {
+        try {
+            return runOperation(mProgressable);
+        } catch (Exception e) {
+            mException = e;
+            return null;
+        }
+    }
+
+    @Override
+    protected void onPostExecute(T result) {
+        dismissProgressDialog();
+        if (mException != null) {
+            onFailure(mException);
+        } else {
+            onSuccess(result);
+        }
+    }
+
+    private void dismissProgressDialog() {
+        FragmentManager manager = mActivity.getSupportFragmentManager();
+        try {
+            // the dialog may still be pending if the operation was quick
+            manager.executePendingTransactions();
+        } catch (IllegalStateException e) {
+            Log.e(Constants.TAG, "could not show pending progress dialog", e);
+        }
+        ProgressDialogFragment progressDialogFragment = (ProgressDialogFragment)
+                manager.findFragmentByTag(ServiceProgressHandler.TAG_PROGRESS_DIALOG);
+        if (progressDialogFragment != null) {
+            progressDialogFragment.dismissAllowingStateLoss();
+        }
+    }
+
+    /** Passes progress from the background thread to the progress dialog, like KeychainService. */
+    private final Progressable mProgressable = new Progressable() {
+        @Override
+        public void setProgress(String message, int current, int total) {
+            Bundle data = new Bundle();
+            if (message != null) {
+                data.putString(ServiceProgressHandler.DATA_MESSAGE, message);
+            }
+            data.putInt(ServiceProgressHandler.DATA_PROGRESS, current);
+            data.putInt(ServiceProgressHandler.DATA_PROGRESS_MAX, total);
+
+            Message msg = mProgressHandler.obtainMessage();
+            msg.arg1 = MessageStatus.UPDATE_PROGRESS.ordinal();
+            msg.setData(data);
+            msg.sendToTarget();
+        }
+
+        @Override
+        public void setProgress(int resourceId, int current, int total) {
+            setProgress(mActivity.getString(resourceId), current, total);
+        }
+
+        @Override
+        public void setProgress(int current, int total) {
+            setProgress(null, current, total);
+        }
+
+        @Override
+        public void setPreventCancel() {
+            // the dialog is not cancelable anyway
+        }
+    };
+
+}
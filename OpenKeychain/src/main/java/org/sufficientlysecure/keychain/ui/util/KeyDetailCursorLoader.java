@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.util;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+
+/**
+ * A CursorLoader for the data of a single key, which takes its first result from the
+ * {@link KeyDetailSnapshot} if one covers it. Any later load, e.g. after the key was changed,
+ * queries the provider as usual.
+ */
+public class KeyDetailCursorLoader extends CursorLoader {
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private volatile boolean mFirstLoad = true;
+
+    public KeyDetailCursorLoader(Context context, Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        if (mFirstLoad) {
+            mFirstLoad = false;
+            Cursor cursor = KeyDetailSnapshot.query(getContext().getContentResolver(), getUri(),
+                    getProjection(), getSelection(), getSelectionArgs(), getSortOrder());
+            if (cursor != null) {
+                cursor.registerContentObserver(mObserver);
+                return cursor;
+            }
+        }
+        return super.loadInBackground();
+    }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.util;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.text.TextUtils;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.ui.adapter.LinkedIdsAdapter;
+import org.sufficientlysecure.keychain.ui.adapter.SubkeysAdapter;
+import org.sufficientlysecure.keychain.ui.adapter.UserIdsAdapter;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * All data of a single key shown by ViewKeyActivity and its advanced pages, read in one pass.
+ * <p/>
+ * {@link #prefetch(Context, Uri)} reads the unified row, user ids, linked ids and subkeys of a
+ * key in the background. The snapshot is shared by all screens of the key through
+ * {@link KeyDetailCursorLoader}, so opening the key and swiping through its pages doesn't query
+ * each table again. It is dropped as soon as anything about the key changes, including while
+ * it is being read, and once all activities which prefetched it called {@link #release(Uri)}.
+ * Certifications are not included, they are paged by their own screen.
+ */
+public class KeyDetailSnapshot {
+
+    // superset of the unified projections of the key detail screens
+    private static final String[] UNIFIED_PROJECTION = new String[]{
+            KeyRings._ID,
+            KeyRings.MASTER_KEY_ID,
+            KeyRings.USER_ID,
+            KeyRings.IS_REVOKED,
+            KeyRings.IS_EXPIRED,
+            KeyRings.VERIFIED,
+            KeyRings.HAS_ANY_SECRET,
+            KeyRings.FINGERPRINT,
+            KeyRings.HAS_ENCRYPT,
+    };
+
+    private static KeyDetailSnapshot sCurrent;
+
+    private final ContentResolver mResolver;
+    private final Uri mKeyRingUri;
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    private volatile boolean mInvalid = false;
+    // activities using this snapshot, guarded by KeyDetailSnapshot.class
+    private int mUsers = 1;
+
+    private final ContentObserver mObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    private KeyDetailSnapshot(ContentResolver resolver, Uri keyRingUri) {
+        mResolver = resolver;
+        mKeyRingUri = keyRingUri;
+    }
+
+    /**
+     * Starts reading the details of the key with the given uri in the background, unless they
+     * are already available or being read. Must be paired with a call to {@link #release(Uri)}
+     * once the calling activity is destroyed.
+     */
+    public static void prefetch(Context context, Uri dataUri) {
+        if (getMasterKeyId(dataUri) == null) {
+            return;
+        }
+        final Uri keyRingUri = KeyRings.buildGenericKeyRingUri(dataUri);
+        final ContentResolver resolver = context.getApplicationContext().getContentResolver();
+
+        final KeyDetailSnapshot snapshot;
+        synchronized (KeyDetailSnapshot.class) {
+            if (sCurrent != null && !sCurrent.mInvalid && sCurrent.mKeyRingUri.equals(keyRingUri)) {
+                sCurrent.mUsers += 1;
+                return;
+            }
+            if (sCurrent != null) {
+                sCurrent.invalidate();
+            }
+            snapshot = new KeyDetailSnapshot(resolver, keyRingUri);
+            sCurrent = snapshot;
+        }
+
+        // observe before reading, so changes during the read are not missed
+        resolver.registerContentObserver(keyRingUri, true, snapshot.mObserver);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                snapshot.load();
+            }
+        });
+    }
+
+    /** Drops the snapshot of the key once no activity which prefetched it uses it anymore. */
+    public static void release(Uri dataUri) {
+        if (getMasterKeyId(dataUri) == null) {
+            return;
+        }
+        Uri keyRingUri = KeyRings.buildGenericKeyRingUri(dataUri);
+
+        KeyDetailSnapshot snapshot;
+        synchronized (KeyDetailSnapshot.class) {
+            snapshot = sCurrent;
+            if (snapshot == null || !snapshot.mKeyRingUri.equals(keyRingUri)) {
+                return;
+            }
+            snapshot.mUsers -= 1;
+            if (snapshot.mUsers > 0) {
+                return;
+            }
+        }
+        snapshot.invalidate();
+    }
+
+    /**
+     * Returns the result of a query from the snapshot, or null if it is not covered by a valid
+     * snapshot. Waits for a snapshot of the key which is still being read, so must not be called
+     * on the main thread.
+     */
+    static Cursor query(ContentResolver resolver, Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        if (projection == null || selectionArgs != null || sortOrder != null) {
+            return null;
+        }
+
+        KeyDetailSnapshot snapshot;
+        synchronized (KeyDetailSnapshot.class) {
+            snapshot = sCurrent;
+        }
+        if (snapshot == null || !isKeyUri(snapshot.mKeyRingUri, uri)) {
+            return null;
+        }
+
+        try {
+            snapshot.mLoaded.await();
+        } catch (InterruptedException e) {
+            return null;
+        }
+        if (snapshot.mInvalid) {
+            return null;
+        }
+
+        for (Entry entry : snapshot.mEntries) {
+            if (entry.mUri.equals(uri) && TextUtils.equals(entry.mSelection, selection)) {
+                Cursor cursor = entry.project(projection);
+                if (cursor != null) {
+                    cursor.setNotificationUri(resolver, uri);
+                }
+                return cursor;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isKeyUri(Uri keyRingUri, Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return segments.size() >= 2 && keyRingUri.getLastPathSegment().equals(segments.get(1));
+    }
+
+    /** Returns the master key id for uris of the form key_rings/<id>[/...], or null. */
+    private static Long getMasterKeyId(Uri uri) {
+        if (uri == null) {
+            return null;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2 || !KeychainContract.BASE_KEY_RINGS.equals(segments.get(0))) {
+            return null;
+        }
+        try {
+            return Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void invalidate() {
+        if (mInvalid) {
+            return;
+        }
+        mInvalid = true;
+        // nothing is returned from an invalid snapshot, release waiting loaders right away
+        mLoaded.countDown();
+        mResolver.unregisterContentObserver(mObserver);
+        synchronized (KeyDetailSnapshot.class) {
+            if (sCurrent == this) {
+                sCurrent = null;
+            }
+        }
+    }
+
+    private void load() {
+        long start = System.currentTimeMillis();
+
+        ContentProviderClient client =
+                mResolver.acquireContentProviderClient(KeychainContract.CONTENT_AUTHORITY);
+        if (client == null) {
+            invalidate();
+            return;
+        }
+
+        try {
+            loadEntry(client, KeyRings.buildUnifiedKeyRingUri(mKeyRingUri), UNIFIED_PROJECTION, null);
+            loadEntry(client, UserPackets.buildUserIdsUri(mKeyRingUri),
+                    UserIdsAdapter.USER_PACKETS_PROJECTION, UserIdsAdapter.USER_IDS_WHERE);
+            loadEntry(client, UserPackets.buildUserIdsUri(mKeyRingUri),
+                    UserIdsAdapter.USER_PACKETS_PROJECTION, null);
+            loadEntry(client, UserPackets.buildLinkedIdsUri(mKeyRingUri),
+                    UserIdsAdapter.USER_PACKETS_PROJECTION, LinkedIdsAdapter.LINKED_IDS_WHERE);
+            loadEntry(client, Keys.buildKeysUri(mKeyRingUri), SubkeysAdapter.SUBKEYS_PROJECTION, null);
+        } catch (RemoteException | RuntimeException e) {
+            Log.e(Constants.TAG, "error reading key details", e);
+            invalidate();
+        } finally {
+            // no transaction here, it would lock out writers. changes while reading are
+            // seen by the observer, which invalidates the snapshot
+            client.release();
+            mLoaded.countDown();
+        }
+
+        Log.d(Constants.TAG, "read key details in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void loadEntry(ContentProviderClient client, Uri uri, String[] projection, String selection)
+            throws RemoteException {
+        Cursor cursor = client.query(uri, projection, selection, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            Entry entry = new Entry(uri, projection, selection);
+            int columns = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[columns];
+                for (int i = 0; i < columns; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = cursor.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = cursor.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[i] = cursor.getString(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[i] = cursor.getBlob(i);
+                            break;
+                        default:
+                            row[i] = null;
+                    }
+                }
+                entry.mRows.add(row);
+            }
+            mEntries.add(entry);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** The result of one query, which can answer queries for any subset of its columns. */
+    private static class Entry {
+        final Uri mUri;
+        final List<String> mColumns;
+        final String mSelection;
+        final ArrayList<Object[]> mRows = new ArrayList<>();
+
+        Entry(Uri uri, String[] columns, String selection) {
+            mUri = uri;
+            mColumns = Arrays.asList(columns);
+            mSelection = selection;
+        }
+
+        Cursor project(String[] projection) {
+            int[] indexes = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                indexes[i] = mColumns.indexOf(projection[i]);
+                if (indexes[i] < 0) {
+                    // column not covered, must be queried
+                    return null;
+                }
+            }
+
+            MatrixCursor cursor = new MatrixCursor(projection, mRows.size());
+            for (Object[] row : mRows) {
+                Object[] projected = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    projected[i] = row[indexes[i]];
+                }
+                cursor.addRow(projected);
+            }
+            return cursor;
+        }
+    }
+
+}
@@ -25,6 +25,7 @@ import android.graphics.PorterDuff;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.style.ForegroundColorSpan;
+import android.util.SparseIntArray;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
@@ -36,7 +37,6 @@ import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.nist.NISTNamedCurves;
 import org.bouncycastle.asn1.teletrust.TeleTrusTNamedCurves;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
-import org.bouncycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
@@ -49,10 +49,19 @@ import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Locale;
 
 public class KeyFormattingUtils {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char PUNCTUATION_SPACE = '\u2008';
+
+    /** Length of a beautified 64 bit key id, four quartets and three spaces */
+    public static final int BEAUTIFIED_KEY_ID_LENGTH = 19;
+
+    // colors of recently formatted quartets, each colorized quartet still gets its own span
+    private static final int MAX_CACHED_QUARTET_COLORS = 4096;
+    private static final SparseIntArray sQuartetColors = new SparseIntArray();
+
     public static String getAlgorithmInfo(int algorithm, Integer keySize, String oid) {
         return getAlgorithmInfo(null, algorithm, keySize, oid);
     }
@@ -223,13 +232,29 @@ public class KeyFormattingUtils {
      * @return
      */
     public static String convertFingerprintToHex(byte[] fingerprint) {
+        char[] out = new char[fingerprint.length * 2];
+        formatFingerprintHex(fingerprint, out);
+        return new String(out);
+    }
+
+    /**
+     * Writes the lower case hex form of a fingerprint into out, which must hold twice as many
+     * chars as the fingerprint has bytes. Does not allocate, so out can be reused when binding.
+     *
+     * @return the number of chars written
+     */
+    public static int formatFingerprintHex(byte[] fingerprint, char[] out) {
         // NOTE: Even though v3 keys are not imported we need to support both fingerprints for
         // display/comparison before import
         if (fingerprint.length != 16 && fingerprint.length != 20) {
             throw new IllegalArgumentException("No valid v3 or v4 fingerprint!");
         }
 
-        return Hex.toHexString(fingerprint).toLowerCase(Locale.ENGLISH);
+        for (int i = 0; i < fingerprint.length; i++) {
+            out[2 * i] = HEX_DIGITS[(fingerprint[i] >> 4) & 0xf];
+            out[2 * i + 1] = HEX_DIGITS[fingerprint[i] & 0xf];
+        }
+        return fingerprint.length * 2;
     }
 
     public static long getKeyIdFromFingerprint(byte[] fingerprint) {
@@ -256,19 +281,27 @@ public class KeyFormattingUtils {
             // this is a short key id
             return convertKeyIdToHexShort(keyId);
         }
-        return "0x" + convertKeyIdToHex32bit(keyId >> 32) + convertKeyIdToHex32bit(keyId);
+        char[] out = new char[18];
+        out[0] = '0';
+        out[1] = 'x';
+        formatHex(keyId, 16, out, 2);
+        return new String(out);
     }
 
     public static String convertKeyIdToHexShort(long keyId) {
-        return "0x" + convertKeyIdToHex32bit(keyId);
+        char[] out = new char[10];
+        out[0] = '0';
+        out[1] = 'x';
+        formatHex(keyId, 8, out, 2);
+        return new String(out);
     }
 
-    private static String convertKeyIdToHex32bit(long keyId) {
-        String hexString = Long.toHexString(keyId & 0xffffffffL).toLowerCase(Locale.ENGLISH);
-        while (hexString.length() < 8) {
-            hexString = "0" + hexString;
+    /** Writes the lowest digits of value as lower case hex into out, with leading zeros. */
+    private static void formatHex(long value, int digits, char[] out, int offset) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            out[i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
         }
-        return hexString;
     }
 
     public static long convertFingerprintToKeyId(byte[] fingerprint) {
@@ -283,21 +316,21 @@ public class KeyFormattingUtils {
      * @return - the beautified form
      */
     public static String beautifyKeyId(String idHex) {
-        if (idHex.startsWith("0x")) {
-            idHex = idHex.substring(2);
+        int start = idHex.startsWith("0x") ? 2 : 0;
+        int length = idHex.length() - start;
+        if ((length % 4) != 0) {
+            return start == 0 ? idHex : idHex.substring(start);
         }
-        if ((idHex.length() % 4) == 0) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < idHex.length(); i += 4) {
-                if (i != 0) {
-                    sb.appendCodePoint(0x2008); // U+2008 PUNCTUATION SPACE
-                }
-                sb.append(idHex.substring(i, i + 4).toLowerCase(Locale.US));
+
+        char[] out = new char[length + Math.max(0, length / 4 - 1)];
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            if (i != 0 && i % 4 == 0) {
+                out[pos++] = PUNCTUATION_SPACE;
             }
-            idHex = sb.toString();
+            out[pos++] = Character.toLowerCase(idHex.charAt(start + i));
         }
-
-        return idHex;
+        return new String(out);
     }
 
     /**
@@ -308,7 +341,30 @@ public class KeyFormattingUtils {
      * @return - the beautified form
      */
     public static String beautifyKeyId(long keyId) {
-        return beautifyKeyId(convertKeyIdToHex(keyId));
+        char[] out = new char[BEAUTIFIED_KEY_ID_LENGTH];
+        int length = formatBeautifiedKeyId(keyId, out);
+        return new String(out, 0, length);
+    }
+
+    /**
+     * Writes the beautified form of a key id, as returned by {@link #beautifyKeyId(long)}, into
+     * out, which must hold at least {@link #BEAUTIFIED_KEY_ID_LENGTH} chars. Does not allocate,
+     * so out can be reused when binding.
+     *
+     * @return the number of chars written
+     */
+    public static int formatBeautifiedKeyId(long keyId, char[] out) {
+        // short key ids have only two quartets, like in convertKeyIdToHex
+        int quartets = (keyId >> 32) == 0 ? 2 : 4;
+        int pos = 0;
+        for (int q = quartets - 1; q >= 0; q--) {
+            formatHex(keyId >>> (16 * q), 4, out, pos);
+            pos += 4;
+            if (q != 0) {
+                out[pos++] = PUNCTUATION_SPACE;
+            }
+        }
+        return pos;
     }
 
     public static String beautifyKeyIdWithPrefix(Context context, String idHex) {
@@ -320,68 +376,99 @@ public class KeyFormattingUtils {
     }
 
     public static SpannableStringBuilder colorizeFingerprint(String fingerprint) {
-        // split by 4 characters
-        fingerprint = fingerprint.replaceAll("(.{4})(?!$)", "$1 ");
+        SpannableStringBuilder sb = new SpannableStringBuilder();
+        colorizeFingerprint(fingerprint, sb);
+        return sb;
+    }
 
-        // add line breaks to have a consistent "image" that can be recognized
-        char[] chars = fingerprint.toCharArray();
-        chars[24] = '\n';
-        fingerprint = String.valueOf(chars);
+    /**
+     * Writes the colorized form of a fingerprint into target, replacing its contents. The
+     * colors of quartets are cached, so they are only computed once.
+     */
+    public static void colorizeFingerprint(String fingerprint, SpannableStringBuilder target) {
+        target.clear();
+        target.clearSpans();
+
+        // split by 4 characters, and add a line break in the middle to have a consistent
+        // "image" that can be recognized
+        int length = fingerprint.length();
+        for (int i = 0; i < length; i++) {
+            if (i != 0 && i % 4 == 0) {
+                target.append(i == 20 ? '\n' : ' ');
+            }
+            target.append(fingerprint.charAt(i));
+        }
 
-        SpannableStringBuilder sb = new SpannableStringBuilder(fingerprint);
         try {
             // for each 4 characters of the fingerprint + 1 space
-            for (int i = 0; i < fingerprint.length(); i += 5) {
-                int spanEnd = Math.min(i + 4, fingerprint.length());
-                String fourChars = fingerprint.substring(i, spanEnd);
-
-                int raw = Integer.parseInt(fourChars, 16);
-                byte[] bytes = {(byte) ((raw >> 8) & 0xff - 128), (byte) (raw & 0xff - 128)};
-                int[] color = getRgbForData(bytes);
-                int r = color[0];
-                int g = color[1];
-                int b = color[2];
-
-                // we cannot change black by multiplication, so adjust it to an almost-black grey,
-                // which will then be brightened to the minimal brightness level
-                if (r == 0 && g == 0 && b == 0) {
-                    r = 1;
-                    g = 1;
-                    b = 1;
-                }
-
-                // Convert rgb to brightness
-                double brightness = 0.2126 * r + 0.7152 * g + 0.0722 * b;
-
-                // If a color is too dark to be seen on black,
-                // then brighten it up to a minimal brightness.
-                if (brightness < 80) {
-                    double factor = 80.0 / brightness;
-                    r = Math.min(255, (int) (r * factor));
-                    g = Math.min(255, (int) (g * factor));
-                    b = Math.min(255, (int) (b * factor));
-
-                    // If it is too light, then darken it to a respective maximal brightness.
-                } else if (brightness > 180) {
-                    double factor = 180.0 / brightness;
-                    r = (int) (r * factor);
-                    g = (int) (g * factor);
-                    b = (int) (b * factor);
-                }
-
-                // Create a foreground color with the 3 digest integers as RGB
-                // and then converting that int to hex to use as a color
-                sb.setSpan(new ForegroundColorSpan(Color.rgb(r, g, b)),
-                        i, spanEnd, Spannable.SPAN_INCLUSIVE_INCLUSIVE);
+            for (int i = 0; i < length; i += 4) {
+                int spanStart = i + i / 4;
+                int spanEnd = Math.min(spanStart + 4, target.length());
+                int quartet = Integer.parseInt(fingerprint.substring(i, Math.min(i + 4, length)), 16);
+                // a span can only be attached once, so repeated quartets need their own
+                target.setSpan(new ForegroundColorSpan(getCachedQuartetColor(quartet)),
+                        spanStart, spanEnd, Spannable.SPAN_INCLUSIVE_INCLUSIVE);
             }
         } catch (Exception e) {
             Log.e(Constants.TAG, "Colorization failed", e);
             // if anything goes wrong, then just display the fingerprint without colour,
             // instead of partially correct colour or wrong colours
-            return new SpannableStringBuilder(fingerprint);
+            target.clearSpans();
         }
+    }
 
-        return sb;
+    private static int getCachedQuartetColor(int quartet)
+            throws NoSuchAlgorithmException, DigestException {
+        synchronized (sQuartetColors) {
+            int index = sQuartetColors.indexOfKey(quartet);
+            if (index >= 0) {
+                return sQuartetColors.valueAt(index);
+            }
+            if (sQuartetColors.size() >= MAX_CACHED_QUARTET_COLORS) {
+                sQuartetColors.clear();
+            }
+            int color = getQuartetColor(quartet);
+            sQuartetColors.put(quartet, color);
+            return color;
+        }
+    }
+
+    private static int getQuartetColor(int quartet) throws NoSuchAlgorithmException, DigestException {
+        byte[] bytes = {(byte) ((quartet >> 8) & 0xff - 128), (byte) (quartet & 0xff - 128)};
+        int[] color = getRgbForData(bytes);
+        int r = color[0];
+        int g = color[1];
+        int b = color[2];
+
+        // we cannot change black by multiplication, so adjust it to an almost-black grey,
+        // which will then be brightened to the minimal brightness level
+        if (r == 0 && g == 0 && b == 0) {
+            r = 1;
+            g = 1;
+            b = 1;
+        }
+
+        // Convert rgb to brightness
+        double brightness = 0.2126 * r + 0.7152 * g + 0.0722 * b;
+
+        // If a color is too dark to be seen on black,
+        // then brighten it up to a minimal brightness.
+        if (brightness < 80) {
+            double factor = 80.0 / brightness;
+            r = Math.min(255, (int) (r * factor));
+            g = Math.min(255, (int) (g * factor));
+            b = Math.min(255, (int) (b * factor));
+
+            // If it is too light, then darken it to a respective maximal brightness.
+        } else if (brightness > 180) {
+            double factor = 180.0 / brightness;
+            r = (int) (r * factor);
+            g = (int) (g * factor);
+            b = (int) (b * factor);
+        }
+
+        // Create a foreground color with the 3 digest integers as RGB
+        return Color.rgb(r, g, b);
     }
 
     /**
@@ -21,10 +21,14 @@ package org.sufficientlysecure.keychain.ui.util;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
 
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.EncodeHintType;
 import com.google.zxing.WriterException;
+import com.google.zxing.common.BitArray;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
@@ -33,18 +37,95 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Copied from Bitcoin Wallet
  */
 public class QrCodeUtils {
 
+    public interface QrCodeCallback {
+        /** Called on the main thread, with null if the QR code could not be rendered. */
+        void onQrCodeLoaded(Bitmap qrCode);
+    }
+
+    // bit matrices need a fraction of the memory of their bitmaps, keep a few of them
+    // around so bitmaps evicted on low memory can be rendered again quickly
+    private static final LruCache<String, BitMatrix> sMatrixCache = new LruCache<>(4);
+
+    // a single render thread, which goes away when idle
+    private static final ThreadPoolExecutor sRenderExecutor = new ThreadPoolExecutor(
+            0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    // callbacks waiting for a bitmap which is being rendered, by cache key
+    private static final HashMap<String, ArrayList<QrCodeCallback>> sPendingCallbacks = new HashMap<>();
+
     public static Bitmap getQRCodeBitmap(final Uri uri, final int size) {
+        return getQRCodeBitmap(getInput(uri), size);
+    }
+
+    /**
+     * Returns the QR code for the uri in the given size, if it is cached. Otherwise, it is
+     * rendered in the background and passed to the callback, and null is returned so the
+     * caller can keep showing a placeholder. A size of 0 renders the smallest possible code.
+     */
+    public static Bitmap getQRCodeBitmapAsync(final Uri uri, final int size,
+            final QrCodeCallback callback) {
+        final String input = getInput(uri);
+        final String key = getCacheKey(input, size);
+
+        Bitmap cached = KeychainApplication.qrCodeCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        synchronized (sPendingCallbacks) {
+            ArrayList<QrCodeCallback> callbacks = sPendingCallbacks.get(key);
+            if (callbacks != null) {
+                // already rendering, just wait for the result as well
+                callbacks.add(callback);
+                return null;
+            }
+            callbacks = new ArrayList<>();
+            callbacks.add(callback);
+            sPendingCallbacks.put(key, callbacks);
+        }
+
+        sRenderExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = getQRCodeBitmap(input, size);
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ArrayList<QrCodeCallback> callbacks;
+                        synchronized (sPendingCallbacks) {
+                            callbacks = sPendingCallbacks.remove(key);
+                        }
+                        for (QrCodeCallback callback : callbacks) {
+                            callback.onQrCodeLoaded(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+        return null;
+    }
+
+    private static String getInput(Uri uri) {
         // for URIs we want alphanumeric encoding to save space, thus make everything upper case!
         // zxing will then select Mode.ALPHANUMERIC internally
-        return getQRCodeBitmap(uri.toString().toUpperCase(Locale.ENGLISH), size);
+        return uri.toString().toUpperCase(Locale.ENGLISH);
+    }
+
+    private static String getCacheKey(String input, int size) {
+        return size + ":" + input;
     }
 
     /**
@@ -55,31 +136,24 @@ public class QrCodeUtils {
 
         try {
 
+            String key = getCacheKey(input, size);
+
             // the qrCodeCache is handled in KeychainApplication so we can
             // properly react to onTrimMemory calls
-            Bitmap bitmap = KeychainApplication.qrCodeCache.get(input);
+            Bitmap bitmap = KeychainApplication.qrCodeCache.get(key);
             if (bitmap == null) {
 
-                Hashtable<EncodeHintType, Object> hints = new Hashtable<>();
-                hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.M);
-                BitMatrix result = new QRCodeWriter().encode(input, BarcodeFormat.QR_CODE, size,
-                        size, hints);
-
-                int width = result.getWidth();
-                int height = result.getHeight();
-                int[] pixels = new int[width * height];
-
-                for (int y = 0; y < height; y++) {
-                    final int offset = y * width;
-                    for (int x = 0; x < width; x++) {
-                        pixels[offset + x] = result.get(x, y) ? Color.BLACK : Color.TRANSPARENT;
-                    }
+                BitMatrix result = sMatrixCache.get(key);
+                if (result == null) {
+                    Hashtable<EncodeHintType, Object> hints = new Hashtable<>();
+                    hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.M);
+                    result = new QRCodeWriter().encode(input, BarcodeFormat.QR_CODE, size,
+                            size, hints);
+                    sMatrixCache.put(key, result);
                 }
 
-                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-
-                KeychainApplication.qrCodeCache.put(input, bitmap);
+                bitmap = renderBitmap(result);
+                KeychainApplication.qrCodeCache.put(key, bitmap);
             }
 
             return bitmap;
@@ -90,4 +164,31 @@ public class QrCodeUtils {
 
     }
 
+    /**
+     * Renders the matrix row by row. A scaled up QR code consists of runs of identical rows,
+     * so each distinct row is converted to pixels only once.
+     */
+    private static Bitmap renderBitmap(BitMatrix matrix) {
+        int width = matrix.getWidth();
+        int height = matrix.getHeight();
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+        BitArray row = new BitArray(width);
+        BitArray previousRow = null;
+        int[] pixels = new int[width];
+        for (int y = 0; y < height; y++) {
+            row = matrix.getRow(y, row);
+            if (!row.equals(previousRow)) {
+                for (int x = 0; x < width; x++) {
+                    pixels[x] = row.get(x) ? Color.BLACK : Color.TRANSPARENT;
+                }
+                previousRow = row.clone();
+            }
+            bitmap.setPixels(pixels, 0, width, 0, y, width, 1);
+        }
+
+        return bitmap;
+    }
+
 }
@@ -29,7 +29,8 @@ public class CertListWidget extends ViewAnimator
     public static final String ARG_IS_SECRET = "is_secret";
 
 
-    // These are the rows that we will retrieve.
+    // These are the rows that we will retrieve. The signer user id is not shown,
+    // leaving it out saves joining the certifiers' user ids.
     static final String[] CERTS_PROJECTION = new String[]{
             KeychainContract.Certs._ID,
             KeychainContract.Certs.MASTER_KEY_ID,
@@ -38,7 +39,6 @@ public class CertListWidget extends ViewAnimator
             KeychainContract.Certs.RANK,
             KeychainContract.Certs.KEY_ID_CERTIFIER,
             KeychainContract.Certs.USER_ID,
-            KeychainContract.Certs.SIGNER_UID,
             KeychainContract.Certs.CREATION
     };
     public static final int INDEX_MASTER_KEY_ID = 1;
@@ -47,8 +47,7 @@ public class CertListWidget extends ViewAnimator
     public static final int INDEX_RANK = 4;
     public static final int INDEX_KEY_ID_CERTIFIER = 5;
     public static final int INDEX_USER_ID = 6;
-    public static final int INDEX_SIGNER_UID = 7;
-    public static final int INDEX_CREATION = 8;
+    public static final int INDEX_CREATION = 7;
 
     private TextView vCollapsed;
     private ListView vExpanded;
@@ -25,13 +25,17 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.util.LongSparseArray;
 import android.util.Patterns;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -42,17 +46,16 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 
 public class ContactHelper {
 
-    private static final Map<Long, Bitmap> photoCache = new HashMap<>();
+    private static final ContactPhotoCache sPhotoCache = new ContactPhotoCache();
+    private static boolean sPhotoCacheObserved = false;
 
     private Context mContext;
     private ContentResolver mContentResolver;
@@ -390,14 +393,57 @@ public class ContactHelper {
         return contactName;
     }
 
-    private Bitmap getCachedPhotoByMasterKeyId(long masterKeyId) {
-        if (masterKeyId == -1) {
-            return null;
+    private final ContactPhotoCache.PhotoLoader mPhotoLoader = new ContactPhotoCache.PhotoLoader() {
+        @Override
+        public Bitmap loadPhoto(long masterKeyId, boolean highRes) {
+            return loadPhotoByMasterKeyId(masterKeyId, highRes);
+        }
+    };
+
+    /**
+     * Loads the photo of the contact linked to a key in the background, using the photo cache.
+     * The callback is called on the main thread, immediately if the photo is cached.
+     */
+    public void loadPhotoByMasterKeyIdAsync(long masterKeyId, boolean highRes,
+                                            ContactPhotoCache.PhotoCallback callback) {
+        if (masterKeyId == -1 || !isContactsPermissionGranted()) {
+            callback.onPhotoLoaded(masterKeyId, highRes, null);
+            return;
+        }
+        observeContactsForPhotoCache();
+        sPhotoCache.getAsync(masterKeyId, highRes, mPhotoLoader, callback);
+    }
+
+    /**
+     * Keys cached without a photo may get one when their contact is linked, so those entries are
+     * evicted whenever the contact db changes. Must be called on the main thread.
+     */
+    private void observeContactsForPhotoCache() {
+        if (sPhotoCacheObserved) {
+            return;
         }
-        if (!photoCache.containsKey(masterKeyId)) {
-            photoCache.put(masterKeyId, loadPhotoByMasterKeyId(masterKeyId, false));
+        ContentObserver observer = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                sPhotoCache.evictMissing();
+            }
+        };
+        try {
+            mContext.getApplicationContext().getContentResolver().registerContentObserver(
+                    ContactsContract.Contacts.CONTENT_URI, true, observer);
+            sPhotoCacheObserved = true;
+        } catch (SecurityException e) {
+            Log.w(Constants.TAG, "Cannot observe contacts for photo cache", e);
         }
-        return photoCache.get(masterKeyId);
+    }
+
+    public static ContactPhotoCache getPhotoCache() {
+        return sPhotoCache;
+    }
+
+    public static void trimPhotoCache(int level) {
+        sPhotoCache.trimMemory(level);
+        Log.d(Constants.TAG, "Trimmed photo cache: " + sPhotoCache);
     }
 
     public Bitmap loadPhotoByMasterKeyId(long masterKeyId, boolean highRes) {
@@ -460,6 +506,11 @@ public class ContactHelper {
     public static final int INDEX_HAS_SECRET = 5;
     public static final int INDEX_HAS_ANY_SECRET = 6;
 
+    // pending contact operations are applied in batches of at most this size, which keeps the
+    // transactions of the contacts provider short. each key starts at a yield point, so the
+    // provider's limit of operations between yield points only applies per key
+    private static final int MAX_BATCH_OPERATIONS = 400;
+
     /**
      * Write/Update the current OpenKeychain keys to the contact db
      */
@@ -491,7 +542,14 @@ public class ContactHelper {
         // delete raw contacts flagged for deletion by user so they can be reinserted
         deleteFlaggedNormalRawContacts();
 
-        Set<Long> deletedKeys = getRawContactMasterKeyIds();
+        // raw contacts currently in the contact db, removed from here when their key is found
+        LongSparseArray<RawContactState> deletedKeys = getRawContactStates();
+        LongSparseArray<ArrayList<String>> emailsByMasterKeyId = getNonRevokedEmails();
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        // the keys whose operations are in ops
+        ArrayList<PendingContact> pendingContacts = new ArrayList<>();
+        int unchangedCount = 0;
 
         // Load all public Keys from OK
         // TODO: figure out why using selectionArgs does not work in this case
@@ -508,55 +566,132 @@ public class ContactHelper {
                 boolean isRevoked = cursor.getInt(INDEX_IS_REVOKED) > 0;
                 boolean isVerified = cursor.getInt(INDEX_VERIFIED) > 0;
 
-                Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
-
+                RawContactState existingContact = deletedKeys.get(masterKeyId);
                 deletedKeys.remove(masterKeyId);
 
-                ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-
                 // Do not store expired or revoked or unverified keys in contact db - and
                 // remove them if they already exist. Secret keys do not reach this point
                 if (isExpired || isRevoked || !isVerified) {
-                    Log.d(Constants.TAG, "Expired or revoked or unverified: Deleting masterKeyId "
-                            + masterKeyId);
-                    if (masterKeyId != -1) {
+                    if (existingContact != null) {
+                        Log.d(Constants.TAG, "Expired or revoked or unverified: Deleting masterKeyId "
+                                + masterKeyId);
                         deleteRawContactByMasterKeyId(masterKeyId);
                     }
-                } else if (userIdSplit.name != null) {
-
-                    // get raw contact to this master key id
-                    long rawContactId = findRawContactId(masterKeyId);
-                    Log.d(Constants.TAG, "rawContactId: " + rawContactId);
+                    continue;
+                }
+                if (userIdSplit.name == null) {
+                    continue;
+                }
 
-                    // Create a new rawcontact with corresponding key if it does not exist yet
-                    if (rawContactId == -1) {
-                        Log.d(Constants.TAG, "Insert new raw contact with masterKeyId " + masterKeyId);
+                // skip keys whose contact data hasn't changed since the last sync
+                ArrayList<String> emails = emailsByMasterKeyId.get(masterKeyId);
+                String syncState = buildSyncState(userIdSplit.name, emails);
+                if (existingContact != null && syncState.equals(existingContact.mSyncState)) {
+                    unchangedCount += 1;
+                    continue;
+                }
 
-                        insertContact(ops, masterKeyId);
-                        writeContactKey(ops, rawContactId, masterKeyId, userIdSplit.name);
-                    }
+                Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
 
-                    // We always update the display name (which is derived from primary user id)
-                    // and email addresses from user id
-                    writeContactDisplayName(ops, rawContactId, userIdSplit.name);
-                    writeContactEmail(ops, rawContactId, masterKeyId);
-                    try {
-                        mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
-                    } catch (Exception e) {
-                        Log.w(Constants.TAG, e);
-                    }
+                PendingContact contact = new PendingContact(masterKeyId, existingContact,
+                        userIdSplit.name, emails, syncState);
+                int keyStart = ops.size();
+                addContactOperations(ops, contact);
+                if (keyStart > 0 && ops.size() > MAX_BATCH_OPERATIONS) {
+                    // this key would push the batch over the limit, so apply the batch without
+                    // it, and start the next batch with this key
+                    ops.subList(keyStart, ops.size()).clear();
+                    applyContactOperations(ops, pendingContacts);
+                    addContactOperations(ops, contact);
                 }
+                pendingContacts.add(contact);
             }
             cursor.close();
         }
+        applyContactOperations(ops, pendingContacts);
+
+        Log.d(Constants.TAG, "Skipped " + unchangedCount + " unchanged raw contacts");
 
         // Delete master key ids that are no longer present in OK
-        for (Long masterKeyId : deletedKeys) {
+        for (int i = 0; i < deletedKeys.size(); i++) {
+            long masterKeyId = deletedKeys.keyAt(i);
             Log.d(Constants.TAG, "Delete raw contact with masterKeyId " + masterKeyId);
             deleteRawContactByMasterKeyId(masterKeyId);
         }
     }
 
+    /**
+     * Adds the operations writing the raw contact of a key. The first one allows the contacts
+     * provider to yield, so the operations of each key start at a yield point.
+     */
+    private void addContactOperations(ArrayList<ContentProviderOperation> ops, PendingContact contact) {
+        // index of the raw contact insert in this batch, for back references
+        int rawContactIndex = ops.size();
+        long rawContactId = contact.mExistingContact != null ? contact.mExistingContact.mRawContactId : -1;
+
+        // Create a new rawcontact with corresponding key if it does not exist yet
+        if (rawContactId == -1) {
+            Log.d(Constants.TAG, "Insert new raw contact with masterKeyId " + contact.mMasterKeyId);
+
+            insertContact(ops, contact.mMasterKeyId, contact.mSyncState);
+            writeContactKey(ops, rawContactId, rawContactIndex, contact.mMasterKeyId, contact.mName);
+        } else {
+            updateContactSyncState(ops, rawContactId, contact.mSyncState);
+        }
+
+        // update the display name (which is derived from primary user id)
+        // and email addresses from user id
+        writeContactDisplayName(ops, rawContactId, rawContactIndex, contact.mName);
+        writeContactEmail(ops, rawContactId, rawContactIndex, contact.mEmails);
+    }
+
+    /**
+     * Applies and clears a batch of operations on the contact db. If the batch fails, the
+     * operations of each of its keys are applied on their own, so a single failing key does not
+     * keep the others from being written. The sync state of a failing key is not stored, so it is
+     * written again on the next sync.
+     */
+    private void applyContactOperations(ArrayList<ContentProviderOperation> ops,
+                                        ArrayList<PendingContact> pendingContacts) {
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        } catch (Exception e) {
+            Log.w(Constants.TAG, "Contact batch failed, applying its keys one by one", e);
+            if (pendingContacts.size() > 1) {
+                ArrayList<ContentProviderOperation> keyOps = new ArrayList<>();
+                for (PendingContact contact : pendingContacts) {
+                    addContactOperations(keyOps, contact);
+                    try {
+                        mContentResolver.applyBatch(ContactsContract.AUTHORITY, keyOps);
+                    } catch (Exception keyException) {
+                        Log.w(Constants.TAG, "Writing raw contact of masterKeyId "
+                                + contact.mMasterKeyId + " failed", keyException);
+                    }
+                    keyOps.clear();
+                }
+            }
+        }
+        ops.clear();
+        pendingContacts.clear();
+    }
+
+    /**
+     * The data written to the raw contact of a key, stored in its SYNC1 column so unchanged keys
+     * can be skipped on the next sync.
+     */
+    private static String buildSyncState(String displayName, List<String> emails) {
+        StringBuilder syncState = new StringBuilder(displayName);
+        if (emails != null) {
+            for (String email : emails) {
+                syncState.append('\n').append(email);
+            }
+        }
+        return syncState.toString();
+    }
+
     /**
      * Links all keys with secrets to the main ("me") contact
      * http://developer.android.com/reference/android/provider/ContactsContract.Profile.html
@@ -591,7 +726,7 @@ public class ContactHelper {
 
                         ArrayList<ContentProviderOperation> ops = new ArrayList<>();
                         insertMainProfileRawContact(ops, masterKeyId);
-                        writeContactKey(ops, rawContactId, masterKeyId, userIdSplit.name);
+                        writeContactKey(ops, rawContactId, 0, masterKeyId, userIdSplit.name);
 
                         try {
                             mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
@@ -731,24 +866,87 @@ public class ContactHelper {
                 });
     }
 
+    /** A key whose raw contact is written by the current batch */
+    private static class PendingContact {
+        final long mMasterKeyId;
+        final RawContactState mExistingContact;
+        final String mName;
+        final ArrayList<String> mEmails;
+        final String mSyncState;
+
+        PendingContact(long masterKeyId, RawContactState existingContact, String name,
+                       ArrayList<String> emails, String syncState) {
+            mMasterKeyId = masterKeyId;
+            mExistingContact = existingContact;
+            mName = name;
+            mEmails = emails;
+            mSyncState = syncState;
+        }
+    }
+
+    private static class RawContactState {
+        final long mRawContactId;
+        final String mSyncState;
+
+        RawContactState(long rawContactId, String syncState) {
+            mRawContactId = rawContactId;
+            mSyncState = syncState;
+        }
+    }
+
     /**
-     * @return a set of all key master key ids currently present in the contact db
+     * @return raw contact id and sync state of all raw contacts currently present in the contact
+     * db, by master key id
      */
-    private Set<Long> getRawContactMasterKeyIds() {
-        HashSet<Long> result = new HashSet<>();
-        Cursor masterKeyIds = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
+    private LongSparseArray<RawContactState> getRawContactStates() {
+        LongSparseArray<RawContactState> result = new LongSparseArray<>();
+        Cursor rawContacts = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
                 new String[]{
-                        ContactsContract.RawContacts.SOURCE_ID
+                        ContactsContract.RawContacts.SOURCE_ID,
+                        ContactsContract.RawContacts._ID,
+                        ContactsContract.RawContacts.SYNC1
                 },
                 ContactsContract.RawContacts.ACCOUNT_TYPE + "=?",
                 new String[]{
                         Constants.ACCOUNT_TYPE
                 }, null);
-        if (masterKeyIds != null) {
-            while (masterKeyIds.moveToNext()) {
-                result.add(masterKeyIds.getLong(0));
+        if (rawContacts != null) {
+            while (rawContacts.moveToNext()) {
+                result.put(rawContacts.getLong(0),
+                        new RawContactState(rawContacts.getLong(1), rawContacts.getString(2)));
             }
-            masterKeyIds.close();
+            rawContacts.close();
+        }
+        return result;
+    }
+
+    /**
+     * @return emails of all non-revoked user ids of all keys, by master key id
+     */
+    private LongSparseArray<ArrayList<String>> getNonRevokedEmails() {
+        LongSparseArray<ArrayList<String>> result = new LongSparseArray<>();
+        Cursor ids = mContentResolver.query(UserPackets.buildUserIdsUri(),
+                new String[]{
+                        UserPackets.MASTER_KEY_ID,
+                        UserPackets.USER_ID
+                },
+                UserPackets.IS_REVOKED + "=0",
+                null, null);
+        if (ids != null) {
+            while (ids.moveToNext()) {
+                KeyRing.UserId userId = KeyRing.splitUserId(ids.getString(1));
+                if (userId.email == null) {
+                    continue;
+                }
+                long masterKeyId = ids.getLong(0);
+                ArrayList<String> emails = result.get(masterKeyId);
+                if (emails == null) {
+                    emails = new ArrayList<>();
+                    result.put(masterKeyId, emails);
+                }
+                emails.add(userId.email);
+            }
+            ids.close();
         }
         return result;
     }
@@ -775,38 +973,36 @@ public class ContactHelper {
         return result;
     }
 
-    /**
-     * This will search the contact db for a raw contact with a given master key id
-     *
-     * @return raw contact id or -1 if not found
-     */
-    private long findRawContactId(long masterKeyId) {
-        long rawContactId = -1;
-        Cursor raw = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
-                new String[]{
-                        ContactsContract.RawContacts._ID
-                },
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " + ContactsContract.RawContacts.SOURCE_ID + "=?",
-                new String[]{
-                        Constants.ACCOUNT_TYPE, Long.toString(masterKeyId)
-                }, null);
-        if (raw != null) {
-            if (raw.moveToNext()) {
-                rawContactId = raw.getLong(0);
-            }
-            raw.close();
-        }
-        return rawContactId;
-    }
-
     /**
      * Creates a empty raw contact with a given masterKeyId
      */
-    private void insertContact(ArrayList<ContentProviderOperation> ops, long masterKeyId) {
+    private void insertContact(ArrayList<ContentProviderOperation> ops, long masterKeyId,
+                               String syncState) {
         ops.add(ContentProviderOperation.newInsert(ContactsContract.RawContacts.CONTENT_URI)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, Constants.ACCOUNT_NAME)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE)
                 .withValue(ContactsContract.RawContacts.SOURCE_ID, Long.toString(masterKeyId))
+                .withValue(ContactsContract.RawContacts.SYNC1, syncState)
+                .withYieldAllowed(true)
+                .build());
+    }
+
+    /**
+     * Stores the sync state of an existing raw contact
+     */
+    private void updateContactSyncState(ArrayList<ContentProviderOperation> ops, long rawContactId,
+                                        String syncState) {
+        // as sync adapter, so the raw contact is not marked as dirty
+        Uri updateUri = ContactsContract.RawContacts.CONTENT_URI.buildUpon().
+                appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+
+        ops.add(ContentProviderOperation.newUpdate(updateUri)
+                .withSelection(ContactsContract.RawContacts._ID + "=?",
+                        new String[]{
+                                Long.toString(rawContactId)
+                        })
+                .withValue(ContactsContract.RawContacts.SYNC1, syncState)
+                .withYieldAllowed(true)
                 .build());
     }
 
@@ -816,8 +1012,9 @@ public class ContactHelper {
      * This creates the link to OK in contact details
      */
     private void writeContactKey(ArrayList<ContentProviderOperation> ops, long rawContactId,
-                                 long masterKeyId, String keyName) {
-        ops.add(referenceRawContact(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI), rawContactId)
+                                 int rawContactIndex, long masterKeyId, String keyName) {
+        ops.add(referenceRawContact(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
+                rawContactId, rawContactIndex)
                 .withValue(ContactsContract.Data.MIMETYPE, Constants.CUSTOM_CONTACT_DATA_MIME_TYPE)
                 .withValue(ContactsContract.Data.DATA1, mContext.getString(R.string.contact_show_key, keyName))
                 .withValue(ContactsContract.Data.DATA2, masterKeyId)
@@ -828,54 +1025,52 @@ public class ContactHelper {
      * Write all known email addresses of a key (derived from user ids) to a given raw contact
      */
     private void writeContactEmail(ArrayList<ContentProviderOperation> ops,
-                                   long rawContactId, long masterKeyId) {
-        ops.add(selectByRawContactAndItemType(
-                ContentProviderOperation.newDelete(ContactsContract.Data.CONTENT_URI),
-                rawContactId, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE).build());
-        Cursor ids = mContentResolver.query(UserPackets.buildUserIdsUri(masterKeyId),
-                new String[]{
-                        UserPackets.USER_ID
-                },
-                UserPackets.IS_REVOKED + "=0",
-                null, null);
-        if (ids != null) {
-            while (ids.moveToNext()) {
-                KeyRing.UserId userId = KeyRing.splitUserId(ids.getString(0));
-                if (userId.email != null) {
-                    ops.add(referenceRawContact(
-                            ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
-                            rawContactId)
-                            .withValue(ContactsContract.Data.MIMETYPE,
-                                    ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
-                            .withValue(ContactsContract.CommonDataKinds.Email.DATA, userId.email)
-                            .build());
-                }
-            }
-            ids.close();
+                                   long rawContactId, int rawContactIndex, List<String> emails) {
+        if (rawContactId != -1) {
+            ops.add(selectByRawContactAndItemType(
+                    ContentProviderOperation.newDelete(ContactsContract.Data.CONTENT_URI),
+                    rawContactId, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE).build());
+        }
+        if (emails == null) {
+            return;
+        }
+        for (String email : emails) {
+            ops.add(referenceRawContact(
+                    ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
+                    rawContactId, rawContactIndex)
+                    .withValue(ContactsContract.Data.MIMETYPE,
+                            ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
+                    .withValue(ContactsContract.CommonDataKinds.Email.DATA, email)
+                    .build());
         }
     }
 
     private void writeContactDisplayName(ArrayList<ContentProviderOperation> ops, long rawContactId,
-                                         String displayName) {
+                                         int rawContactIndex, String displayName) {
         if (displayName != null) {
             ops.add(insertOrUpdateForRawContact(ContactsContract.Data.CONTENT_URI, rawContactId,
-                    ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
+                    rawContactIndex, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
                     .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, displayName)
                     .build());
         }
     }
 
+    /**
+     * References the given raw contact or, if rawContactId is -1, the one inserted by the operation
+     * at rawContactIndex of the same batch
+     */
     private ContentProviderOperation.Builder referenceRawContact(ContentProviderOperation.Builder builder,
-                                                                 long rawContactId) {
+                                                                 long rawContactId, int rawContactIndex) {
         return rawContactId == -1 ?
-                builder.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0) :
+                builder.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawContactIndex) :
                 builder.withValue(ContactsContract.Data.RAW_CONTACT_ID, rawContactId);
     }
 
     private ContentProviderOperation.Builder insertOrUpdateForRawContact(Uri uri, long rawContactId,
-                                                                         String itemType) {
+                                                                         int rawContactIndex, String itemType) {
         if (rawContactId == -1) {
-            return referenceRawContact(ContentProviderOperation.newInsert(uri), rawContactId).withValue(
+            return referenceRawContact(ContentProviderOperation.newInsert(uri), rawContactId,
+                    rawContactIndex).withValue(
                     ContactsContract.Data.MIMETYPE, itemType);
         } else {
             return selectByRawContactAndItemType(ContentProviderOperation.newUpdate(uri), rawContactId, itemType);
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+
+
+/**
+ * Memory bounded LRU cache for contact photos, by master key id. Thumbnails and high resolution
+ * photos are cached as separate entries.
+ * <p/>
+ * Photos are loaded on a small background executor, concurrent requests for the same photo
+ * share a single load. Keys without a photo are cached as well, so they are not queried again
+ * until {@link #evictMissing()}.
+ */
+public class ContactPhotoCache {
+
+    public interface PhotoLoader {
+        /** Loads a photo on a background thread, may return null if there is none. */
+        Bitmap loadPhoto(long masterKeyId, boolean highRes);
+    }
+
+    public interface PhotoCallback {
+        /** Called on the main thread, photo is null if there is none. */
+        void onPhotoLoaded(long masterKeyId, boolean highRes, Bitmap photo);
+    }
+
+    // use an eighth of the available heap at most
+    private static final int MAX_SIZE_BYTES = (int) Math.min(Integer.MAX_VALUE,
+            Runtime.getRuntime().maxMemory() / 8);
+    private static final int LOADER_THREADS = 2;
+
+    // placeholder for keys known not to have a photo
+    private static final Bitmap NO_PHOTO = Bitmap.createBitmap(1, 1, Bitmap.Config.ALPHA_8);
+
+    private final LruCache<String, Bitmap> mCache;
+    // callbacks waiting for photos which are currently being loaded
+    private final HashMap<String, ArrayList<PhotoCallback>> mPendingLoads = new HashMap<>();
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(LOADER_THREADS);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public ContactPhotoCache() {
+        this(MAX_SIZE_BYTES);
+    }
+
+    public ContactPhotoCache(int maxSizeBytes) {
+        mCache = new LruCache<String, Bitmap>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    private static String cacheKey(long masterKeyId, boolean highRes) {
+        return (highRes ? "h" : "l") + masterKeyId;
+    }
+
+    /**
+     * Loads a photo in the background, and passes it to callback on the main thread. If the
+     * photo is cached, callback is called immediately. Concurrent requests for the same photo
+     * are combined into a single load.
+     */
+    public void getAsync(final long masterKeyId, final boolean highRes, final PhotoLoader loader,
+                         PhotoCallback callback) {
+        final String key = cacheKey(masterKeyId, highRes);
+        Bitmap cached = mCache.get(key);
+        if (cached != null) {
+            callback.onPhotoLoaded(masterKeyId, highRes, cached == NO_PHOTO ? null : cached);
+            return;
+        }
+
+        synchronized (mPendingLoads) {
+            ArrayList<PhotoCallback> callbacks = mPendingLoads.get(key);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+            callbacks = new ArrayList<>();
+            callbacks.add(callback);
+            mPendingLoads.put(key, callbacks);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap photo = null;
+                try {
+                    photo = loader.loadPhoto(masterKeyId, highRes);
+                    mCache.put(key, photo != null ? photo : NO_PHOTO);
+                } finally {
+                    deliver(key, masterKeyId, highRes, photo);
+                }
+            }
+        });
+    }
+
+    private void deliver(final String key, final long masterKeyId, final boolean highRes,
+                         final Bitmap photo) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<PhotoCallback> callbacks;
+                synchronized (mPendingLoads) {
+                    callbacks = mPendingLoads.remove(key);
+                }
+                if (callbacks == null) {
+                    return;
+                }
+                for (PhotoCallback callback : callbacks) {
+                    callback.onPhotoLoaded(masterKeyId, highRes, photo);
+                }
+            }
+        });
+    }
+
+    /**
+     * Evicts entries according to a level passed to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // we are in the foreground, but the system is about to kill background processes
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Evicts the entries of keys without a photo, e.g. because a contact may have been linked to
+     * one of them since.
+     */
+    public void evictMissing() {
+        for (Map.Entry<String, Bitmap> entry : mCache.snapshot().entrySet()) {
+            if (entry.getValue() == NO_PHOTO) {
+                mCache.remove(entry.getKey());
+            }
+        }
+    }
+
+    public int getSizeBytes() {
+        return mCache.size();
+    }
+
+    public int getMaxSizeBytes() {
+        return mCache.maxSize();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "ContactPhotoCache{size=" + getSizeBytes() + "/" + getMaxSizeBytes()
+                + " bytes, hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "}";
+    }
+
+}
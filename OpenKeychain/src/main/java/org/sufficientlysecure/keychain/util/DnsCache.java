@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import org.sufficientlysecure.keychain.Constants;
+
+import de.measite.minidns.Client;
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+
+
+/**
+ * In-process cache for DNS queries, used for keyserver SRV lookups and DNS linked identities.
+ * <p/>
+ * Answers are kept for the smallest TTL of their records, empty answers (including NXDOMAIN)
+ * for a fixed negative TTL. Failed queries, including server errors like SERVFAIL or REFUSED,
+ * are not cached. Concurrent queries for the same
+ * question wait for a single lookup instead of each querying the network.
+ */
+public class DnsCache {
+
+    private static final int CACHE_SIZE = 64;
+    private static final long MAX_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+    static final long NEGATIVE_TTL_MILLIS = 5 * 60 * 1000L;
+
+    interface Lookup {
+        /** Returns the answers to the question, or throws if there was no usable response. */
+        Record[] lookup(Question question) throws IOException;
+    }
+
+    private static DnsCache sInstance = new DnsCache(new ClientLookup(null, 0));
+
+    private final Lookup mLookup;
+    private final LruCache<String, Entry> mEntries = new LruCache<>(CACHE_SIZE);
+    // lookups in progress, guarded by this
+    private final HashMap<String, Pending> mPending = new HashMap<>();
+
+    DnsCache(Lookup lookup) {
+        mLookup = lookup;
+    }
+
+    public static synchronized DnsCache getInstance() {
+        return sInstance;
+    }
+
+    /** Replaces the instance returned by {@link #getInstance()}, e.g. by one for a test server. */
+    static synchronized void setInstance(DnsCache instance) {
+        sInstance = instance;
+    }
+
+    /** Creates a cache which sends all queries to the given server. */
+    static DnsCache forServer(String host, int port) {
+        return new DnsCache(new ClientLookup(host, port));
+    }
+
+    /**
+     * Returns the answers to the question, from the cache if possible. The returned array
+     * belongs to the caller, and may be empty.
+     */
+    public Record[] query(Question question) throws IOException {
+        String key = question.getName().toLowerCase(Locale.ENGLISH)
+                + " " + question.getType() + " " + question.getClazz();
+
+        Pending pending;
+        boolean isOwner = false;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                if (entry.mExpires > SystemClock.elapsedRealtime()) {
+                    return entry.mAnswers.clone();
+                }
+                mEntries.remove(key);
+            }
+            pending = mPending.get(key);
+            if (pending == null) {
+                pending = new Pending();
+                mPending.put(key, pending);
+                isOwner = true;
+            }
+        }
+
+        if (!isOwner) {
+            try {
+                pending.mDone.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for dns query");
+            }
+            if (pending.mError != null) {
+                throw new IOException("dns query failed", pending.mError);
+            }
+            return pending.mAnswers.clone();
+        }
+
+        try {
+            Record[] answers = mLookup.lookup(question);
+            long ttl = getTtlMillis(answers);
+            synchronized (this) {
+                if (ttl > 0) {
+                    mEntries.put(key, new Entry(answers, SystemClock.elapsedRealtime() + ttl));
+                }
+                mPending.remove(key);
+            }
+            pending.mAnswers = answers;
+            return answers.clone();
+        } catch (IOException | RuntimeException e) {
+            Log.d(Constants.TAG, "dns query for " + key + " failed", e);
+            synchronized (this) {
+                mPending.remove(key);
+            }
+            pending.mError = e;
+            throw e;
+        } finally {
+            pending.mDone.countDown();
+        }
+    }
+
+    /**
+     * Returns the answers of a response, or throws if the server could not answer the question,
+     * e.g. with SERVFAIL or REFUSED. Only NXDOMAIN is a definite answer among the errors.
+     */
+    static Record[] getAnswers(Question question, DNSMessage.RESPONSE_CODE responseCode,
+            Record[] answers) throws IOException {
+        if (responseCode == DNSMessage.RESPONSE_CODE.NX_DOMAIN) {
+            return new Record[0];
+        }
+        if (responseCode != DNSMessage.RESPONSE_CODE.NO_ERROR) {
+            throw new IOException("dns query for " + question.getName() + " failed: " + responseCode);
+        }
+        return answers != null ? answers : new Record[0];
+    }
+
+    private static long getTtlMillis(Record[] answers) {
+        if (answers.length == 0) {
+            return NEGATIVE_TTL_MILLIS;
+        }
+        long ttl = MAX_TTL_MILLIS;
+        for (Record answer : answers) {
+            ttl = Math.min(ttl, answer.getTtl() * 1000);
+        }
+        return ttl;
+    }
+
+    /** Looks questions up with minidns, at the given server or, if host is null, the system's. */
+    private static class ClientLookup implements Lookup {
+        private final String mHost;
+        private final int mPort;
+
+        ClientLookup(String host, int port) {
+            mHost = host;
+            mPort = port;
+        }
+
+        @Override
+        public Record[] lookup(Question question) throws IOException {
+            DNSMessage message = mHost == null
+                    ? new Client().query(question)
+                    : new Client().query(question, mHost, mPort);
+            if (message == null) {
+                throw new IOException("no dns response for " + question.getName());
+            }
+            return getAnswers(question, message.getResponseCode(), message.getAnswers());
+        }
+    }
+
+    private static class Entry {
+        final Record[] mAnswers;
+        final long mExpires;
+
+        Entry(Record[] answers, long expires) {
+            mAnswers = answers;
+            mExpires = expires;
+        }
+    }
+
+    private static class Pending {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        Record[] mAnswers;
+        Exception mError;
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.UnsupportedEncodingException;
+import java.net.Proxy;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.Keyserver;
+
+
+/**
+ * Discovers keys for a number of email addresses, e.g. all of the user's contacts.
+ * <p/>
+ * Lookups run with bounded concurrency, each distinct address is looked up once. Addresses for
+ * which no key was found are remembered for a while, so they are skipped by later discoveries.
+ * Only keyed hashes of the addresses are stored for this, with a random key per install.
+ * Results are passed to a {@link Listener} as they arrive, and each key is reported only once.
+ * <p/>
+ * Note that the only user so far, {@link EmailKeyHelper.ImportContactKeysCallback}, still
+ * collects all results before importing them, and is not used by the UI yet.
+ */
+public class EmailKeyDiscovery {
+
+    public interface Listener {
+        /** Called on a worker thread for each address which has keys not reported before. */
+        void onKeysFound(String mail, List<ImportKeysListEntry> keys);
+    }
+
+    private static final String PREFS_NAME = "email_key_discovery";
+    // the key for hashing addresses is kept with the hashes, so clearing the cache replaces it
+    private static final String PREF_HASH_KEY = "hash_key";
+    private static final int HASH_KEY_LENGTH = 32;
+    private static final long NEGATIVE_CACHE_TTL_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+    private static final int MAX_CONCURRENT_LOOKUPS = 4;
+
+    private final Proxy mProxy;
+    private final String mDefaultServer;
+    private final SharedPreferences mNegativeCache;
+    private final Mac mMailHash;
+
+    // keyservers from SRV records by domain, null if the domain has none
+    private final HashMap<String, HkpKeyserver> mDomainKeyservers = new HashMap<>();
+    private final Set<String> mReportedFingerprints = new HashSet<>();
+    // addresses without keys found in this discovery, by hash
+    private final ConcurrentHashMap<String, Long> mNewNegatives = new ConcurrentHashMap<>();
+
+    public EmailKeyDiscovery(Context context, Proxy proxy) {
+        mProxy = proxy;
+        mDefaultServer = Preferences.getPreferences(context).getPreferredKeyserver();
+        mNegativeCache = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mMailHash = createMailHash(mNegativeCache);
+    }
+
+    /**
+     * Looks up keys for all given addresses, and blocks until all lookups are done.
+     */
+    public void discover(Collection<String> mails, final Listener listener)
+            throws InterruptedException {
+
+        long now = System.currentTimeMillis();
+
+        Set<String> lookupMails = new LinkedHashSet<>();
+        int cached = 0;
+        for (String mail : mails) {
+            String normalized = mail.trim().toLowerCase(Locale.ENGLISH);
+            if (normalized.isEmpty() || lookupMails.contains(normalized)) {
+                continue;
+            }
+            long noKeysSince = mNegativeCache.getLong(hashMail(normalized), 0);
+            if (now - noKeysSince < NEGATIVE_CACHE_TTL_MILLIS) {
+                cached += 1;
+                continue;
+            }
+            lookupMails.add(normalized);
+        }
+
+        Log.d(Constants.TAG, "discovering keys for " + lookupMails.size() + " addresses, "
+                + cached + " known to have no keys");
+        if (lookupMails.isEmpty()) {
+            return;
+        }
+
+        ArrayList<Callable<Void>> lookups = new ArrayList<>(lookupMails.size());
+        for (final String mail : lookupMails) {
+            lookups.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    lookup(mail, listener);
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_CONCURRENT_LOOKUPS, lookups.size()));
+        try {
+            executor.invokeAll(lookups);
+        } finally {
+            executor.shutdownNow();
+            saveNegatives();
+        }
+
+    }
+
+    private void lookup(String mail, Listener listener) {
+        ArrayList<ImportKeysListEntry> keys = new ArrayList<>();
+        // only addresses with a definite answer are cached: the last server asked must have
+        // answered, not failed, and there must have been a server to ask at all
+        boolean answered = false;
+
+        // Try _hkp._tcp SRV record first
+        String[] mailparts = mail.split("@");
+        if (mailparts.length == 2) {
+            HkpKeyserver hkp = getDomainKeyserver(mailparts[1]);
+            if (hkp != null) {
+                try {
+                    keys.addAll(EmailKeyHelper.searchEmailKeys(mail, hkp));
+                    answered = true;
+                } catch (Keyserver.CloudSearchFailureException e) {
+                    answered = false;
+                }
+            }
+        }
+
+        if (keys.isEmpty() && mDefaultServer != null) {
+            // Most users don't have the SRV record, so ask a default server as well
+            try {
+                keys.addAll(EmailKeyHelper.searchEmailKeys(mail, new HkpKeyserver(mDefaultServer, mProxy)));
+                answered = true;
+            } catch (Keyserver.CloudSearchFailureException e) {
+                answered = false;
+            }
+        }
+
+        if (keys.isEmpty()) {
+            if (answered) {
+                mNewNegatives.put(hashMail(mail), System.currentTimeMillis());
+            }
+            return;
+        }
+
+        ArrayList<ImportKeysListEntry> newKeys = new ArrayList<>(keys.size());
+        synchronized (mReportedFingerprints) {
+            for (ImportKeysListEntry key : keys) {
+                if (mReportedFingerprints.add(key.getFingerprintHex())) {
+                    newKeys.add(key);
+                }
+            }
+        }
+        if (!newKeys.isEmpty()) {
+            listener.onKeysFound(mail, newKeys);
+        }
+    }
+
+    private HkpKeyserver getDomainKeyserver(String domain) {
+        synchronized (mDomainKeyservers) {
+            if (mDomainKeyservers.containsKey(domain)) {
+                return mDomainKeyservers.get(domain);
+            }
+        }
+        // resolve outside the lock, at worst a domain is resolved twice
+        HkpKeyserver hkp = HkpKeyserver.resolve(domain, mProxy);
+        synchronized (mDomainKeyservers) {
+            mDomainKeyservers.put(domain, hkp);
+        }
+        return hkp;
+    }
+
+    private void saveNegatives() {
+        if (mNewNegatives.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = mNegativeCache.edit();
+        // drop expired entries while we are at it
+        for (Map.Entry<String, ?> entry : mNegativeCache.getAll().entrySet()) {
+            if (entry.getValue() instanceof Long
+                    && now - (Long) entry.getValue() >= NEGATIVE_CACHE_TTL_MILLIS) {
+                editor.remove(entry.getKey());
+            }
+        }
+        for (Map.Entry<String, Long> entry : mNewNegatives.entrySet()) {
+            editor.putLong(entry.getKey(), entry.getValue());
+        }
+        editor.apply();
+    }
+
+    /** Forgets all addresses known to have no keys. */
+    public static void clearNegativeCache(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private String hashMail(String mail) {
+        try {
+            byte[] mailBytes = mail.getBytes("UTF-8");
+            // Mac instances are not thread safe
+            synchronized (mMailHash) {
+                return Hex.toHexString(mMailHash.doFinal(mailBytes));
+            }
+        } catch (UnsupportedEncodingException e) {
+            // guaranteed to be available
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Mac createMailHash(SharedPreferences prefs) {
+        byte[] key;
+        synchronized (EmailKeyDiscovery.class) {
+            String storedKey = prefs.getString(PREF_HASH_KEY, null);
+            if (storedKey != null) {
+                key = Hex.decode(storedKey);
+            } else {
+                key = new byte[HASH_KEY_LENGTH];
+                new SecureRandom().nextBytes(key);
+                prefs.edit().putString(PREF_HASH_KEY, Hex.toHexString(key)).commit();
+            }
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            // guaranteed to be available
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -35,8 +35,13 @@ import java.util.Locale;
 import java.util.Set;
 
 public class EmailKeyHelper {
+
+    private static final int MAX_KEYS_PER_EMAIL = 100;
+
     // TODO: Make this not require a proxy in it's constructor, redesign when it is to be used
     // to import keys, simply use CryptoOperationHelper with this callback
+    // NOTE: the constructor blocks until all addresses are looked up, keys found early are not
+    // shown or imported before that
     public abstract class ImportContactKeysCallback
             implements CryptoOperationHelper.Callback<ImportKeyringParcel, ImportKeyResult> {
 
@@ -49,16 +54,24 @@ public class EmailKeyHelper {
 
         public ImportContactKeysCallback(Context context, List<String> mails, String keyserver,
                                          Proxy proxy) {
-            Set<ImportKeysListEntry> entries = new HashSet<>();
-            for (String mail : mails) {
-                entries.addAll(getEmailKeys(context, mail, proxy));
+            final ArrayList<ParcelableKeyRing> keys = new ArrayList<>();
+            try {
+                // keys arrive as lookups finish, the discovery reports each key only once
+                new EmailKeyDiscovery(context, proxy).discover(mails, new EmailKeyDiscovery.Listener() {
+                    @Override
+                    public void onKeysFound(String mail, List<ImportKeysListEntry> found) {
+                        synchronized (keys) {
+                            for (ImportKeysListEntry entry : found) {
+                                keys.add(new ParcelableKeyRing(entry.getFingerprintHex(), entry.getKeyIdHex()));
+                            }
+                        }
+                    }
+                });
+            } catch (InterruptedException e) {
+                // import what we found so far
+                Thread.currentThread().interrupt();
             }
 
-            // Put them in a list and import
-            ArrayList<ParcelableKeyRing> keys = new ArrayList<>(entries.size());
-            for (ImportKeysListEntry entry : entries) {
-                keys.add(new ParcelableKeyRing(entry.getFingerprintHex(), entry.getKeyIdHex()));
-            }
             mKeyList = keys;
             mKeyserver = keyserver;
         }
@@ -92,17 +105,26 @@ public class EmailKeyHelper {
     }
 
     public static List<ImportKeysListEntry> getEmailKeys(String mail, Keyserver keyServer) {
-        Set<ImportKeysListEntry> keys = new HashSet<>();
         try {
-            for (ImportKeysListEntry key : keyServer.search(mail)) {
-                if (key.isRevoked() || key.isExpired()) continue;
-                for (String userId : key.getUserIds()) {
-                    if (userId.toLowerCase().contains(mail.toLowerCase(Locale.ENGLISH))) {
-                        keys.add(key);
-                    }
+            return searchEmailKeys(mail, keyServer);
+        } catch (Keyserver.CloudSearchFailureException ignored) {
+            return new ArrayList<>();
+        }
+    }
+
+    static List<ImportKeysListEntry> searchEmailKeys(String mail, Keyserver keyServer)
+            throws Keyserver.CloudSearchFailureException {
+        String lowerMail = mail.toLowerCase(Locale.ENGLISH);
+        Set<ImportKeysListEntry> keys = new HashSet<>();
+        // an address with more keys than this is not worth looking at
+        for (ImportKeysListEntry key : keyServer.search(mail, MAX_KEYS_PER_EMAIL)) {
+            if (key.isRevoked() || key.isExpired()) continue;
+            for (String userId : key.getUserIds()) {
+                if (userId.toLowerCase(Locale.ENGLISH).contains(lowerMail)) {
+                    keys.add(key);
+                    break;
                 }
             }
-        } catch (Keyserver.CloudSearchFailureException ignored) {
         }
         return new ArrayList<>(keys);
     }
@@ -18,19 +18,28 @@
 package org.sufficientlysecure.keychain.util;
 
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.List;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import android.annotation.TargetApi;
 import android.content.ActivityNotFoundException;
 import android.content.ContentResolver;
@@ -45,13 +54,17 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.DocumentsContract;
 import android.provider.OpenableColumns;
 import android.support.v4.app.Fragment;
+import android.support.v4.util.Pools;
 import android.widget.Toast;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.Progressable;
 
 /** This class offers a number of helper functions for saving documents.
  *
@@ -79,6 +92,13 @@ import org.sufficientlysecure.keychain.R;
  */
 public class FileHelper {
 
+    // large buffers for copying and overwriting, a few are kept for reuse
+    private static final int BUFFER_SIZE = 1 << 18;
+    private static final Pools.SynchronizedPool<byte[]> sBufferPool = new Pools.SynchronizedPool<>(2);
+    // bytes per transferTo call, so progress can be reported in between
+    private static final long TRANSFER_CHUNK_SIZE = 1 << 23;
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+
     private static Boolean hasOpenDocumentIntent;
 
     @TargetApi(VERSION_CODES.KITKAT)
@@ -264,25 +284,48 @@ public class FileHelper {
     }
 
     public static void copyUriData(Context context, Uri fromUri, Uri toUri) throws IOException {
-        BufferedInputStream bis = null;
-        BufferedOutputStream bos = null;
+        copyUriData(context, fromUri, toUri, null);
+    }
+
+    /**
+     * Copies data from one URI to another. If the source resolves to a regular file, the data
+     * is transferred between file channels, otherwise it is copied through a large buffer.
+     * Progress and throughput are reported to progressable, if it is not null.
+     */
+    public static void copyUriData(Context context, Uri fromUri, Uri toUri, Progressable progressable)
+            throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+
+        ParcelFileDescriptor inFd = openFileDescriptorOrNull(resolver, fromUri, "r");
+        InputStream in = null;
+        OutputStream out = null;
 
         try {
-            ContentResolver resolver = context.getContentResolver();
-            bis = new BufferedInputStream(resolver.openInputStream(fromUri));
-            bos = new BufferedOutputStream(resolver.openOutputStream(toUri));
-            byte[] buf = new byte[1024];
-            int len;
-            while ( (len = bis.read(buf)) > 0) {
-                bos.write(buf, 0, len);
+            if (inFd != null) {
+                in = new ParcelFileDescriptor.AutoCloseInputStream(inFd);
+            } else {
+                in = resolver.openInputStream(fromUri);
+            }
+            out = resolver.openOutputStream(toUri);
+            if (in == null || out == null) {
+                throw new IOException("Error opening file!");
+            }
+
+            long size = inFd != null ? inFd.getStatSize() : -1;
+            if (size >= 0 && in instanceof FileInputStream) {
+                transferChannels(((FileInputStream) in).getChannel(), out, size,
+                        new ThroughputReporter(progressable, size));
+            } else {
+                copyStreams(in, out,
+                        new ThroughputReporter(progressable, getFileSize(context, fromUri, -1)));
             }
         } finally {
             try {
-                if (bis != null) {
-                    bis.close();
+                if (in != null) {
+                    in.close();
                 }
-                if (bos != null) {
-                    bos.close();
+                if (out != null) {
+                    out.close();
                 }
             } catch (IOException e) {
                 // ignore, it's just stream closin'
@@ -290,35 +333,90 @@ public class FileHelper {
         }
     }
 
+    private static void transferChannels(FileChannel inChannel, OutputStream out, long size,
+                                         ThroughputReporter reporter) throws IOException {
+        WritableByteChannel outChannel = out instanceof FileOutputStream
+                ? ((FileOutputStream) out).getChannel()
+                : Channels.newChannel(out);
+
+        long position = 0;
+        while (position < size) {
+            long transferred = inChannel.transferTo(
+                    position, Math.min(TRANSFER_CHUNK_SIZE, size - position), outChannel);
+            if (transferred <= 0) {
+                // the file was truncated while copying
+                break;
+            }
+            position += transferred;
+            reporter.update(position);
+        }
+        reporter.finish(position);
+    }
+
+    private static void copyStreams(InputStream in, OutputStream out, ThroughputReporter reporter)
+            throws IOException {
+        byte[] buf = acquireBuffer();
+        try {
+            long copied = 0;
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+                copied += len;
+                reporter.update(copied);
+            }
+            reporter.finish(copied);
+        } finally {
+            releaseBuffer(buf);
+        }
+    }
+
+    public static int deleteFileSecurely(Context context, Uri uri)
+            throws IOException {
+        return deleteFileSecurely(context, uri, null);
+    }
+
     /**
      * Deletes data at a URI securely by overwriting it with random data
      * before deleting it. This method is fail-fast - if we can't securely
      * delete the file, we don't delete it at all.
      */
-    public static int deleteFileSecurely(Context context, Uri uri)
+    public static int deleteFileSecurely(Context context, Uri uri, Progressable progressable)
             throws IOException {
 
         ContentResolver resolver = context.getContentResolver();
-        long lengthLeft = FileHelper.getFileSize(context, uri);
+        long length = FileHelper.getFileSize(context, uri);
 
-        if (lengthLeft == -1) {
+        if (length == -1) {
             throw new IOException("Error opening file!");
         }
 
-        SecureRandom random = new SecureRandom();
-        byte[] randomData = new byte[1024];
-
         OutputStream out = resolver.openOutputStream(uri, "w");
         if (out == null) {
             throw new IOException("Error opening file!");
         }
-        out = new BufferedOutputStream(out);
-        while (lengthLeft > 0) {
-            random.nextBytes(randomData);
-            out.write(randomData, 0, lengthLeft > randomData.length ? randomData.length : (int) lengthLeft);
-            lengthLeft -= randomData.length;
+
+        OverwriteDataSource random = new OverwriteDataSource();
+        ThroughputReporter reporter = new ThroughputReporter(progressable, length);
+        byte[] randomData = acquireBuffer();
+        try {
+            long written = 0;
+            while (written < length) {
+                int len = (int) Math.min(randomData.length, length - written);
+                random.nextBytes(randomData, len);
+                out.write(randomData, 0, len);
+                written += len;
+                reporter.update(written);
+            }
+            out.flush();
+            if (out instanceof FileOutputStream) {
+                // make sure the random data reaches the storage before the file is deleted
+                ((FileOutputStream) out).getFD().sync();
+            }
+            reporter.finish(written);
+        } finally {
+            releaseBuffer(randomData);
+            out.close();
         }
-        out.close();
 
         if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
             return new File(uri.getPath()).delete() ? 1 : 0;
@@ -328,6 +426,108 @@ public class FileHelper {
 
     }
 
+    private static ParcelFileDescriptor openFileDescriptorOrNull(ContentResolver resolver, Uri uri,
+                                                                 String mode) {
+        try {
+            return resolver.openFileDescriptor(uri, mode);
+        } catch (FileNotFoundException | SecurityException | UnsupportedOperationException e) {
+            // not every provider supports file descriptors, streams are used instead
+            return null;
+        }
+    }
+
+    private static byte[] acquireBuffer() {
+        byte[] buf = sBufferPool.acquire();
+        return buf != null ? buf : new byte[BUFFER_SIZE];
+    }
+
+    private static void releaseBuffer(byte[] buf) {
+        sBufferPool.release(buf);
+    }
+
+    /**
+     * Random data for overwriting files. This is an AES-CTR keystream under a random key, which
+     * is much faster than drawing every byte from SecureRandom. If AES-CTR is not available for
+     * some reason, SecureRandom is used directly.
+     */
+    private static class OverwriteDataSource {
+
+        private final SecureRandom mRandom = new SecureRandom();
+        private Cipher mCipher;
+
+        OverwriteDataSource() {
+            byte[] key = new byte[16];
+            byte[] iv = new byte[16];
+            mRandom.nextBytes(key);
+            mRandom.nextBytes(iv);
+            try {
+                mCipher = Cipher.getInstance("AES/CTR/NoPadding");
+                mCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            } catch (GeneralSecurityException e) {
+                Log.e(Constants.TAG, "AES-CTR not available, overwriting with SecureRandom", e);
+                mCipher = null;
+            }
+        }
+
+        void nextBytes(byte[] buf, int len) {
+            if (mCipher != null) {
+                // encrypting zeros yields the plain keystream
+                Arrays.fill(buf, 0, len, (byte) 0);
+                try {
+                    mCipher.update(buf, 0, len, buf, 0);
+                    return;
+                } catch (GeneralSecurityException e) {
+                    Log.e(Constants.TAG, "AES-CTR failed, overwriting with SecureRandom", e);
+                    mCipher = null;
+                }
+            }
+            mRandom.nextBytes(buf);
+        }
+    }
+
+    /** Reports progress and throughput of a copy or overwrite, at most every few hundred ms. */
+    private static class ThroughputReporter {
+
+        private final Progressable mProgressable;
+        private final long mTotal;
+        private final long mStartTime = SystemClock.elapsedRealtime();
+        private long mLastReport = 0;
+
+        ThroughputReporter(Progressable progressable, long total) {
+            mProgressable = progressable;
+            mTotal = total;
+        }
+
+        void update(long done) {
+            long now = SystemClock.elapsedRealtime();
+            if (mProgressable == null || now - mLastReport < PROGRESS_INTERVAL_MILLIS) {
+                return;
+            }
+            mLastReport = now;
+            report(done, now);
+        }
+
+        void finish(long done) {
+            long now = SystemClock.elapsedRealtime();
+            Log.d(Constants.TAG, "processed " + done + " bytes in " + (now - mStartTime) + "ms, "
+                    + getRate(done, now));
+            if (mProgressable != null) {
+                report(done, now);
+            }
+        }
+
+        private void report(long done, long now) {
+            // progress in per mille, since byte counts may not fit an int
+            int progress = mTotal > 0 ? (int) (done * 1000 / Math.max(mTotal, done)) : 0;
+            mProgressable.setProgress(getRate(done, now), progress, 1000);
+        }
+
+        private String getRate(long done, long now) {
+            long bytesPerSecond = done * 1000 / Math.max(now - mStartTime, 1);
+            return readableFileSize(bytesPerSecond) + "/s";
+        }
+    }
+
     /** Checks if external storage is mounted if file is located on external storage. */
     public static boolean isStorageMounted(String file) {
         if (file.startsWith(Environment.getExternalStorageDirectory().getAbsolutePath())) {
@@ -18,19 +18,29 @@
 package org.sufficientlysecure.keychain.util;
 
 import android.os.Parcel;
+import android.os.SystemClock;
 
+import java.util.Iterator;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.sufficientlysecure.keychain.Constants;
+
 /**
  * If Parcelables are above 1 MB, Android OS fails to send them via the Binder IPC:
  * JavaBinder  E  !!! FAILED BINDER TRANSACTION !!!
  * To overcome this issue this class allows to cache Parcelables, mapped by unique UUIDs,
  * which are written to the parcel instead of the whole Parcelable.
+ * <p/>
+ * Parcelables which are not read back within {@value #MAX_AGE_MILLIS} ms are dropped, and
+ * handed to {@link #onExpired(Object)}, so parcels which were never delivered do not keep
+ * them around forever.
  */
 public class ParcelableCache<E> {
 
     private static final UUID NULL_UUID = new UUID(0, 0);
+    static final long MAX_AGE_MILLIS = 6 * 60 * 60 * 1000L;
 
     /**
      * A HashMap of UUID:Object
@@ -38,6 +48,7 @@ public class ParcelableCache<E> {
      * well below the 1 MB boundary that is specified.
      */
     private ConcurrentHashMap<UUID, E> objectCache = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<UUID, Long> cacheTimes = new ConcurrentHashMap<>();
 
     /**
      * Dehydrate a Parcelable (such that it is available after deparcelization)
@@ -50,7 +61,10 @@ public class ParcelableCache<E> {
         if (parcelable == null) {
             return NULL_UUID;
         } else {
+            long now = SystemClock.elapsedRealtime();
+            expireParcelables(now);
             UUID uuid = UUID.randomUUID();
+            cacheTimes.put(uuid, now);
             objectCache.put(uuid, parcelable);
             return uuid;
         }
@@ -69,12 +83,32 @@ public class ParcelableCache<E> {
         if (NULL_UUID.compareTo(uuid) == 0) {
             return null;
         } else {
-            E parcelable = objectCache.get(uuid);
-            objectCache.remove(uuid);
+            E parcelable = objectCache.remove(uuid);
+            cacheTimes.remove(uuid);
             return parcelable;
         }
     }
 
+    private void expireParcelables(long now) {
+        Iterator<Map.Entry<UUID, Long>> it = cacheTimes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<UUID, Long> entry = it.next();
+            if (now - entry.getValue() < MAX_AGE_MILLIS) {
+                continue;
+            }
+            it.remove();
+            E parcelable = objectCache.remove(entry.getKey());
+            if (parcelable != null) {
+                Log.d(Constants.TAG, "dropping parcelable which was never read back");
+                onExpired(parcelable);
+            }
+        }
+    }
+
+    /** Called for a parcelable which was dropped from the cache without being read back. */
+    protected void onExpired(E parcelable) {
+    }
+
     public E readFromParcelAndGetFromCache(Parcel source) {
         long mostSig = source.readLong();
         long leastSig = source.readLong();
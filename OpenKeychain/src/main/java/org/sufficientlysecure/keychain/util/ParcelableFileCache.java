@@ -23,6 +23,7 @@ import android.os.Parcelable;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -56,7 +57,25 @@ public class ParcelableFileCache<E extends Parcelable> {
         writeCache(it.getSize(), it);
     }
 
-    public void writeCache(int numEntries, Iterator<E> it) throws IOException {
+    public void writeCache(int numEntries, final Iterator<E> it) throws IOException {
+        writeCache(numEntries, new IteratorWithIOThrow<E>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return it.next();
+            }
+        });
+    }
+
+    /**
+     * Writes entries from an iterator which reads them from somewhere else. If it fails, the
+     * incomplete cache file is deleted and the exception is passed on.
+     */
+    public void writeCache(int numEntries, IteratorWithIOThrow<E> it) throws IOException {
 
         File cacheDir = mContext.getCacheDir();
         if (cacheDir == null) {
@@ -69,6 +88,7 @@ public class ParcelableFileCache<E extends Parcelable> {
 
         DataOutputStream oos = new DataOutputStream(new FileOutputStream(tempFile));
 
+        boolean success = false;
         try {
             oos.writeInt(numEntries);
 
@@ -80,8 +100,13 @@ public class ParcelableFileCache<E extends Parcelable> {
                 oos.write(buf);
                 p.recycle();
             }
+            success = true;
         } finally {
             oos.close();
+            if (!success) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
         }
 
     }
@@ -233,6 +233,12 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Constants.Pref.USE_TOR_PROXY, false);
     }
 
+    public void setUseTorProxy(boolean useTorProxy) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Constants.Pref.USE_TOR_PROXY, useTorProxy);
+        editor.commit();
+    }
+
     public String getProxyHost() {
         return mSharedPreferences.getString(Constants.Pref.PROXY_HOST, null);
     }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class HkpIndexParserTest {
+
+    private static final String INDEX = "info:1:3\n"
+            + "pub:0123456789ABCDEF0123456789ABCDEF01234567:1:2048:1400000000::\n"
+            + "uid:Alice <alice@example.com>:1400000000::\n"
+            + "uid:Universit%C3%A4t 100%% <alice@example.org>:1400000000::\n"
+            + "pub:FEDCBA9876543210:17:1024:1300000000::r\n"
+            + "uid:Bob <bob@example.com>:1300000000::\n"
+            + "pub:broken:1:2048:1400000000::\n"
+            + "uid:Mallory <mallory@example.com>:1400000000::\n"
+            + "pub:00112233445566778899AABBCCDDEEFF00112233:1:4096:1500000000::\n";
+
+    @Test
+    public void testParseIndex() throws Exception {
+        HkpIndexParser parser = new HkpIndexParser(
+                new BufferedReader(new StringReader(INDEX)), "example", "hkp://keys.example.com:11371");
+
+        ImportKeysListEntry alice = parser.next();
+        Assert.assertNotNull("first key must be parsed", alice);
+        Assert.assertEquals("fingerprint must be lower case",
+                "0123456789abcdef0123456789abcdef01234567", alice.getFingerprintHex());
+        Assert.assertEquals("key id must be taken from fingerprint", "0x89abcdef01234567", alice.getKeyIdHex());
+        Assert.assertEquals("first key must have two user ids", 2, alice.getUserIds().size());
+        Assert.assertEquals("primary user id must be the first one",
+                "Alice <alice@example.com>", alice.getPrimaryUserId());
+        Assert.assertEquals("user ids must be url decoded",
+                "Universität 100% <alice@example.org>", alice.getUserIds().get(1));
+        Assert.assertFalse("first key must not be revoked", alice.isRevoked());
+
+        ImportKeysListEntry bob = parser.next();
+        Assert.assertNotNull("second key must be parsed", bob);
+        Assert.assertNull("long key id only key must have no fingerprint", bob.getFingerprintHex());
+        Assert.assertEquals("key id must be parsed", "0xfedcba9876543210", bob.getKeyIdHex());
+        Assert.assertTrue("second key must be revoked", bob.isRevoked());
+
+        Assert.assertNull("keys with broken pub line or without user ids must be skipped", parser.next());
+        Assert.assertNull("parser must stay at end", parser.next());
+    }
+
+}
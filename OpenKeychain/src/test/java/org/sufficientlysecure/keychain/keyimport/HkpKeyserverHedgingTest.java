@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class HkpKeyserverHedgingTest {
+
+    private static final long SLOW_DELAY_MILLIS = 5000;
+
+    private StandInServer mSlowServer;
+    private StandInServer mFastServer;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        KeyserverHostStats.clear();
+        mSlowServer = new StandInServer("slow", SLOW_DELAY_MILLIS);
+        mFastServer = new StandInServer("fast", 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSlowServer.close();
+        mFastServer.close();
+    }
+
+    @Test
+    public void testHedgeToFasterMember() throws Exception {
+        HkpKeyserver pool = new HkpKeyserver(Arrays.asList(
+                mSlowServer.asKeyserver(), mFastServer.asKeyserver()), Proxy.NO_PROXY);
+
+        long start = System.currentTimeMillis();
+        String key = pool.get("0x1234567890abcdef");
+        long time = System.currentTimeMillis() - start;
+
+        Assert.assertTrue("answer must come from the fast member", key.contains("fast"));
+        Assert.assertTrue("hedged query must not wait for the slow member", time < SLOW_DELAY_MILLIS);
+        Assert.assertEquals("slow member must have been asked first", 1, mSlowServer.getRequestCount());
+        Assert.assertEquals("fast member must have been asked as backup", 1, mFastServer.getRequestCount());
+
+        // the fast member now has statistics, and is ranked first
+        key = pool.get("0x1234567890abcdef");
+        Assert.assertTrue("answer must come from the fast member", key.contains("fast"));
+        Assert.assertEquals("slow member must not be asked again", 1, mSlowServer.getRequestCount());
+        Assert.assertEquals("fast member must be asked first", 2, mFastServer.getRequestCount());
+    }
+
+    @Test
+    public void testFailedMemberFallsBackImmediately() throws Exception {
+        int unusedPort = mSlowServer.getPort();
+        mSlowServer.close();
+
+        HkpKeyserver pool = new HkpKeyserver(Arrays.asList(
+                new HkpKeyserver("127.0.0.1", unusedPort, Proxy.NO_PROXY),
+                mFastServer.asKeyserver()), Proxy.NO_PROXY);
+
+        String key = pool.get("0x1234567890abcdef");
+        Assert.assertTrue("answer must come from the working member", key.contains("fast"));
+    }
+
+    /** A minimal HKP server, which answers every request with a key block after a delay. */
+    private static class StandInServer implements Runnable {
+
+        private final ServerSocket mSocket;
+        private final String mName;
+        private final long mDelayMillis;
+        private final AtomicInteger mRequestCount = new AtomicInteger();
+
+        StandInServer(String name, long delayMillis) throws IOException {
+            mName = name;
+            mDelayMillis = delayMillis;
+            mSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        HkpKeyserver asKeyserver() {
+            return new HkpKeyserver("127.0.0.1", getPort(), Proxy.NO_PROXY);
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        int getRequestCount() {
+            return mRequestCount.get();
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket client = mSocket.accept();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            answer(client);
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void answer(Socket client) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    // skip request headers
+                }
+                mRequestCount.incrementAndGet();
+                Thread.sleep(mDelayMillis);
+
+                byte[] body = ("-----BEGIN PGP PUBLIC KEY BLOCK-----\n\n" + mName
+                        + "\n-----END PGP PUBLIC KEY BLOCK-----\n").getBytes("UTF-8");
+                OutputStream out = client.getOutputStream();
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "
+                        + body.length + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                out.write(body);
+                out.flush();
+            } catch (IOException | InterruptedException e) {
+                // the client went away, e.g. because another member answered first
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.linked;
+
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.content.Context;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.linked.LinkedIdVerifier.OnVerifiedListener;
+import org.sufficientlysecure.keychain.operations.results.LinkedVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class LinkedIdVerifierTest {
+
+    private static final byte[] FINGERPRINT = new byte[] {
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20
+    };
+    private static final byte[] OTHER_FINGERPRINT = new byte[] {
+            20, 19, 18, 17, 16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1
+    };
+
+    @Test
+    public void testVerifyCached() throws Exception {
+        StandInResource resource = new StandInResource("https://example.com/ok",
+                "proof: " + LinkedTokenResource.generate(FINGERPRINT));
+
+        LinkedVerifyResult result =
+                LinkedIdVerifier.verify(RuntimeEnvironment.application, FINGERPRINT, resource);
+        Assert.assertTrue("resource with token must verify", result.success());
+        Assert.assertEquals("resource must be fetched once", 1, resource.mFetchCount);
+
+        RecordingListener listener = new RecordingListener();
+        LinkedIdVerifier.verifyAll(RuntimeEnvironment.application, FINGERPRINT,
+                Collections.<LinkedTokenResource>singletonList(resource), listener);
+        listener.await(1);
+        Assert.assertEquals("cached result must be delivered",
+                Collections.singletonList(true), listener.mResults);
+        Assert.assertEquals("cached result must not be fetched again", 1, resource.mFetchCount);
+    }
+
+    @Test
+    public void testNoBackgroundFetchWithProxy() throws Exception {
+        StandInResource resource = new StandInResource("https://example.com/proxied",
+                "proof: " + LinkedTokenResource.generate(FINGERPRINT));
+        Preferences.getPreferences(RuntimeEnvironment.application).setUseTorProxy(true);
+
+        RecordingListener listener = new RecordingListener();
+        LinkedIdVerifier.verifyAll(RuntimeEnvironment.application, FINGERPRINT,
+                Collections.<LinkedTokenResource>singletonList(resource), listener);
+        listener.idle();
+        Assert.assertTrue("nothing must be delivered without cached result", listener.mResults.isEmpty());
+        Assert.assertEquals("resource must not be fetched without proxy", 0, resource.mFetchCount);
+
+        LinkedIdVerifier.verify(RuntimeEnvironment.application, FINGERPRINT, resource);
+        LinkedIdVerifier.verifyAll(RuntimeEnvironment.application, FINGERPRINT,
+                Collections.<LinkedTokenResource>singletonList(resource), listener);
+        listener.await(1);
+        Assert.assertEquals("cached result must still be delivered",
+                Collections.singletonList(true), listener.mResults);
+    }
+
+    @Test
+    public void testVerifyMismatch() throws Exception {
+        StandInResource resource = new StandInResource("https://example.com/other",
+                "proof: " + LinkedTokenResource.generate(OTHER_FINGERPRINT));
+
+        LinkedVerifyResult result =
+                LinkedIdVerifier.verify(RuntimeEnvironment.application, FINGERPRINT, resource);
+        Assert.assertFalse("resource with other fingerprint must not verify", result.success());
+        Assert.assertEquals("mismatch must be cached", Boolean.FALSE,
+                LinkedVerifyCache.getInstance(RuntimeEnvironment.application).get(FINGERPRINT, resource.toUri()));
+    }
+
+    @Test
+    public void testFetchErrorNotCached() throws Exception {
+        StandInResource resource = new StandInResource("https://example.com/unreachable", null);
+
+        LinkedVerifyResult result =
+                LinkedIdVerifier.verify(RuntimeEnvironment.application, FINGERPRINT, resource);
+        Assert.assertFalse("unreachable resource must not verify", result.success());
+        Assert.assertNull("fetch errors must not be cached",
+                LinkedVerifyCache.getInstance(RuntimeEnvironment.application).get(FINGERPRINT, resource.toUri()));
+    }
+
+    @Test
+    public void testCacheExpiry() throws Exception {
+        LinkedVerifyCache cache = LinkedVerifyCache.getInstance(RuntimeEnvironment.application);
+        URI uri = URI.create("openpgpid+token:generic@https://example.com/expiry");
+
+        cache.put(FINGERPRINT, uri, true, 1000);
+        Assert.assertEquals("result must be cached", Boolean.TRUE, cache.get(FINGERPRINT, uri, 2000));
+        Assert.assertNull("other fingerprint must not be cached", cache.get(OTHER_FINGERPRINT, uri, 2000));
+        Assert.assertNull("success must expire",
+                cache.get(FINGERPRINT, uri, 1001 + LinkedVerifyCache.TTL_SUCCESS_MILLIS));
+
+        cache.put(FINGERPRINT, uri, false, 1000);
+        Assert.assertNull("failure must expire earlier",
+                cache.get(FINGERPRINT, uri, 1001 + LinkedVerifyCache.TTL_FAILURE_MILLIS));
+    }
+
+    /** Records delivered results, running the main looper while waiting for them. */
+    private static class RecordingListener implements OnVerifiedListener {
+
+        final ArrayList<Boolean> mResults = new ArrayList<>();
+
+        @Override
+        public void onVerified(URI resourceUri, boolean success) {
+            mResults.add(success);
+        }
+
+        /** Waits until the given number of results arrived, or a second passed. */
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 1000;
+            while (mResults.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                ShadowLooper.runUiThreadTasks();
+            }
+        }
+
+        /** Runs the main looper for a while, when no result is expected. */
+        void idle() throws InterruptedException {
+            for (int i = 0; i < 20; i++) {
+                Thread.sleep(10);
+                ShadowLooper.runUiThreadTasks();
+            }
+        }
+
+    }
+
+    /** Stands in for a remote resource, returning a fixed response or failing if there is none. */
+    private static class StandInResource extends LinkedTokenResource {
+
+        private final String mResponse;
+        int mFetchCount = 0;
+
+        StandInResource(String uri, String response) {
+            super(new HashSet<>(Collections.singleton("generic")), new HashMap<String, String>(),
+                    URI.create(uri));
+            mResponse = response;
+        }
+
+        @Override
+        protected String fetchResource(Context context, OperationLog log, int indent) throws IOException {
+            mFetchCount += 1;
+            if (mResponse == null) {
+                throw new IOException("no response");
+            }
+            return mResponse;
+        }
+
+        @Override
+        public int getDisplayIcon() {
+            return 0;
+        }
+
+        @Override
+        public int getVerifiedText(boolean isSecret) {
+            return 0;
+        }
+
+        @Override
+        public String getDisplayTitle(Context context) {
+            return "stand-in";
+        }
+
+        @Override
+        public String getDisplayComment(Context context) {
+            return null;
+        }
+
+    }
+
+}
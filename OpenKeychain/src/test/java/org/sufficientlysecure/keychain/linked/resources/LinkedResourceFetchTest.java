@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.linked.resources;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.linked.LinkedIdVerifier;
+import org.sufficientlysecure.keychain.linked.LinkedIdVerifier.OnVerifiedListener;
+import org.sufficientlysecure.keychain.linked.LinkedTokenResource;
+import org.sufficientlysecure.keychain.linked.LinkedVerifyCache;
+import org.sufficientlysecure.keychain.operations.results.LinkedVerifyResult;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Preferences;
+import org.sufficientlysecure.keychain.util.StandInDnsServer;
+
+
+/**
+ * Verifies linked identities against stand-in responders on local sockets. The generic https
+ * resource is served over plain http here, since the fetch path is the same.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class LinkedResourceFetchTest {
+
+    private static final byte[] FINGERPRINT = new byte[] {
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20
+    };
+    private static final byte[] OTHER_FINGERPRINT = new byte[] {
+            20, 19, 18, 17, 16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1
+    };
+
+    private StandInHttpServer mHttpServer;
+    private StandInDnsServer mDnsServer;
+
+    @Before
+    public void setUp() throws Exception {
+        Preferences.getPreferences(RuntimeEnvironment.application).setUseTorProxy(false);
+
+        HashMap<String, String> responses = new HashMap<>();
+        responses.put("/proof", "proof: " + LinkedTokenResource.generate(FINGERPRINT));
+        responses.put("/other", "proof: " + LinkedTokenResource.generate(OTHER_FINGERPRINT));
+        responses.put("/again", "proof: " + LinkedTokenResource.generate(FINGERPRINT));
+        mHttpServer = new StandInHttpServer(responses);
+
+        mDnsServer = new StandInDnsServer("example.com", "openpgpid+token="
+                + KeyFormattingUtils.convertFingerprintToHex(FINGERPRINT) + ";1");
+        mDnsServer.install();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHttpServer.close();
+        mDnsServer.close();
+    }
+
+    @Test
+    public void testHttpFetch() throws Exception {
+        GenericHttpsResource resource = createHttpResource("/proof");
+
+        LinkedVerifyResult result =
+                LinkedIdVerifier.verify(RuntimeEnvironment.application, FINGERPRINT, resource);
+        Assert.assertTrue("served token must verify", result.success());
+        Assert.assertEquals("resource must be fetched from the server", 1, mHttpServer.getRequestCount());
+        Assert.assertEquals("result must be cached", Boolean.TRUE,
+                LinkedVerifyCache.getInstance(RuntimeEnvironment.application).get(FINGERPRINT, resource.toUri()));
+    }
+
+    @Test
+    public void testHttpErrorNotCached() throws Exception {
+        GenericHttpsResource resource = createHttpResource("/missing");
+
+        LinkedVerifyResult result =
+                LinkedIdVerifier.verify(RuntimeEnvironment.application, FINGERPRINT, resource);
+        Assert.assertFalse("missing resource must not verify", result.success());
+        Assert.assertNull("http errors must not be cached",
+                LinkedVerifyCache.getInstance(RuntimeEnvironment.application).get(FINGERPRINT, resource.toUri()));
+    }
+
+    @Test
+    public void testDnsFetch() throws Exception {
+        DnsResource resource = DnsResource.createNew("example.com");
+
+        LinkedVerifyResult result =
+                LinkedIdVerifier.verify(RuntimeEnvironment.application, FINGERPRINT, resource);
+        Assert.assertTrue("token in txt record must verify", result.success());
+
+        result = LinkedIdVerifier.verify(RuntimeEnvironment.application, FINGERPRINT, resource);
+        Assert.assertTrue("token in txt record must verify again", result.success());
+        Assert.assertEquals("dns answer must be cached", 1, mDnsServer.getQueryCount());
+
+        result = LinkedIdVerifier.verify(RuntimeEnvironment.application, FINGERPRINT,
+                DnsResource.createNew("unknown.example.com"));
+        Assert.assertFalse("name without txt record must not verify", result.success());
+    }
+
+    @Test
+    public void testVerifyAllConcurrently() throws Exception {
+        // the server holds back its answers until all http resources are requested
+        mHttpServer.awaitRequests(3);
+        GenericHttpsResource proof = createHttpResource("/proof");
+        GenericHttpsResource other = createHttpResource("/other");
+        GenericHttpsResource again = createHttpResource("/again");
+        DnsResource dns = DnsResource.createNew("example.com");
+
+        RecordingListener listener = new RecordingListener();
+        LinkedIdVerifier.verifyAll(RuntimeEnvironment.application, FINGERPRINT,
+                Arrays.<LinkedTokenResource>asList(proof, other, again, dns), listener);
+        listener.await(4);
+
+        Assert.assertTrue("http resources must be fetched concurrently", mHttpServer.isReleased());
+        Assert.assertEquals("all results must be delivered", 4, listener.mResults.size());
+        Assert.assertEquals("matching token must verify", Boolean.TRUE, listener.mResults.get(proof.toUri()));
+        Assert.assertEquals("other fingerprint must not verify", Boolean.FALSE,
+                listener.mResults.get(other.toUri()));
+        Assert.assertEquals("matching token must verify", Boolean.TRUE, listener.mResults.get(again.toUri()));
+        Assert.assertEquals("txt record must verify", Boolean.TRUE, listener.mResults.get(dns.toUri()));
+    }
+
+    private GenericHttpsResource createHttpResource(String path) {
+        return new GenericHttpsResource(new HashSet<>(Collections.singleton("generic")),
+                new HashMap<String, String>(),
+                URI.create("http://127.0.0.1:" + mHttpServer.getPort() + path));
+    }
+
+    /** Records delivered results by resource uri, running the main looper while waiting for them. */
+    private static class RecordingListener implements OnVerifiedListener {
+
+        final HashMap<URI, Boolean> mResults = new HashMap<>();
+
+        @Override
+        public void onVerified(URI resourceUri, boolean success) {
+            mResults.put(resourceUri, success);
+        }
+
+        /** Waits until the given number of results arrived, or five seconds passed. */
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (mResults.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                ShadowLooper.runUiThreadTasks();
+            }
+        }
+
+    }
+
+    /** A minimal HTTP server, which answers with a fixed body per path, or 404. */
+    private static class StandInHttpServer implements Runnable {
+
+        private final ServerSocket mSocket;
+        private final HashMap<String, String> mResponses;
+        private final AtomicInteger mRequestCount = new AtomicInteger();
+        private volatile CountDownLatch mRelease = new CountDownLatch(0);
+
+        StandInHttpServer(HashMap<String, String> responses) throws IOException {
+            mResponses = responses;
+            mSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        int getRequestCount() {
+            return mRequestCount.get();
+        }
+
+        /** Holds back answers until the given number of requests arrived, or five seconds passed. */
+        void awaitRequests(int count) {
+            mRelease = new CountDownLatch(count);
+        }
+
+        boolean isReleased() {
+            return mRelease.getCount() == 0;
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket client = mSocket.accept();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            answer(client);
+                        }
+                    }).start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void answer(Socket client) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                String requestLine = in.readLine();
+                String line;
+                while ((line = in.readLine()) != null && !line.isEmpty()) {
+                    // skip request headers
+                }
+                mRequestCount.incrementAndGet();
+                CountDownLatch release = mRelease;
+                release.countDown();
+                release.await(5, TimeUnit.SECONDS);
+
+                String path = requestLine != null ? requestLine.split(" ")[1] : "";
+                String body = mResponses.get(path);
+                String status = body != null ? "200 OK" : "404 Not Found";
+                byte[] bodyBytes = (body != null ? body : "").getBytes("UTF-8");
+
+                OutputStream out = client.getOutputStream();
+                out.write(("HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: "
+                        + bodyBytes.length + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                out.write(bodyBytes);
+                out.flush();
+            } catch (IOException | InterruptedException e) {
+                // the client went away
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+}
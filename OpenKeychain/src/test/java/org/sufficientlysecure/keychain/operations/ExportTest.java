@@ -20,8 +20,6 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.Iterator;
@@ -72,6 +70,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -239,6 +238,37 @@ public class ExportTest {
 
     }
 
+    @Test
+    public void testExportBinaryResume() throws Exception {
+        BackupOperation op = new BackupOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        long masterKeyId1 = Math.min(mStaticRing1.getMasterKeyId(), mStaticRing2.getMasterKeyId());
+        long masterKeyId2 = Math.max(mStaticRing1.getMasterKeyId(), mStaticRing2.getMasterKeyId());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean result = op.exportKeysToStream(new OperationLog(), null, false, false, null, out);
+
+        assertTrue("export must be a success", result);
+        assertEquals("last exported key must be the one with the greatest master key id",
+                (Long) masterKeyId2, op.getLastExportedMasterKeyId());
+        assertFalse("binary export must not be armored",
+                new String(out.toByteArray()).startsWith("-----BEGIN"));
+
+        out = new ByteArrayOutputStream();
+        result = op.exportKeysToStream(new OperationLog(), null, false, false, masterKeyId1, out);
+
+        assertTrue("resumed export must be a success", result);
+
+        IteratorWithIOThrow<UncachedKeyRing> unc =
+                UncachedKeyRing.fromStream(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue("resumed export must have one key", unc.hasNext());
+        Assert.assertEquals("resumed export must continue after checkpoint",
+                masterKeyId2, unc.next().getMasterKeyId());
+        assertFalse("resumed export must have exactly one key", unc.hasNext());
+
+    }
+
     @Test
     public void testExportUnencrypted() throws Exception {
 
@@ -288,17 +318,9 @@ public class ExportTest {
         Application spyApplication;
         ContentResolver mockResolver = mock(ContentResolver.class);
 
-        Uri fakePipedUri, fakeOutputUri;
+        Uri fakeOutputUri;
         ByteArrayOutputStream outStream; {
 
-            fakePipedUri = Uri.parse("content://fake/pipe/1");
-            PipedInputStream pipedInStream = new PipedInputStream(8192);
-            PipedOutputStream pipedOutStream = new PipedOutputStream(pipedInStream);
-            when(mockResolver.openOutputStream(fakePipedUri)).thenReturn(pipedOutStream);
-            when(mockResolver.openInputStream(fakePipedUri)).thenReturn(pipedInStream);
-            when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
-                    .thenReturn(fakePipedUri);
-
             fakeOutputUri = Uri.parse("content://fake/out/1");
             outStream = new ByteArrayOutputStream();
             when(mockResolver.openOutputStream(fakeOutputUri)).thenReturn(outStream);
@@ -318,8 +340,7 @@ public class ExportTest {
 
             ExportResult result = op.execute(parcel, null);
 
-            verify(mockResolver).openOutputStream(fakePipedUri);
-            verify(mockResolver).openInputStream(fakePipedUri);
+            verify(mockResolver, never()).insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class));
             verify(mockResolver).openOutputStream(fakeOutputUri);
 
             assertTrue("export must succeed", result.success());
@@ -377,6 +398,36 @@ public class ExportTest {
 
     }
 
+    @Test
+    public void testExportEncryptedFailure() throws Exception {
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+
+        Uri fakeOutputUri = Uri.parse("content://fake/out/1");
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        when(mockResolver.openOutputStream(fakeOutputUri)).thenReturn(outStream);
+
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        BackupOperation op = new BackupOperation(spyApplication,
+                new ProviderHelper(RuntimeEnvironment.application), null);
+
+        // a key which is not in the database makes the export fail
+        BackupKeyringParcel parcel = new BackupKeyringParcel(new Passphrase("abcde"),
+                new long[] { 1234L }, false, fakeOutputUri);
+
+        ExportResult result = op.execute(parcel, null);
+
+        assertFalse("export must fail", result.success());
+        Assert.assertTrue("should contain database error log entry",
+                result.getLog().containsType(LogType.MSG_BACKUP_ERROR_DB));
+        Assert.assertTrue("should contain log entries of the encryption",
+                result.getLog().containsType(LogType.MSG_PSE));
+        verify(mockResolver).openOutputStream(fakeOutputUri, "wt");
+
+    }
+
 
     /** This function checks whether or not there are any local signatures in a keyring. */
     private boolean checkForLocal(UncachedKeyRing ring) {
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class SpilledLogEntriesTest {
+
+    private static final int ENTRY_COUNT = 2500;
+
+    @Test
+    public void testSpilledRoundTrip() throws Exception {
+        OperationLog log = new OperationLog();
+        log.enableSpilling();
+        OperationLog expected = new OperationLog();
+
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            if (i % 100 == 0) {
+                SingletonResult subResult = createSubResult(i);
+                log.add(subResult, 1);
+                expected.add(subResult, 1);
+                continue;
+            }
+            Object[] parameters = createParameters(i);
+            log.add(LogType.MSG_IP_APPLY_BATCH, i % 4, parameters);
+            expected.add(LogType.MSG_IP_APPLY_BATCH, i % 4, parameters);
+        }
+
+        Assert.assertEquals("all entries must be kept", ENTRY_COUNT, log.size());
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            assertEntryEquals("entry " + i, expected.get(i), log.get(i));
+        }
+
+        int i = 0;
+        for (LogEntryParcel entry : log) {
+            assertEntryEquals("iterated entry " + i, expected.get(i), entry);
+            i += 1;
+        }
+        Assert.assertEquals("iteration must cover all entries", ENTRY_COUNT, i);
+
+        log.clear();
+        Assert.assertTrue("cleared log must be empty", log.isEmpty());
+    }
+
+    @Test
+    public void testTicketsOfDeliveredLog() throws Exception {
+        OperationLog log = new OperationLog();
+        log.enableSpilling();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            log.add(LogType.MSG_IP_APPLY_BATCH, 1, i);
+        }
+        Assert.assertFalse("old entries must be spilled", log.isInMemory(0));
+        Assert.assertTrue("new entries must be in memory", log.isInMemory(ENTRY_COUNT - 1));
+
+        // parceled twice, only one of the parcels is read back
+        log.acquireTicket();
+        log.acquireTicket();
+        Assert.assertFalse("read back log must not be released", log.releaseTicket(true));
+        Assert.assertFalse("expired ticket of a read back log must not release it", log.releaseTicket(false));
+
+        Assert.assertEquals("read back log must keep its entries", ENTRY_COUNT, log.size());
+        Assert.assertEquals("read back log must keep its spilled entries", 0, log.get(0).mParameters[0]);
+        Assert.assertTrue("read entry must be cached", log.isInMemory(0));
+
+        OperationLog undelivered = new OperationLog();
+        undelivered.acquireTicket();
+        Assert.assertTrue("log which was never read back must be released", undelivered.releaseTicket(false));
+
+        log.clear();
+    }
+
+    private static SingletonResult createSubResult(int i) {
+        SingletonResult subResult = new SingletonResult(OperationResult.RESULT_OK, LogType.MSG_IP_DELETE_OLD_OK);
+        subResult.mLog.add(LogType.MSG_IP_ENCODE_FAIL, 1, "sub entry " + i);
+        SingletonResult nestedResult = new SingletonResult(OperationResult.RESULT_ERROR, LogType.MSG_IP_ERROR_IO_EXC);
+        subResult.mLog.add(nestedResult, 2);
+        return subResult;
+    }
+
+    private static Object[] createParameters(int i) {
+        switch (i % 5) {
+            case 0:
+                return null;
+            case 1:
+                return new Object[] { i };
+            case 2:
+                return new Object[] { (long) i << 32, null };
+            case 3:
+                // repeated strings are interned
+                return new Object[] { "user " + (i % 7), "key " + i };
+            default:
+                return new Object[] { new int[] { i, -i } };
+        }
+    }
+
+    private static void assertEntryEquals(String message, LogEntryParcel expected, LogEntryParcel actual) {
+        Assert.assertEquals(message + " type", expected.mType, actual.mType);
+        Assert.assertEquals(message + " indent", expected.mIndent, actual.mIndent);
+        Assert.assertEquals(message + " null parameters", expected.mParameters == null,
+                actual.mParameters == null);
+        if (expected.mParameters != null) {
+            Assert.assertTrue(message + " parameters", Arrays.deepEquals(expected.mParameters, actual.mParameters));
+        }
+
+        Assert.assertEquals(message + " kind", expected instanceof SubLogEntryParcel,
+                actual instanceof SubLogEntryParcel);
+        if (expected instanceof SubLogEntryParcel) {
+            OperationResult expectedResult = ((SubLogEntryParcel) expected).getSubResult();
+            OperationResult actualResult = ((SubLogEntryParcel) actual).getSubResult();
+            Assert.assertEquals(message + " sub result class", expectedResult.getClass(), actualResult.getClass());
+            Assert.assertEquals(message + " sub result", expectedResult.getResult(), actualResult.getResult());
+
+            OperationLog expectedLog = expectedResult.getLog();
+            OperationLog actualLog = actualResult.getLog();
+            Assert.assertEquals(message + " sub log size", expectedLog.size(), actualLog.size());
+            for (int i = 0; i < expectedLog.size(); i++) {
+                assertEntryEquals(message + "." + i, expectedLog.get(i), actualLog.get(i));
+            }
+        }
+    }
+
+}
@@ -334,6 +334,11 @@ public class PgpEncryptDecryptTest {
                     OpenPgpDecryptionResult.RESULT_NOT_ENCRYPTED, result.getDecryptionResult().getResult());
             Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
                     OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+            Assert.assertEquals("there should be a result for the single signer",
+                    1, result.getSignatureResults().size());
+            Assert.assertEquals("result of the single signer should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED,
+                    result.getSignatureResults().get(0).getResult());
 
             OpenPgpMetadata metadata = result.getDecryptionMetadata();
             Assert.assertEquals("filesize must be correct",
@@ -403,6 +408,79 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricSignCleartextLarge() {
+
+        // larger than any single buffer, lines end in whitespace which is not hashed
+        StringBuilder plaintextBuilder = new StringBuilder();
+        for (int i = 0; plaintextBuilder.length() < 2 << 20; i++) {
+            plaintextBuilder.append("line ").append(i).append(" of a large cleartext ☭ \t\n");
+        }
+        String plaintext = plaintextBuilder.toString();
+        String ciphertext;
+
+        { // sign data with key, as cleartext
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+
+            input.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            input.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            input.setCleartextSignature(true);
+            input.setEnableAsciiArmorOutput(true);
+            input.setDetachedSignature(false);
+
+            PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(mKeyPhrase1), data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+
+            ciphertext = new String(out.toByteArray());
+        }
+
+        Assert.assertTrue("clearsigned text must have a hash header",
+                ciphertext.contains("\nHash: "));
+
+        {
+            DecryptVerifyResult result = verifyCleartext(ciphertext);
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+        { // without the hash header, the text is hashed with all algorithms
+            DecryptVerifyResult result = verifyCleartext(ciphertext.replaceFirst("Hash: [^\r\n]*\r?\n", ""));
+            Assert.assertEquals("signatureResult without hash header should be RESULT_VALID_CONFIRMED",
+                    OpenPgpSignatureResult.RESULT_VALID_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+        { // a hash header naming another algorithm must not verify
+            DecryptVerifyResult result = verifyCleartext(ciphertext.replaceFirst("Hash: [^\r\n]*", "Hash: RIPEMD160"));
+            Assert.assertEquals("signatureResult with wrong hash header should be RESULT_INVALID_SIGNATURE",
+                    OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE, result.getSignatureResult().getResult());
+        }
+
+        { // neither must altered text near the end
+            DecryptVerifyResult result = verifyCleartext(ciphertext.replace("line 40000 ", "line 40001 "));
+            Assert.assertEquals("signatureResult of altered text should be RESULT_INVALID_SIGNATURE",
+                    OpenPgpSignatureResult.RESULT_INVALID_SIGNATURE, result.getSignatureResult().getResult());
+        }
+
+    }
+
+    private DecryptVerifyResult verifyCleartext(String ciphertext) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(ciphertext.getBytes());
+        InputData data = new InputData(in, in.available());
+
+        PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+        PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+        return op.execute(input, new CryptoInputParcel(), data, out);
+    }
+
     @Test
     public void testAsymmetricSignDetached() {
 
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class SharedDigestVerifierBuilderProviderTest {
+
+    private static final byte[] DATA = "some signed data, which is hashed only once\n".getBytes();
+
+    static PGPKeyPair rsaKey, dsaKey, ecdsaKey;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        KeyPairGenerator rsaGenerator =
+                KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        rsaGenerator.initialize(1024);
+        rsaKey = new JcaPGPKeyPair(PublicKeyAlgorithmTags.RSA_GENERAL,
+                rsaGenerator.generateKeyPair(), new Date());
+
+        KeyPairGenerator dsaGenerator =
+                KeyPairGenerator.getInstance("DSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        dsaGenerator.initialize(1024);
+        dsaKey = new JcaPGPKeyPair(PublicKeyAlgorithmTags.DSA,
+                dsaGenerator.generateKeyPair(), new Date());
+
+        KeyPairGenerator ecGenerator =
+                KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        ecGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        ecdsaKey = new JcaPGPKeyPair(PublicKeyAlgorithmTags.ECDSA,
+                ecGenerator.generateKeyPair(), new Date());
+    }
+
+    @Test
+    public void testSignersSharingHashAlgorithm() throws Exception {
+        PGPKeyPair[] keys = new PGPKeyPair[] { rsaKey, dsaKey, ecdsaKey };
+        PGPSignature[] signatures = new PGPSignature[keys.length];
+
+        SharedDigestVerifierBuilderProvider shared =
+                new SharedDigestVerifierBuilderProvider(HashAlgorithmTags.SHA256);
+        for (int i = 0; i < keys.length; i++) {
+            signatures[i] = sign(keys[i], HashAlgorithmTags.SHA256, DATA);
+            signatures[i].init(shared, keys[i].getPublicKey());
+        }
+        shared.update(DATA, 0, DATA.length);
+
+        for (int i = 0; i < keys.length; i++) {
+            Assert.assertTrue("signature " + i + " must verify with shared digest",
+                    signatures[i].verify());
+        }
+    }
+
+    @Test
+    public void testSignersWithDifferentHashAlgorithms() throws Exception {
+        int[] hashAlgorithms = new int[] {
+                HashAlgorithmTags.SHA1, HashAlgorithmTags.RIPEMD160, HashAlgorithmTags.SHA224,
+                HashAlgorithmTags.SHA256, HashAlgorithmTags.SHA384, HashAlgorithmTags.SHA512
+        };
+
+        for (int hashAlgorithm : hashAlgorithms) {
+            SharedDigestVerifierBuilderProvider shared =
+                    new SharedDigestVerifierBuilderProvider(hashAlgorithm);
+            PGPSignature rsaSignature = sign(rsaKey, hashAlgorithm, DATA);
+            PGPSignature ecdsaSignature = sign(ecdsaKey, hashAlgorithm, DATA);
+            rsaSignature.init(shared, rsaKey.getPublicKey());
+            ecdsaSignature.init(shared, ecdsaKey.getPublicKey());
+            shared.update(DATA, 0, DATA.length);
+
+            Assert.assertTrue("rsa signature with hash " + hashAlgorithm + " must verify",
+                    rsaSignature.verify());
+            Assert.assertTrue("ecdsa signature with hash " + hashAlgorithm + " must verify",
+                    ecdsaSignature.verify());
+        }
+
+        SharedDigestVerifierBuilderProvider shared =
+                new SharedDigestVerifierBuilderProvider(HashAlgorithmTags.SHA256);
+        try {
+            sign(rsaKey, HashAlgorithmTags.SHA512, DATA).init(shared, rsaKey.getPublicKey());
+            Assert.fail("signature with another hash algorithm must not use the shared digest");
+        } catch (PGPException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTamperedData() throws Exception {
+        PGPSignature rsaSignature = sign(rsaKey, HashAlgorithmTags.SHA256, DATA);
+        PGPSignature dsaSignature = sign(dsaKey, HashAlgorithmTags.SHA256, DATA);
+        PGPSignature ecdsaSignature = sign(ecdsaKey, HashAlgorithmTags.SHA256, DATA);
+
+        SharedDigestVerifierBuilderProvider shared =
+                new SharedDigestVerifierBuilderProvider(HashAlgorithmTags.SHA256);
+        rsaSignature.init(shared, rsaKey.getPublicKey());
+        dsaSignature.init(shared, dsaKey.getPublicKey());
+        ecdsaSignature.init(shared, ecdsaKey.getPublicKey());
+
+        byte[] tampered = DATA.clone();
+        tampered[0] ^= 1;
+        shared.update(tampered, 0, tampered.length);
+
+        Assert.assertFalse("rsa signature over tampered data must not verify", rsaSignature.verify());
+        Assert.assertFalse("dsa signature over tampered data must not verify", dsaSignature.verify());
+        Assert.assertFalse("ecdsa signature over tampered data must not verify", ecdsaSignature.verify());
+    }
+
+    @Test
+    public void testTamperedTrailer() throws Exception {
+        PGPSignature rsaSignature = tamperTrailer(sign(rsaKey, HashAlgorithmTags.SHA256, DATA));
+        PGPSignature dsaSignature = tamperTrailer(sign(dsaKey, HashAlgorithmTags.SHA256, DATA));
+        PGPSignature ecdsaSignature = tamperTrailer(sign(ecdsaKey, HashAlgorithmTags.SHA256, DATA));
+
+        SharedDigestVerifierBuilderProvider shared =
+                new SharedDigestVerifierBuilderProvider(HashAlgorithmTags.SHA256);
+        rsaSignature.init(shared, rsaKey.getPublicKey());
+        dsaSignature.init(shared, dsaKey.getPublicKey());
+        ecdsaSignature.init(shared, ecdsaKey.getPublicKey());
+        shared.update(DATA, 0, DATA.length);
+
+        Assert.assertFalse("rsa signature with tampered trailer must not verify", rsaSignature.verify());
+        Assert.assertFalse("dsa signature with tampered trailer must not verify", dsaSignature.verify());
+        Assert.assertFalse("ecdsa signature with tampered trailer must not verify", ecdsaSignature.verify());
+    }
+
+    private static PGPSignature sign(PGPKeyPair key, int hashAlgorithm, byte[] data) throws Exception {
+        PGPSignatureGenerator generator = new PGPSignatureGenerator(
+                new JcaPGPContentSignerBuilder(key.getPublicKey().getAlgorithm(), hashAlgorithm)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        generator.init(PGPSignature.BINARY_DOCUMENT, key.getPrivateKey());
+        generator.update(data);
+        return generator.generate();
+    }
+
+    /** Flips a bit in the last hashed subpacket, which is part of the signature trailer. */
+    private static PGPSignature tamperTrailer(PGPSignature signature) throws Exception {
+        byte[] encoded = signature.getEncoded();
+
+        int offset;
+        if ((encoded[0] & 0x40) == 0) {
+            // old format packet, length type in the lower two bits
+            offset = new int[] { 2, 3, 5 }[encoded[0] & 0x03];
+        } else {
+            int length = encoded[1] & 0xff;
+            offset = length < 192 ? 2 : length < 224 ? 3 : 6;
+        }
+
+        // v4 signature: version, type, key algorithm, hash algorithm, hashed subpackets length
+        int hashedLength = ((encoded[offset + 4] & 0xff) << 8) | (encoded[offset + 5] & 0xff);
+        encoded[offset + 6 + hashedLength - 1] ^= 1;
+
+        PGPObjectFactory factory = new PGPObjectFactory(encoded, new JcaKeyFingerprintCalculator());
+        return ((PGPSignatureList) factory.nextObject()).get(0);
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ContentChangeCoalescerTest {
+
+    @Test
+    public void testApiAppRevokedDuringBulkOperation() throws Exception {
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        ContentChangeCoalescer coalescer = new ContentChangeCoalescer(resolver,
+                Uri.parse("content://" + KeychainContract.CONTENT_AUTHORITY));
+
+        RecordingObserver apiObserver = new RecordingObserver();
+        RecordingObserver keyRingObserver = new RecordingObserver();
+        resolver.registerContentObserver(ApiApps.CONTENT_URI, true, apiObserver);
+        resolver.registerContentObserver(KeyRings.CONTENT_URI, true, keyRingObserver);
+
+        coalescer.beginBulkOperation();
+        coalescer.notifyChange(KeyRings.buildGenericKeyRingUri(0x1234L));
+        // revoke the app, and the keys it was allowed to use
+        coalescer.notifyChange(ApiApps.buildByPackageNameUri("com.example.app"));
+        coalescer.notifyChange(ApiAllowedKeys.buildBaseUri("com.example.app"));
+
+        Assert.assertEquals("api app changes must be delivered during a bulk operation",
+                2, apiObserver.mChanges.size());
+        Assert.assertTrue("keyring changes must be held back during a bulk operation",
+                keyRingObserver.mChanges.isEmpty());
+
+        coalescer.endBulkOperation();
+        Assert.assertEquals("keyring changes must be delivered after the bulk operation",
+                1, keyRingObserver.mChanges.size());
+        Assert.assertEquals("api app changes must not be delivered twice",
+                2, apiObserver.mChanges.size());
+    }
+
+    private static class RecordingObserver extends ContentObserver {
+        final ArrayList<Uri> mChanges = new ArrayList<>();
+
+        RecordingObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mChanges.add(uri);
+        }
+    }
+
+}
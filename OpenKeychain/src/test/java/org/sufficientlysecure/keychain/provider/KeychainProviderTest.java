@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeychainProviderTest {
+
+    @Test
+    public void testFailedBatchRollsBack() throws Exception {
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        RecordingObserver observer = new RecordingObserver();
+        resolver.registerContentObserver(
+                Uri.parse("content://" + KeychainContract.CONTENT_AUTHORITY), true, observer);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (long masterKeyId = 1; masterKeyId <= 3; masterKeyId++) {
+            ContentValues values = new ContentValues();
+            values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
+            values.put(KeyRingData.KEY_RING_DATA, new byte[] { 1, 2, 3 });
+            operations.add(ContentProviderOperation
+                    .newInsert(KeyRingData.buildPublicKeyRingUri(masterKeyId))
+                    .withValues(values)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        // fails, there is no such keyring
+        operations.add(ContentProviderOperation
+                .newDelete(KeyRingData.buildPublicKeyRingUri(4L))
+                .withExpectedCount(1)
+                .build());
+
+        try {
+            resolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            Assert.fail("batch with a failing operation must throw");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+
+        for (long masterKeyId = 1; masterKeyId <= 3; masterKeyId++) {
+            Cursor cursor = resolver.query(KeyRingData.buildPublicKeyRingUri(masterKeyId),
+                    new String[] { KeyRingData.MASTER_KEY_ID }, null, null, null);
+            Assert.assertNotNull("query must succeed", cursor);
+            try {
+                Assert.assertEquals("keyring " + masterKeyId + " must be rolled back",
+                        0, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        }
+        // coalesced notifications would be delivered on the main looper
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Assert.assertTrue("failed batch must not notify any changes", observer.mChanges.isEmpty());
+    }
+
+    private static class RecordingObserver extends ContentObserver {
+        final ArrayList<Uri> mChanges = new ArrayList<>();
+
+        RecordingObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            mChanges.add(uri);
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.record.TXT;
+
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class DnsCacheTest {
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        DnsCache cache = new DnsCache(new DnsCache.Lookup() {
+            @Override
+            public Record[] lookup(Question question) throws IOException {
+                lookups.incrementAndGet();
+                return new Record[0];
+            }
+        });
+
+        Question question = new Question("_hkp._tcp.example.com", Record.TYPE.SRV);
+        Assert.assertEquals("empty answer must be returned", 0, cache.query(question).length);
+        Assert.assertEquals("empty answer must be cached", 0,
+                cache.query(new Question("_HKP._tcp.example.COM", Record.TYPE.SRV)).length);
+        Assert.assertEquals("only one lookup must be made", 1, lookups.get());
+
+        cache.query(new Question("_hkp._tcp.example.com", Record.TYPE.TXT));
+        Assert.assertEquals("other types must be looked up separately", 2, lookups.get());
+    }
+
+    @Test
+    public void testFailureNotCached() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        DnsCache cache = new DnsCache(new DnsCache.Lookup() {
+            @Override
+            public Record[] lookup(Question question) throws IOException {
+                if (lookups.incrementAndGet() == 1) {
+                    throw new IOException("timeout");
+                }
+                return new Record[0];
+            }
+        });
+
+        Question question = new Question("example.com", Record.TYPE.TXT);
+        try {
+            cache.query(question);
+            Assert.fail("failed lookup must throw");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals("lookup must be retried after failure", 0, cache.query(question).length);
+        Assert.assertEquals("two lookups must be made", 2, lookups.get());
+    }
+
+    @Test
+    public void testServerErrorNotCached() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final Record[] noAnswers = new Record[0];
+        DnsCache cache = new DnsCache(new DnsCache.Lookup() {
+            @Override
+            public Record[] lookup(Question question) throws IOException {
+                DNSMessage.RESPONSE_CODE responseCode = lookups.incrementAndGet() == 1
+                        ? DNSMessage.RESPONSE_CODE.SERVER_FAIL : DNSMessage.RESPONSE_CODE.NX_DOMAIN;
+                return DnsCache.getAnswers(question, responseCode, noAnswers);
+            }
+        });
+
+        Question question = new Question("_hkp._tcp.example.net", Record.TYPE.SRV);
+        try {
+            cache.query(question);
+            Assert.fail("SERVFAIL must throw");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals("NXDOMAIN must be an empty answer", 0, cache.query(question).length);
+        Assert.assertEquals("NXDOMAIN must be cached", 0, cache.query(question).length);
+        Assert.assertEquals("two lookups must be made", 2, lookups.get());
+
+        try {
+            DnsCache.getAnswers(question, DNSMessage.RESPONSE_CODE.REFUSED, null);
+            Assert.fail("REFUSED must throw");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testQueryStandInServer() throws Exception {
+        StandInDnsServer server = new StandInDnsServer("example.com", "stand-in text");
+        try {
+            DnsCache cache = server.createCache();
+
+            Record[] answers = cache.query(new Question("example.com", Record.TYPE.TXT));
+            Assert.assertEquals("server must answer", 1, answers.length);
+            Assert.assertEquals("answer must be the server's text",
+                    "stand-in text", ((TXT) answers[0].getPayload()).getText());
+
+            cache.query(new Question("example.com", Record.TYPE.TXT));
+            Assert.assertEquals("answer must be cached", 1, server.getQueryCount());
+
+            Assert.assertEquals("unknown name must be an empty answer", 0,
+                    cache.query(new Question("unknown.example.com", Record.TYPE.TXT)).length);
+            Assert.assertEquals("unknown name must be queried", 2, server.getQueryCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentQueriesCoalesced() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch releaseLookup = new CountDownLatch(1);
+        final DnsCache cache = new DnsCache(new DnsCache.Lookup() {
+            @Override
+            public Record[] lookup(Question question) throws IOException {
+                lookups.incrementAndGet();
+                lookupStarted.countDown();
+                try {
+                    releaseLookup.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return new Record[0];
+            }
+        });
+        final Question question = new Question("example.org", Record.TYPE.TXT);
+
+        final CountDownLatch queriesDone = new CountDownLatch(2);
+        Runnable query = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.query(question);
+                } catch (IOException e) {
+                    // counted below
+                    return;
+                }
+                queriesDone.countDown();
+            }
+        };
+        new Thread(query).start();
+        Assert.assertTrue("lookup must start", lookupStarted.await(5, TimeUnit.SECONDS));
+        new Thread(query).start();
+
+        // give the second query time to find the pending lookup
+        Thread.sleep(100);
+        releaseLookup.countDown();
+
+        Assert.assertTrue("both queries must succeed", queriesDone.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("concurrent queries must share one lookup", 1, lookups.get());
+    }
+
+}
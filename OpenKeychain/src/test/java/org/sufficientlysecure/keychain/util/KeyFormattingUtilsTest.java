@@ -1,6 +1,9 @@
 package org.sufficientlysecure.keychain.util;
 
 
+import android.text.SpannableStringBuilder;
+import android.text.style.ForegroundColorSpan;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -43,4 +46,57 @@ public class KeyFormattingUtilsTest {
 
     }
 
+    @Test
+    public void testBeautify() {
+        Assert.assertEquals("7bd1\u20088320\u2008dead\u2008fa11", KeyFormattingUtils.beautifyKeyId(keyId));
+        Assert.assertEquals("7bd1\u20088320\u2008dead\u2008fa11",
+                KeyFormattingUtils.beautifyKeyId("0x7BD18320DEADFA11"));
+        Assert.assertEquals("dead\u2008fa11", KeyFormattingUtils.beautifyKeyId(0xdeadfa11L));
+        Assert.assertEquals("0000\u20080001\u20080000\u200800ff",
+                KeyFormattingUtils.beautifyKeyId(0x00000001000000ffL));
+
+        // reused buffers must not keep anything from earlier calls
+        char[] out = new char[KeyFormattingUtils.BEAUTIFIED_KEY_ID_LENGTH];
+        KeyFormattingUtils.formatBeautifiedKeyId(keyId, out);
+        int length = KeyFormattingUtils.formatBeautifiedKeyId(0xdeadfa11L, out);
+        Assert.assertEquals("dead\u2008fa11", new String(out, 0, length));
+    }
+
+    @Test
+    public void testColorize() {
+        String fingerprint = KeyFormattingUtils.convertFingerprintToHex(fp);
+        SpannableStringBuilder colorized = KeyFormattingUtils.colorizeFingerprint(fingerprint);
+        Assert.assertEquals("d4ab 1929 64f7 6a7f 8f8a\n9b35 7bd1 8320 dead fa11", colorized.toString());
+
+        ForegroundColorSpan[] spans = colorized.getSpans(0, colorized.length(), ForegroundColorSpan.class);
+        Assert.assertEquals("each quartet must be colored", 10, spans.length);
+
+        // the same quartet always gets the same color
+        SpannableStringBuilder target = new SpannableStringBuilder("leftover");
+        KeyFormattingUtils.colorizeFingerprint(fingerprint, target);
+        Assert.assertEquals(colorized.toString(), target.toString());
+        Assert.assertEquals(spans[3].getForegroundColor(),
+                target.getSpans(15, 19, ForegroundColorSpan.class)[0].getForegroundColor());
+    }
+
+    @Test
+    public void testColorizeRepeatedQuartet() {
+        String fingerprint = "abcd1234abcd5678abcd9abcabcdef01abcd2345";
+        SpannableStringBuilder colorized = KeyFormattingUtils.colorizeFingerprint(fingerprint);
+
+        ForegroundColorSpan[] spans = colorized.getSpans(0, colorized.length(), ForegroundColorSpan.class);
+        Assert.assertEquals("each occurrence of a repeated quartet must be colored", 10, spans.length);
+
+        int color = colorized.getSpans(0, 4, ForegroundColorSpan.class)[0].getForegroundColor();
+        for (int start : new int[] { 10, 20, 30, 40 }) {
+            ForegroundColorSpan[] quartetSpans =
+                    colorized.getSpans(start, start + 4, ForegroundColorSpan.class);
+            Assert.assertEquals("quartet at " + start + " must have its own span", 1, quartetSpans.length);
+            Assert.assertEquals("quartet at " + start + " must start its span",
+                    start, colorized.getSpanStart(quartetSpans[0]));
+            Assert.assertEquals("repeated quartet must have the same color",
+                    color, quartetSpans[0].getForegroundColor());
+        }
+    }
+
 }
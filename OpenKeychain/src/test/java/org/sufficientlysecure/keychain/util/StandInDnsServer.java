@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A minimal DNS server on a local UDP port, which answers TXT queries for a single name with a
+ * fixed text, and all other queries with NXDOMAIN.
+ */
+public class StandInDnsServer implements Runnable {
+
+    private static final int TYPE_TXT = 16;
+    private static final int CLASS_IN = 1;
+    private static final int TTL_SECONDS = 300;
+
+    private final DatagramSocket mSocket;
+    private final String mName;
+    private final String mText;
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+    private DnsCache mReplacedInstance;
+
+    public StandInDnsServer(String name, String text) throws IOException {
+        mName = name;
+        mText = text;
+        mSocket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    public int getQueryCount() {
+        return mQueryCount.get();
+    }
+
+    /** Returns a new cache which queries this server. */
+    public DnsCache createCache() {
+        return DnsCache.forServer("127.0.0.1", getPort());
+    }
+
+    /** Sends the queries of {@link DnsCache#getInstance()} to this server, until {@link #close()}. */
+    public void install() {
+        mReplacedInstance = DnsCache.getInstance();
+        DnsCache.setInstance(createCache());
+    }
+
+    public void close() {
+        if (mReplacedInstance != null) {
+            DnsCache.setInstance(mReplacedInstance);
+            mReplacedInstance = null;
+        }
+        mSocket.close();
+    }
+
+    @Override
+    public void run() {
+        byte[] buf = new byte[512];
+        while (!mSocket.isClosed()) {
+            try {
+                DatagramPacket query = new DatagramPacket(buf, buf.length);
+                mSocket.receive(query);
+                mQueryCount.incrementAndGet();
+                byte[] response = answer(query.getData(), query.getLength());
+                mSocket.send(new DatagramPacket(response, response.length, query.getSocketAddress()));
+            } catch (IOException e) {
+                // closed, or a malformed query
+            }
+        }
+    }
+
+    private byte[] answer(byte[] query, int length) throws IOException {
+        // the question starts after the 12 byte header, with the labels of the name
+        StringBuilder name = new StringBuilder();
+        int pos = 12;
+        while (pos < length && query[pos] != 0) {
+            int labelLength = query[pos] & 0xff;
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(new String(query, pos + 1, labelLength, "US-ASCII"));
+            pos += 1 + labelLength;
+        }
+        pos += 1;
+        int type = ((query[pos] & 0xff) << 8) | (query[pos + 1] & 0xff);
+        // type and class
+        pos += 4;
+
+        boolean found = type == TYPE_TXT && mName.equalsIgnoreCase(name.toString());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // id of the query
+        out.write(query, 0, 2);
+        // response, recursion desired and available, NOERROR or NXDOMAIN
+        out.writeShort(found ? 0x8180 : 0x8183);
+        // one question, one or no answer, no authority or additional records
+        out.writeShort(1);
+        out.writeShort(found ? 1 : 0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.write(query, 12, pos - 12);
+
+        if (found) {
+            byte[] text = mText.getBytes("UTF-8");
+            // pointer to the name in the question
+            out.writeShort(0xc00c);
+            out.writeShort(TYPE_TXT);
+            out.writeShort(CLASS_IN);
+            out.writeInt(TTL_SECONDS);
+            out.writeShort(text.length + 1);
+            out.writeByte(text.length);
+            out.write(text);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+}